@@ -1,3 +1,15 @@
+const cluster = require('cluster');
+const manager = require('./lib/manager');
 const server = require('./lib/server');
+const workerPool = require('./lib/workerPool');
 
-server.startServer();
\ No newline at end of file
+// The number of processes that serve the instances.  The management API always runs in the first one.
+const workers = parseInt(process.env.BOUNCE_WORKERS || '1', 10);
+
+if (workers <= 1) {
+  server.startServer(manager);
+} else if (cluster.isMaster) {
+  server.startServer(workerPool.start(workers));
+} else {
+  workerPool.serveCalls(manager);
+}
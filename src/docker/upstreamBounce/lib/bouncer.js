@@ -3,13 +3,24 @@ const fs = require('fs');
 const https = require('https');
 const http = require('http');
 var Promise = require('bluebird');
+const shaper = require('./shaper');
+const faults = require('./faults');
+const journals = require('./journal');
 
-const buildResponseHandler = (responseHeaders, clusterName, instanceNumber) => {
+const buildResponseHandler = (config) => {
+  const {responseHeaders, clusterName, instanceNumber} = config;
+  const send = shaper.isShaped(config) ?
+      shaper.buildSender(config) :
+      (response, responseCode, echo) => response.status(responseCode).json(echo);
+  const pad = (config.faults && config.responseSize) ? shaper.padding(config.responseSize) : null;
+  // A fault takes the place of the shaping, but the body is still padded to its size.
+  const sendWithFault = (req) => (response, responseCode, echo) =>
+      faults.inject(req.fault, req, response, responseCode, shaper.padTo(JSON.stringify(echo), config.responseSize, pad));
   return (responseCode, req, response) => {
     if (responseHeaders) {
       Object.keys(responseHeaders).map((key) => response.set(key, responseHeaders[key]));
     }
-    response.status(responseCode).json({
+    (req.fault ? sendWithFault(req) : send)(response, responseCode, {
       cluster: clusterName,
       instance: instanceNumber,
       request: {
@@ -49,14 +60,21 @@ function setupRoutes(matchingPaths, app, responseHandler, responseCode) {
   });
 }
 
-const buildServerInstance = ({instanceNumber, clusterName, matchingPaths, responseCode, runHTTPS, responseHeaders, port}) => {
-
-  // App
+// The app of one cluster.  Its journal of received requests is kept in app.locals.
+const buildApp = (config) => {
   const app = express();
-  const responseHandler = buildResponseHandler(responseHeaders, clusterName, instanceNumber);
-  setupRoutes(matchingPaths, app, responseHandler, responseCode);
+  const journal = journals.create();
+  app.locals.journal = journal;
+  app.use(journal.record);
+  const responseHandler = buildResponseHandler(config);
+  faults.setupFaults(app, config.faults);
+  setupRoutes(config.matchingPaths, app, responseHandler, config.responseCode);
+  return app;
+};
+
+const buildServerInstance = (config, app = buildApp(config)) => {
   let server;
-  if (runHTTPS) {
+  if (config.runHTTPS) {
     const privateKey = fs.readFileSync('/app/internal.key');
     const certificate = fs.readFileSync('/app/internal.cert');
     const credentials = {key: privateKey, cert: certificate};
@@ -64,6 +82,32 @@ const buildServerInstance = ({instanceNumber, clusterName, matchingPaths, respon
   } else {
     server = http.createServer(app);
   }
+  return listen(server, config.port);
+};
+
+// The Host header without its port.  nginx sends the name of the upstream as the Host for "proxy_pass http://Name".
+const hostOf = (req) => (req.headers.host || '').replace(/:\d+$/, '').toLowerCase();
+
+// One plain http listener for many clusters.  Each request is handed to the app of the cluster named by its Host
+// header, looked up in "apps" by lower case cluster name when the request arrives.
+const buildSharedServerInstance = (port, apps) => {
+  const server = http.createServer((req, res) => {
+    const app = apps[hostOf(req)];
+    if (app) {
+      app(req, res);
+    } else {
+      res.writeHead(421, {'Content-Type': 'application/json'});
+      res.end(JSON.stringify({
+        error: 'No cluster is registered on port ' + port + ' for the Host header.  The Host header must be the ' +
+            'cluster name, which nginx sends unless "proxy_set_header Host" changes it.',
+        host: req.headers.host || null
+      }));
+    }
+  });
+  return listen(server, port);
+};
+
+const listen = (server, port) => {
   return new Promise((res, err) => {
     server.listen(port);
     server.on('listening', () => {
@@ -85,5 +129,7 @@ const buildServerInstance = ({instanceNumber, clusterName, matchingPaths, respon
 };
 
 module.exports = {
-  buildServerInstance
+  buildApp,
+  buildServerInstance,
+  buildSharedServerInstance
 };
@@ -0,0 +1,81 @@
+const http = require('http');
+
+// Injects the faults of clusters that ask for them: a reset connection, a stall after the headers, a truncated body or
+// headers that trickle in.  A request gets the first fault whose paths match and whose probability comes up.
+
+// Marks the request with a fault before the routes answer it.
+const setupFaults = (app, faults) => {
+  (faults || []).forEach((fault) => {
+    const paths = fault.paths ? fault.paths.split('|') : ['*'];
+    const probability = (fault.probability === undefined) ? 1 : fault.probability;
+    app.all(paths, (req, res, next) => {
+      if (!req.fault && Math.random() < probability) {
+        req.fault = fault;
+      }
+      next();
+    });
+  });
+};
+
+// The headers the response would have had, for the faults that send them.  The connection is always closed.
+const setHeaders = (response, body) => {
+  if (!response.get('Content-Type')) {
+    response.set('Content-Type', 'application/json; charset=utf-8');
+  }
+  response.set('Content-Length', `${body.length}`);
+  response.set('Connection', 'close');
+};
+
+// Without a linger time the socket is closed with a reset instead of a fin.
+const reset = (socket) => (socket.resetAndDestroy ? socket.resetAndDestroy() : socket.destroy());
+
+// Writes the status line and each header straight to the socket, waiting before each of them, then the body.
+const trickle = (socket, lines, body, delayMs) => {
+  if (lines.length === 0) {
+    socket.end(body);
+    return;
+  }
+  setTimeout(() => {
+    socket.write(lines[0] + (lines.length === 1 ? '\r\n\r\n' : '\r\n'));
+    trickle(socket, lines.slice(1), body, delayMs);
+  }, delayMs);
+};
+
+const inject = (fault, req, response, responseCode, body) => {
+  const socket = req.socket;
+  switch (fault.type) {
+    case 'RESET_CONNECTION':
+      reset(socket);
+      break;
+    case 'STALL_AFTER_HEADERS':
+      setHeaders(response, body);
+      response.status(responseCode).flushHeaders();
+      setTimeout(() => socket.end(), fault.stallMs);
+      break;
+    case 'TRUNCATE_BODY': {
+      setHeaders(response, body);
+      response.status(responseCode).flushHeaders();
+      const sent = body.slice(0, Math.min(fault.bodyBytes, Math.max(0, body.length - 1)));
+      if (sent.length > 0) {
+        response.write(sent);
+      }
+      setImmediate(() => socket.end());
+      break;
+    }
+    case 'SLOW_HEADERS': {
+      setHeaders(response, body);
+      const headers = response.getHeaders();
+      const lines = [`HTTP/1.1 ${responseCode} ${http.STATUS_CODES[responseCode] || 'Unknown'}`]
+          .concat(Object.keys(headers).map((name) => `${name}: ${headers[name]}`));
+      trickle(socket, lines, body, fault.headerDelayMs);
+      break;
+    }
+    default:
+      response.status(500).send(`Unknown fault ${fault.type}`);
+  }
+};
+
+module.exports = {
+  inject,
+  setupFaults
+};
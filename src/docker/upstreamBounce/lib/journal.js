@@ -0,0 +1,90 @@
+const crypto = require('crypto');
+
+// Keeps the last requests an instance received, so that tests can see retries, mirrored and replayed requests that
+// never show up in the echo the client gets.  The journal is a ring of a fixed size, along with a count of every
+// request received.
+
+const JOURNAL_SIZE = 1000;
+let nextConnectionId = 0;
+
+// The same digest as the JVM upstream server makes: SHA-256 of "name: value\n" for each header, sorted by name.
+const digestHeaders = (headers) => {
+  const hash = crypto.createHash('sha256');
+  Object.keys(headers).sort().forEach((name) => hash.update(`${name}: ${headers[name]}\n`));
+  return hash.digest('hex');
+};
+
+// Connections are numbered by process, since each worker process takes its own connections.
+const connectionIdOf = (socket) => {
+  if (socket.journalId === undefined) {
+    socket.journalId = `${process.pid}-${nextConnectionId++}`;
+  }
+  return socket.journalId;
+};
+
+const create = (size = JOURNAL_SIZE) => {
+  const entries = new Array(size);
+  let received = 0;
+
+  // The middleware that records each request when it arrives and its service time once the response is done.  A
+  // response that never completes, such as one with a fault, has no status.
+  const record = (req, res, next) => {
+    const start = process.hrtime.bigint();
+    const entry = {
+      receivedAt: Date.now(),
+      method: req.method,
+      path: req.path,
+      headersDigest: digestHeaders(req.headers),
+      connectionId: connectionIdOf(req.socket),
+      status: null,
+      serviceTimeMs: null
+    };
+    entries[received % size] = entry;
+    received++;
+    const finish = (completed) => () => {
+      if (entry.serviceTimeMs === null) {
+        entry.serviceTimeMs = Number(process.hrtime.bigint() - start) / 1e6;
+        entry.status = completed ? res.statusCode : null;
+      }
+    };
+    res.on('finish', finish(true));
+    res.on('close', finish(false));
+    next();
+  };
+
+  // The requests in the order they arrived, oldest first.
+  const snapshot = () => {
+    const kept = Math.min(received, size);
+    const requests = [];
+    for (let i = received - kept; i < received; i++) {
+      requests.push(entries[i % size]);
+    }
+    return {received, requests};
+  };
+
+  const clear = () => {
+    entries.fill(undefined);
+    received = 0;
+  };
+
+  return {record, snapshot, clear};
+};
+
+// Joins the journals of the same instance in several worker processes, keeping the latest requests.
+const merge = (journals) => {
+  const found = journals.filter(journal => journal);
+  if (found.length === 0) {
+    return null;
+  }
+  const requests = [].concat(...found.map(journal => journal.requests))
+      .sort((first, second) => first.receivedAt - second.receivedAt);
+  return Object.assign({}, found[0], {
+    received: found.reduce((total, journal) => total + journal.received, 0),
+    requests: requests.slice(Math.max(0, requests.length - JOURNAL_SIZE))
+  });
+};
+
+module.exports = {
+  create,
+  merge
+};
@@ -1,27 +1,132 @@
 const bouncer = require('./bouncer');
 
+// The running servers by port, with the definition each one was started from.  A shared listener has the apps and
+// definitions of every cluster it serves instead, by lower case cluster name.
 let runningInstances = {};
 
 const buildInstance = (config) => {
-  return bouncer.buildServerInstance(config)
+  if (config.sharedListener && !config.runHTTPS) {
+    return buildSharedInstance(config);
+  }
+  closeInstance(config.port);
+  const app = bouncer.buildApp(config);
+  return bouncer.buildServerInstance(config, app)
       .then((server) => {
         const port = server.address().port;
-        runningInstances[port] = server;
+        runningInstances[port] = {server, config, app};
         return port;
       });
 };
 
+// Adds the cluster to the shared listener on its port, starting the listener for the first cluster.
+const buildSharedInstance = (config) => {
+  let instance = runningInstances[config.port];
+  if (!instance || !instance.clusters) {
+    closeInstance(config.port);
+    const apps = {};
+    instance = {apps, clusters: {}, listening: bouncer.buildSharedServerInstance(config.port, apps)};
+    runningInstances[config.port] = instance;
+    instance.listening.catch(() => delete runningInstances[config.port]);
+  }
+  const name = config.clusterName.toLowerCase();
+  instance.apps[name] = bouncer.buildApp(config);
+  instance.clusters[name] = config;
+  return instance.listening.then(() => config.port);
+};
+
+const buildInstances = (configs) => {
+  return Promise.all(configs.map(buildInstance));
+};
+
+const listInstances = () => {
+  return Object.keys(runningInstances)
+      .map(key => runningInstances[key])
+      .reduce((configs, instance) => instance.clusters ?
+          configs.concat(Object.keys(instance.clusters).map(name => instance.clusters[name])) :
+          configs.concat([instance.config]), []);
+};
+
+const closeInstance = (port) => {
+  const instance = runningInstances[port];
+  if (instance) {
+    if (instance.clusters) {
+      instance.listening.then(server => server.close(), () => {});
+    } else {
+      instance.server.close();
+    }
+    delete runningInstances[port];
+  }
+};
+
 const reset = () => {
-  Object.keys(runningInstances).forEach(key => runningInstances[key].close());
-  runningInstances = {};
+  Object.keys(runningInstances).forEach(closeInstance);
 };
 
-const shutDownInstance = (port) => {
-  runningInstances[port].close();
+// Stops the instance on the port.  For a shared listener only the named cluster is removed, and the listener is closed
+// once it has no clusters left.
+const shutDownInstance = (port, clusterName) => {
+  const instance = runningInstances[port];
+  if (!instance) {
+    return false;
+  }
+  if (instance.clusters) {
+    const name = (clusterName || '').toLowerCase();
+    if (!instance.clusters[name]) {
+      return false;
+    }
+    delete instance.apps[name];
+    delete instance.clusters[name];
+    if (Object.keys(instance.clusters).length === 0) {
+      closeInstance(port);
+    }
+    return true;
+  }
+  closeInstance(port);
+  return true;
 };
 
+// The app of the instance on the port.  For a shared listener it is the app of the named cluster.
+const appOf = (port, clusterName) => {
+  const instance = runningInstances[port];
+  if (!instance) {
+    return null;
+  }
+  return instance.clusters ? instance.apps[(clusterName || '').toLowerCase()] : instance.app;
+};
+
+const definitionOf = (port, clusterName) => {
+  const instance = runningInstances[port];
+  return instance.clusters ? instance.clusters[(clusterName || '').toLowerCase()] : instance.config;
+};
+
+// The requests the instance received, or null if there is no such instance.
+const readJournal = (port, clusterName) => {
+  const app = appOf(port, clusterName);
+  if (!app) {
+    return null;
+  }
+  const config = definitionOf(port, clusterName);
+  return Object.assign({cluster: config.clusterName, instance: config.instanceNumber}, app.locals.journal.snapshot());
+};
+
+const clearJournal = (port, clusterName) => {
+  const app = appOf(port, clusterName);
+  if (app) {
+    app.locals.journal.clear();
+  }
+  return Boolean(app);
+};
+
+// A single process serves every instance itself, so it is healthy for as long as it answers.
+const isHealthy = () => true;
+
 module.exports = {
+  isHealthy,
+  readJournal,
+  clearJournal,
   buildInstance,
+  buildInstances,
+  listInstances,
   shutDownInstance,
   reset,
 };
\ No newline at end of file
@@ -1,32 +1,64 @@
 const express = require('express');
-const manager = require('./manager');
 const bodyParser = require('body-parser');
 const http = require('http');
 
 const jsonParser = bodyParser.json();
 
-const startServer = () => {
+// The manager is called through promises, since it may be a pool of worker processes, see workerPool.
+const startServer = (manager) => {
   const app = express();
   app.post('/startServer', jsonParser, (req, res) => {
-    manager.buildInstance(req.body)
+    Promise.resolve(manager.buildInstance(req.body))
         .then((instancePort) => {
           res.status(200).send(`${instancePort}`);
+        })
+        .catch((e) => {
+          res.status(500).send(`${e}`);
+        });
+  });
+
+  // Starts every instance in the array at once and responds with their ports in the same order.
+  app.post('/startServers', bodyParser.json({limit: '10mb'}), (req, res) => {
+    Promise.resolve(manager.buildInstances(req.body))
+        .then((instancePorts) => {
+          res.status(200).json(instancePorts);
+        })
+        .catch((e) => {
+          res.status(500).send(`${e}`);
         });
   });
 
   app.post('/reset', (req, res) => {
-    manager.reset();
-    res.status(200).end();
+    Promise.resolve(manager.reset())
+        .then(() => res.status(200).end());
+  });
+
+  app.post('/stopServer', jsonParser, (req, res) => {
+    Promise.resolve(manager.shutDownInstance(req.body.port, req.body.clusterName))
+        .then((stopped) => res.status(stopped ? 200 : 404).end());
+  });
+
+  // Lists the definition of every running instance, including the port it listens on.
+  app.get('/instances', (req, res) => {
+    Promise.resolve(manager.listInstances())
+        .then((instances) => res.status(200).json(instances));
+  });
+
+  // The requests received by the instance on the port, and by the named cluster for a shared listener.
+  app.get('/journal', (req, res) => {
+    Promise.resolve(manager.readJournal(parseInt(req.query.port, 10), req.query.clusterName))
+        .then((journal) => journal ? res.status(200).json(journal) : res.status(404).end());
   });
 
-  app.post('/stopServer', (req, res) => {
-    const stopRequestPort = req.body;
-    manager.shutDownInstance(stopRequestPort);
-    res.status(200).end();
+  app.delete('/journal', (req, res) => {
+    Promise.resolve(manager.clearJournal(parseInt(req.query.port, 10), req.query.clusterName))
+        .then((cleared) => res.status(cleared ? 200 : 404).end());
   });
 
+  // Fails while a worker that died is being replaced, see workerPool.
   app.get('/health', (req, res) => {
-    res.status(200).end();
+    Promise.resolve(manager.isHealthy())
+        .then((healthy) => res.status(healthy ? 200 : 503).end());
   })
 
   http.createServer(app).listen(3000);
@@ -0,0 +1,101 @@
+const fs = require('fs');
+const stream = require('stream');
+
+// Shapes the responses of clusters that ask for it: a delay before the response starts, a body padded to a size or
+// read from a file, sent chunked or with its length, and a limit on how fast the body is sent.
+
+const ALPHABET = 'ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789';
+const PADDING_FIELD = ',"padding":""';
+
+const isShaped = (config) => Boolean(config.responseDelayMs || config.responseSize || config.responseFile ||
+    config.chunkedResponse || config.bandwidthBytesPerSecond);
+
+// The same bytes for the same length every time, and the same as the JVM upstream server sends.  They are generated
+// so that they do not compress well.
+const padding = (length) => {
+  const bytes = Buffer.alloc(length);
+  let x = 0x2545F491;
+  for (let i = 0; i < length; i++) {
+    x = (x ^ (x << 13)) >>> 0;
+    x = (x ^ (x >>> 17)) >>> 0;
+    x = (x ^ (x << 5)) >>> 0;
+    bytes[i] = ALPHABET.charCodeAt(x % ALPHABET.length);
+  }
+  return bytes;
+};
+
+// Adds a padding field to the end of the echo so the body is the size asked for.  An echo that is already that size
+// or larger is left alone.
+const padTo = (json, size, pad) => {
+  const unpadded = Buffer.byteLength(json) + PADDING_FIELD.length;
+  if (!size || unpadded > size) {
+    return Buffer.from(json);
+  }
+  return Buffer.concat([Buffer.from(json.slice(0, -1) + ',"padding":"'), pad.slice(0, size - unpadded), Buffer.from('"}')]);
+};
+
+// Passes the body on in slices of a tenth of a second, each one when the limit allows.
+const throttle = (bytesPerSecond) => {
+  const slice = Math.max(1, Math.floor(bytesPerSecond / 10));
+  let started;
+  let sent = 0;
+  return new stream.Transform({
+    transform(chunk, encoding, done) {
+      started = started || Date.now();
+      const sendFrom = (offset) => {
+        if (offset >= chunk.length) {
+          return done();
+        }
+        const piece = chunk.slice(offset, offset + slice);
+        sent += piece.length;
+        this.push(piece);
+        const due = started + (sent * 1000) / bytesPerSecond;
+        setTimeout(() => sendFrom(offset + piece.length), Math.max(0, due - Date.now()));
+      };
+      sendFrom(0);
+    }
+  });
+};
+
+const sendBody = (config, response, source, length) => {
+  if (!config.chunkedResponse) {
+    response.set('Content-Length', `${length}`);
+  }
+  const body = config.bandwidthBytesPerSecond ? source.pipe(throttle(config.bandwidthBytesPerSecond)) : source;
+  body.pipe(response);
+};
+
+// Returns the function that sends the shaped responses of one cluster.  The padding is made once for the cluster.
+const buildSender = (config) => {
+  const pad = config.responseSize ? padding(config.responseSize) : null;
+  return (response, responseCode, echo) => {
+    setTimeout(() => {
+      response.status(responseCode);
+      if (config.responseFile) {
+        fs.stat(config.responseFile, (error, stats) => {
+          if (error) {
+            response.status(500).send(`${error}`);
+            return;
+          }
+          if (!response.get('Content-Type')) {
+            response.set('Content-Type', 'application/octet-stream');
+          }
+          sendBody(config, response, fs.createReadStream(config.responseFile), stats.size);
+        });
+      } else {
+        if (!response.get('Content-Type')) {
+          response.set('Content-Type', 'application/json; charset=utf-8');
+        }
+        const body = padTo(JSON.stringify(echo), config.responseSize, pad);
+        sendBody(config, response, stream.Readable.from([body]), body.length);
+      }
+    }, config.responseDelayMs || 0);
+  };
+};
+
+module.exports = {
+  buildSender,
+  isShaped,
+  padding,
+  padTo
+};
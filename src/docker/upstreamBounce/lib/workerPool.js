@@ -0,0 +1,109 @@
+const cluster = require('cluster');
+const Promise = require('bluebird');
+const journals = require('./journal');
+
+// Runs the manager in every worker process and sends each management call to all of them, so that every worker
+// serves the same instances.  The cluster module shares each listening port between the workers and hands the
+// connections out round robin, so the requests to one instance are spread over every core.
+const start = (count) => {
+  let nextId = 0;
+  const pending = {};
+  const workers = [];
+  let replacing = 0;
+  let instancesLost = false;
+
+  const fork = () => {
+    const worker = cluster.fork();
+    worker.on('message', ({id, result, error}) => {
+      const call = pending[id];
+      delete pending[id];
+      if (call && error) {
+        call.reject(new Error(error));
+      } else if (call) {
+        call.resolve(result);
+      }
+    });
+    return worker;
+  };
+
+  for (let i = 0; i < count; i++) {
+    workers.push(fork());
+  }
+
+  // A worker that dies is replaced by a new one, which is started with every instance a surviving worker serves.  The
+  // calls it had not answered fail.  The health check fails until the new worker serves the instances, and for good
+  // if there was no worker left to copy them from, since the instances then have to be registered again.
+  cluster.on('exit', (worker, code, signal) => {
+    const index = workers.indexOf(worker);
+    if (index < 0 || worker.exitedAfterDisconnect) {
+      return;
+    }
+    console.log(`Bounce worker ${worker.process.pid} exited with ${signal || code}, starting a new one.`);
+    Object.keys(pending)
+        .filter(id => pending[id].worker === worker)
+        .forEach(id => {
+          pending[id].reject(new Error(`Bounce worker ${worker.process.pid} exited.`));
+          delete pending[id];
+        });
+    const survivor = workers.find(other => other !== worker && !other.isDead());
+    const replacement = fork();
+    workers[index] = replacement;
+    if (!survivor) {
+      instancesLost = true;
+      return;
+    }
+    replacing++;
+    call(survivor, 'listInstances', [])
+        .then(definitions => call(replacement, 'buildInstances', [definitions]))
+        .catch((e) => {
+          console.log(`The instances could not be started in the new bounce worker: ${e}`);
+          instancesLost = true;
+        })
+        .finally(() => replacing--);
+  });
+
+  const call = (worker, op, args) => new Promise((resolve, reject) => {
+    const id = nextId++;
+    pending[id] = {resolve, reject, worker};
+    worker.send({id, op, args}, (error) => {
+      if (error && pending[id]) {
+        delete pending[id];
+        reject(error);
+      }
+    });
+  });
+
+  // Every worker makes the same change.  They answer alike, so the answer of the first one is used.
+  const broadcast = (op, ...args) => Promise.all(workers.map(worker => call(worker, op, args)))
+      .then(results => results[0]);
+
+  return {
+    buildInstance: (config) => broadcast('buildInstance', config),
+    buildInstances: (configs) => broadcast('buildInstances', configs),
+    listInstances: () => call(workers[0], 'listInstances', []),
+    shutDownInstance: (port, clusterName) => broadcast('shutDownInstance', port, clusterName),
+    reset: () => broadcast('reset').then(() => {
+      instancesLost = false;
+    }),
+    // Each worker keeps the journal of the requests it served, so the journals are joined.
+    readJournal: (port, clusterName) => Promise.all(workers.map(worker => call(worker, 'readJournal', [port, clusterName])))
+        .then(journals.merge),
+    clearJournal: (port, clusterName) => broadcast('clearJournal', port, clusterName),
+    isHealthy: () => replacing === 0 && !instancesLost,
+  };
+};
+
+// Takes the calls sent by the pool in a worker process and answers them with the result of the manager.
+const serveCalls = (manager) => {
+  process.on('message', ({id, op, args}) => {
+    Promise.resolve()
+        .then(() => manager[op](...args))
+        .then((result) => process.send({id, result}),
+            (error) => process.send({id, error: `${error}`}));
+  });
+};
+
+module.exports = {
+  start,
+  serveCalls
+};
@@ -18,7 +18,10 @@
 
 package com.kroger.oss.snowGlobe;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kroger.oss.snowGlobe.upstream.ReceivedRequest;
+import com.kroger.oss.snowGlobe.upstream.ReceivedRequests;
+import com.kroger.oss.snowGlobe.util.JsonUtil;
+import com.kroger.oss.snowGlobe.util.UpstreamUtil;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -27,6 +30,8 @@ import java.util.List;
 import java.util.Map;
 
 import static java.util.Arrays.stream;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
 
 /**
  * This represents the upstream service that will be dynamically created.  This represents a "fake" upstream cluster as
@@ -35,12 +40,23 @@ import static java.util.Arrays.stream;
  */
 public class AppServiceCluster {
 
+    private static final long HIT_COUNT_WAIT_MS = 2000;
+
     private final String clusterName;
     private final boolean useHttps;
     private int httpResponseCode = 200;
     private String matchingPaths = "*";
     private Map<String, String> responseHeaders = new HashMap<>();
+    private int responseDelayMs;
+    private int responseSize;
+    private String responseFile;
+    private boolean chunkedResponse;
+    private long bandwidthBytesPerSecond;
+    private List<UpstreamFault> faults = new ArrayList<>();
     private int port;
+    // The instance that was started for the cluster, whose journal is read by getReceivedRequests.
+    private volatile int runningPort;
+    private volatile FrameworkProperties runningProperties;
 
     /**
      * The constructor that stores the basic state of the service.
@@ -101,7 +117,7 @@ public class AppServiceCluster {
      */
     private String getHeadersAsArgument() {
         try {
-            return "\"" + new ObjectMapper().writeValueAsString(responseHeaders).replaceAll("\"", "\\\\\"") + "\"";
+            return "\"" + JsonUtil.toJson(responseHeaders).replaceAll("\"", "\\\\\"") + "\"";
         } catch (IOException e) {
             System.err.println("Unable to parse response header for upstream application");
             return "";
@@ -109,8 +125,15 @@ public class AppServiceCluster {
     }
 
     public AppServiceCluster clone() {
-        return new AppServiceCluster(this.clusterName, httpResponseCode, matchingPaths,
+        AppServiceCluster clone = new AppServiceCluster(this.clusterName, httpResponseCode, matchingPaths,
                 responseHeaders, useHttps);
+        clone.responseDelayMs = responseDelayMs;
+        clone.responseSize = responseSize;
+        clone.responseFile = responseFile;
+        clone.chunkedResponse = chunkedResponse;
+        clone.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+        clone.faults = new ArrayList<>(faults);
+        return clone;
     }
 
     public AppServiceCluster withExpectedPaths(String... matchingPaths) {
@@ -127,6 +150,79 @@ public class AppServiceCluster {
         return this;
     }
 
+    /**
+     * A builder method that holds back every response, headers included, for a time.  Used with
+     * <code>proxy_read_timeout</code> and the other timeouts of nginx.
+     *
+     * @param delayMs How long to wait before responding, in milliseconds.
+     * @return the <code>AppServiceCluster</code> object.
+     */
+    public AppServiceCluster withResponseDelay(int delayMs) {
+        this.responseDelayMs = delayMs;
+        return this;
+    }
+
+    /**
+     * A builder method that pads the body of every response to a size.  The echoed request is still in the body,
+     * followed by a "padding" field of generated characters that are the same every time and do not compress well.
+     *
+     * @param bytes The size of the body.  A body is never smaller than the echo.
+     * @return the <code>AppServiceCluster</code> object.
+     */
+    public AppServiceCluster withResponseSize(int bytes) {
+        this.responseSize = bytes;
+        return this;
+    }
+
+    /**
+     * A builder method that sends a file as the body of every response instead of the echo.  The path is where the
+     * upstream server finds the file: in the upstream bounce container, mount it with
+     * <code>upstream.bounce.volumes</code>.  The JVM upstream server sends it without copying it through the JVM.
+     *
+     * @param path The file to send.
+     * @return the <code>AppServiceCluster</code> object.
+     */
+    public AppServiceCluster withResponseFile(String path) {
+        this.responseFile = path;
+        return this;
+    }
+
+    /**
+     * A builder method that sends every response body chunked instead of with a content length.  An HTTP/1.0 request,
+     * which is what nginx sends unless <code>proxy_http_version</code> is set, gets the body without a length and the
+     * connection is closed after it.
+     *
+     * @return the <code>AppServiceCluster</code> object.
+     */
+    public AppServiceCluster withChunkedResponse() {
+        this.chunkedResponse = true;
+        return this;
+    }
+
+    /**
+     * A builder method that limits how fast the body of every response is sent.
+     *
+     * @param bytesPerSecond The most bytes of body sent in a second.
+     * @return the <code>AppServiceCluster</code> object.
+     */
+    public AppServiceCluster withBandwidthLimit(long bytesPerSecond) {
+        this.bandwidthBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * A builder method that injects a fault into the responses, such as a reset connection or a truncated body.  When
+     * a cluster has more than one fault, they are tried in the order they were added and a request gets the first one
+     * whose paths match and whose probability comes up.  A fault takes the place of the response shaping.
+     *
+     * @param fault The fault to inject.
+     * @return the <code>AppServiceCluster</code> object.
+     */
+    public AppServiceCluster withFault(UpstreamFault fault) {
+        faults.add(fault);
+        return this;
+    }
+
     List<String> buildEnvironmentList() {
         List<String> environmentVariables = new ArrayList<>();
         environmentVariables.add("INSTANCE_NUMBER=1");
@@ -150,6 +246,30 @@ public class AppServiceCluster {
         return responseHeaders;
     }
 
+    public int getResponseDelayMs() {
+        return responseDelayMs;
+    }
+
+    public int getResponseSize() {
+        return responseSize;
+    }
+
+    public String getResponseFile() {
+        return responseFile;
+    }
+
+    public boolean isChunkedResponse() {
+        return chunkedResponse;
+    }
+
+    public long getBandwidthBytesPerSecond() {
+        return bandwidthBytesPerSecond;
+    }
+
+    public List<UpstreamFault> getFaults() {
+        return faults;
+    }
+
     public boolean isUseHttps() {
         return useHttps;
     }
@@ -161,4 +281,76 @@ public class AppServiceCluster {
     public int getPort() {
         return port;
     }
+
+    /**
+     * Points the cluster at the instance started for it, so that its journal can be read.  The reverse proxy starts
+     * the instances of copies of its clusters, so it binds the clusters it was given to them as well.
+     */
+    void bindToRunningInstance(int port, FrameworkProperties frameworkProperties) {
+        this.runningPort = port;
+        this.runningProperties = frameworkProperties;
+    }
+
+    /**
+     * @return The requests the running instance of the cluster has received, oldest first.  Every request that reached
+     * it is there, including retries, replays and mirrored requests that the client never sees, up to the last 1000.
+     */
+    public List<ReceivedRequest> getReceivedRequests() {
+        return readJournal().getRequests();
+    }
+
+    /**
+     * @return How many requests the running instance of the cluster has received since it was started or its journal
+     * was cleared.
+     */
+    public long getHitCount() {
+        return readJournal().getReceived();
+    }
+
+    /**
+     * Verifies how many requests the running instance of the cluster has received since it was started or its journal
+     * was cleared.  nginx may send requests after it has answered the client, such as mirrored ones, so a count that
+     * is too low is read again for up to two seconds before the check fails.
+     *
+     * @param hits The number of requests expected.
+     * @return the <code>AppServiceCluster</code> object.
+     */
+    public AppServiceCluster expectHitCount(int hits) {
+        long deadline = System.currentTimeMillis() + HIT_COUNT_WAIT_MS;
+        long received = getHitCount();
+        while (received < hits && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            received = getHitCount();
+        }
+        assertThat("The number of requests received by the cluster " + clusterName + " did not match what we expected.",
+                received, is((long) hits));
+        return this;
+    }
+
+    /**
+     * Forgets the requests the running instance of the cluster has received, so that a test only sees its own.
+     *
+     * @return the <code>AppServiceCluster</code> object.
+     */
+    public AppServiceCluster clearReceivedRequests() {
+        checkRunning();
+        UpstreamUtil.clearJournal(runningPort, clusterName, runningProperties);
+        return this;
+    }
+
+    private ReceivedRequests readJournal() {
+        checkRunning();
+        return UpstreamUtil.readJournal(runningPort, clusterName, runningProperties);
+    }
+
+    private void checkRunning() {
+        if (runningProperties == null) {
+            throw new IllegalStateException("The cluster " + clusterName + " has not been started by a reverse proxy.");
+        }
+    }
 }
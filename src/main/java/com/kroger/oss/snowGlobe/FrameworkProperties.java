@@ -20,52 +20,142 @@ package com.kroger.oss.snowGlobe;
 
 import org.yaml.snakeyaml.Yaml;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.lang.String.valueOf;
 import static java.util.stream.Collectors.joining;
 
+/**
+ * The settings read from the snow-globe yml file.  Parsed files are cached for the whole JVM and are only read again
+ * when the modified time or size of the file changes.  <code>load</code> returns a shared, read-only instance for a
+ * file, while the constructors return a private copy.  Tests that need a different setting make a copy of either with
+ * <code>withProperty</code>.
+ */
 public class FrameworkProperties {
 
+    private static final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
     private static String overrideYmlConfigurationFile;
-    public Map<String, Object> properties;
+    private final Map<String, Object> properties;
+    private volatile byte[] localHostResolvedIp;
 
     public FrameworkProperties(String configurationFile) {
-        if (overrideYmlConfigurationFile != null) {
-            loadFile(overrideYmlConfigurationFile);
-        } else {
-            loadFile(configurationFile);
-        }
-        handleLoggingSettings();
+        this(new HashMap<>(snapshotFor(resolveConfigurationFile(configurationFile)).properties));
     }
 
     public FrameworkProperties() {
         this("snow-globe.yml");
     }
 
+    private FrameworkProperties(Map<String, Object> properties) {
+        this.properties = properties;
+        handleLoggingSettings();
+    }
+
+    /**
+     * @return Every setting read from the yml file, by the name it is written with.  The map can not be changed, use
+     * <code>withProperty</code> for a copy with a different setting.
+     */
+    public Map<String, Object> getProperties() {
+        return Collections.unmodifiableMap(properties);
+    }
+
+    /**
+     * Makes a copy of these properties with one setting changed.  This instance, and the shared instance of the file
+     * it was read from, are left as they are.
+     *
+     * @param key   The name of the setting, as it is written in the yml file.
+     * @param value The value of the setting.
+     * @return The copy with the setting changed.
+     */
+    public FrameworkProperties withProperty(String key, Object value) {
+        Map<String, Object> copy = new HashMap<>(properties);
+        copy.put(key, value);
+        return new FrameworkProperties(copy);
+    }
+
+    /**
+     * Gets the shared, read-only properties for the configuration file.  The file is parsed the first time it is
+     * asked for and again only if it has changed on disk since then.
+     *
+     * @param configurationFile The path to the yml configuration file.
+     * @return The shared properties for the file.
+     */
+    public static FrameworkProperties load(String configurationFile) {
+        return snapshotFor(resolveConfigurationFile(configurationFile)).shared;
+    }
+
+    public static FrameworkProperties load() {
+        return load("snow-globe.yml");
+    }
+
     public static void setConfigFile(String configFile) {
         overrideYmlConfigurationFile = configFile;
     }
 
+    private static String resolveConfigurationFile(String configurationFile) {
+        return (overrideYmlConfigurationFile != null) ? overrideYmlConfigurationFile : configurationFile;
+    }
+
     private void handleLoggingSettings() {
         if (properties.getOrDefault("snowglobe.log.output", "false").toString().equalsIgnoreCase("true")) {
             System.setProperty("org.apache.commons.logging.Log", "org.apache.commons.logging.impl.NoOpLog");
         }
     }
 
+    private static Snapshot snapshotFor(String path) {
+        File file = new File(path).getAbsoluteFile();
+        long lastModified = file.lastModified();
+        long size = file.length();
+        Snapshot current = snapshots.get(file.getPath());
+        if (current != null && current.isCurrent(lastModified, size)) {
+            return current;
+        }
+        Snapshot parsed = new Snapshot(lastModified, size, parseFile(file));
+        snapshots.put(file.getPath(), parsed);
+        return parsed;
+    }
+
     @SuppressWarnings("unchecked")
-    void loadFile(String path) {
-        try {
-            properties = (Map<String, Object>) new Yaml().load(new FileInputStream(path));
+    private static Map<String, Object> parseFile(File file) {
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            Map<String, Object> parsed = (Map<String, Object>) new Yaml().load(inputStream);
+            return Collections.unmodifiableMap(parsed != null ? parsed : new HashMap<>());
         } catch (FileNotFoundException e) {
             System.err.println("Unable to find 'snow-globe.yml'.  This is needed to run.");
             throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A parsed configuration file along with the modified time and size it had when it was parsed.
+     */
+    private static class Snapshot {
+        private final long lastModified;
+        private final long size;
+        private final Map<String, Object> properties;
+        private final FrameworkProperties shared;
+
+        Snapshot(long lastModified, long size, Map<String, Object> properties) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.properties = properties;
+            this.shared = new FrameworkProperties(properties);
+        }
+
+        boolean isCurrent(long lastModified, long size) {
+            return lastModified != 0 && this.lastModified == lastModified && this.size == size;
         }
     }
 
@@ -93,10 +183,49 @@ public class FrameworkProperties {
         return getStringValue("upstream.bounce.image", "krogersnowglobe/upstream-bounce-app2:latest");
     }
 
+    /**
+     * @return The number of node processes the upstream bounce container serves the clusters with.  Each one serves
+     * every cluster, so concurrent requests are spread over that many cores.
+     */
+    public int getUpstreamBounceWorkers() {
+        return getIntValue("upstream.bounce.workers", 1);
+    }
+
     public boolean logContainerOutput() {
         return getBooleanValue("snowglobe.log.output");
     }
 
+    /**
+     * @return If the upstream bounce container and its running clusters are kept between runs.
+     */
+    public boolean preserveUpstreamForPerformance() {
+        return getBooleanValue("upstream.preserveForPerformance");
+    }
+
+    /**
+     * @return If the upstream clusters are served by an <code>UpstreamServer</code> in the test JVM instead of the
+     * upstream bounce container.
+     */
+    public boolean useJvmUpstream() {
+        return getStringValue("upstream.server", "container").equalsIgnoreCase("jvm");
+    }
+
+    /**
+     * @return The address that the nginx container reaches the test JVM on when the upstream runs in the JVM.  The
+     * default, "host-gateway", is the docker host.
+     */
+    public String getJvmUpstreamHostAddress() {
+        return getStringValue("upstream.jvm.hostAddress", "host-gateway");
+    }
+
+    /**
+     * @return If every plain http cluster is served by one listener of the upstream bounce container, which picks the
+     * cluster by the Host header of the request.
+     */
+    public boolean useSharedUpstreamListener() {
+        return getBooleanValue("upstream.sharedListener");
+    }
+
     public boolean preserveTempFiles() {
         return getBooleanValue("snowglobe.preserve.temp.files");
     }
@@ -122,6 +251,15 @@ public class FrameworkProperties {
         return getList("nginx.volume.mounts");
     }
 
+    /**
+     * @return The volumes mounted into the upstream bounce container, in the "host path:container path" form of docker,
+     * for clusters that send a file as their response.
+     */
+    public List<String> getUpstreamBounceVolumes() {
+        List<String> volumes = getList("upstream.bounce.volumes");
+        return (volumes == null) ? Collections.emptyList() : volumes;
+    }
+
     @SuppressWarnings("unchecked")
     List<Map<String, Object>> getNginxPortMapping() {
         if (properties.containsKey("nginx.url.port.mapping")) {
@@ -195,10 +333,6 @@ public class FrameworkProperties {
     }
 
 
-    void setPropertyForTesting(String key, String value) {
-        properties.put(key, value);
-    }
-
     private int getIntValue(String key, int defaultValue) {
         try {
             return Integer.parseInt(properties.get(key).toString());
@@ -215,7 +349,52 @@ public class FrameworkProperties {
         return getIntValue("nginx.startup.PollingTimeMs", 200);
     }
 
+    /**
+     * Defines the maximum number of pooled connections that the http client keeps open to the reverse proxy.
+     *
+     * @return
+     *      The maximum number of pooled connections.  The default is 20.
+     */
+    public int getHttpMaxConnections() {
+        return getIntValue("snowGlobe.http.maxConnections", 20);
+    }
+
+    /**
+     * Defines how long an idle pooled connection to the reverse proxy is kept alive before it is closed.
+     *
+     * @return
+     *      The keep alive time in milliseconds.  The default is 30000.
+     */
+    public int getHttpKeepAliveMs() {
+        return getIntValue("snowGlobe.http.keepAliveMs", 30000);
+    }
+
+    /**
+     * Defines the largest response body that is kept in memory.  Larger bodies are written to a temporary file while
+     * they are read.
+     *
+     * @return
+     *      The size in bytes.  The default is 1048576 (1 MB).
+     */
+    public int getHttpMaxBodyInMemoryBytes() {
+        return getIntValue("snowGlobe.http.maxBodyInMemoryBytes", 1048576);
+    }
+
+    /**
+     * The ip address that every host name in a test request resolves to.  The lookup is done once and kept.
+     *
+     * @return The ip address to send test requests to.  The default is 127.0.0.1.
+     */
     public byte[] getLocalHostResolvedIp() {
+        byte[] resolvedIp = localHostResolvedIp;
+        if (resolvedIp == null) {
+            resolvedIp = lookupLocalHostResolvedIp();
+            localHostResolvedIp = resolvedIp;
+        }
+        return resolvedIp.clone();
+    }
+
+    private byte[] lookupLocalHostResolvedIp() {
         String rawResolvedIpEnvVariable = getStringValue("snowGlobe.localhost.resolvedIpEnvVariable");
         try {
             String resolvedIp = System.getenv(rawResolvedIpEnvVariable);
@@ -232,6 +411,13 @@ public class FrameworkProperties {
         return getBooleanValue("nginx.reload.onEachRun");
     }
 
+    /**
+     * @return The longest time to wait for the original nginx workers to retire after a reload.
+     */
+    public int getMaxNginxReloadTimeMs() {
+        return getIntValue("nginx.reload.maxTimeMs", 10000);
+    }
+
     public String[] getNginxReloadCommand() {
         List<String> list = getList("nginx.reload.customCommand");
         if(list != null && list.size() > 0) {
@@ -18,80 +18,93 @@
 
 package com.kroger.oss.snowGlobe;
 
+import com.kroger.oss.snowGlobe.environment.ConfigAnalysisCache;
+import com.kroger.oss.snowGlobe.environment.ConfigFileAnalysis;
 import com.kroger.oss.snowGlobe.environment.UpstreamAppInfo;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import static java.util.Arrays.stream;
 import static java.util.stream.Collectors.toList;
 
 public class NginxEnvironmentFileBuilder {
 
+    static final int SHARED_LISTENER_PORT = 10000;
+
     MessageDigest configurationMD5;
     FrameworkProperties frameworkProperties;
     Map<String, UpstreamAppInfo> upstreamServers = new HashMap<>();
+    private final Set<String> httpsClusters = new HashSet<>();
+    private byte[] upstreamDigest;
+    private final ConfigAnalysisCache analysisCache;
 
     public NginxEnvironmentFileBuilder(FrameworkProperties frameworkProperties) {
+        this(frameworkProperties, ConfigAnalysisCache.getShared());
+    }
+
+    NginxEnvironmentFileBuilder(FrameworkProperties frameworkProperties, ConfigAnalysisCache analysisCache) {
         this.frameworkProperties = frameworkProperties;
-        try {
-            configurationMD5 = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        this.analysisCache = analysisCache;
+        this.configurationMD5 = newMD5();
     }
 
     public void addUpstreamServer(String clusterName) {
         upstreamServers.put(clusterName.trim(), new UpstreamAppInfo());
+        upstreamDigest = null;
     }
 
     public String buildClusterFileContents() {
-        return upstreamServers.keySet()
-                .stream()
-                .map(serverName -> buildUpstreamServerEntry(serverName, upstreamServers.get(serverName)))
-                .reduce(String::concat)
-                .orElse("");
-    }
-
-
-    protected void readNginxConfFile(String confFile, String prefix) {
-        if (confFile.contains("*")) {
-            getWildCardFiles(confFile).stream().forEach(file -> readNginxConfFile(file, prefix));
-        } else {
-            readSingleNginxFile(confFile, prefix);
-        }
-    }
-
-    private void readSingleNginxFile(String confFile, String prefix) {
+        StringBuilder contents = new StringBuilder();
         try {
-            FileReader fileReader = new FileReader(confFile);
-            BufferedReader reader = new BufferedReader(fileReader);
-            while (reader.ready()) {
-                String line = reader.readLine();
-                configurationMD5.update(line.getBytes());
-                parseNginxFileLine(prefix, line);
-            }
-            fileReader.close();
-        } catch (Exception e) {
+            appendClusterFile(contents);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return contents.toString();
+    }
+
+    /**
+     * Streams the upstream file to the output, one cluster at a time and sorted by name, and hashes it in the same
+     * pass.  The output is not closed.
+     *
+     * @param out Where the upstream file is written.
+     * @throws IOException If the output can not be written.
+     */
+    public void writeClusterFile(OutputStream out) throws IOException {
+        DigestOutputStream hashedOut = new DigestOutputStream(out, newMD5());
+        Writer writer = new BufferedWriter(new OutputStreamWriter(hashedOut, StandardCharsets.UTF_8), 64 * 1024);
+        appendClusterFile(writer);
+        writer.flush();
+        upstreamDigest = hashedOut.getMessageDigest().digest();
     }
 
-    private void parseNginxFileLine(String prefix, String line) {
-        if (line.contains(prefix)) {
-            addEmptyCluster(line);
-        } else if (line.trim().startsWith("include ")) {
-            readNginxConfFile(getIncludeFileName(line), prefix);
+    private void appendClusterFile(Appendable out) throws IOException {
+        for (String serverName : new TreeSet<>(upstreamServers.keySet())) {
+            appendUpstreamServerEntry(out, serverName, upstreamServers.get(serverName));
         }
     }
 
-    protected String getIncludeFileName(String line) {
-        return correctFilePath(line.trim().substring(8).trim().replace(";", "").trim());
+    /**
+     * Adds the clusters that were found and the hash of every file that was read, in the order the files are
+     * included, so the configuration hash is the same no matter which thread read which file.
+     */
+    private void addScanResult(ScanResult result) {
+        result.digests.forEach(digest -> configurationMD5.update(digest.getBytes(StandardCharsets.UTF_8)));
+        result.clusters.forEach(this::addUpstreamServer);
     }
 
     protected String correctFilePath(String filePath) {
@@ -100,85 +113,93 @@ public class NginxEnvironmentFileBuilder {
                 frameworkProperties.getSourceDirectory() + File.separator + filePath;
     }
 
+    /**
+     * Gives every cluster its own port, starting at 10000 in order of the cluster names.  With a shared upstream
+     * listener, every plain http cluster is served on port 10000 and only the https clusters get ports of their own.
+     */
     public void computeUpstreamPorts() {
         SortedSet<String> keys = new TreeSet<>(upstreamServers.keySet());
-        int currentPort = 10000;
+        boolean sharedListener = frameworkProperties.useSharedUpstreamListener();
+        int currentPort = sharedListener ? SHARED_LISTENER_PORT + 1 : SHARED_LISTENER_PORT;
         for (String key : keys) {
             UpstreamAppInfo upstreamInstance = upstreamServers.get(key);
-            upstreamInstance.setPort(currentPort);
-            currentPort++;
-        }
-    }
-
-    /**
-     * Here, we expect each line to be in a specific format that gives us a hint as to which
-     * upstream servers the configuration will be looking for.  We just add an empty one so it doesn't
-     * complain and shutdown.
-     * <p>
-     * NOTE:  Any proxy_pass with a variable set will be ignored since that variable will be resolved at the request.
-     *
-     * @param line a line from the nginx.conf file that should be of the format:
-     *             "   proxy_pass http://[CLUSTER NAME]/..."
-     */
-    void addEmptyCluster(String line) {
-        String prefixRemoved = line.substring(line.indexOf("://") + 3);
-        String clusterName = prefixRemoved;
-        clusterName = handleClusterNameChar(prefixRemoved, clusterName, "/");
-        clusterName = handleClusterNameChar(prefixRemoved, clusterName, ";");
-        clusterName = handleClusterNameChar(prefixRemoved, clusterName, "/");
-        if (clusterName.contains("$")) {
-            return;
+            if (sharedListener && !httpsClusters.contains(key)) {
+                upstreamInstance.setPort(SHARED_LISTENER_PORT);
+            } else {
+                upstreamInstance.setPort(currentPort);
+                currentPort++;
+            }
         }
-        addUpstreamServer(clusterName);
-    }
-
-    private String handleClusterNameChar(String prefixRemoved, String clusterName, String character) {
-        return (prefixRemoved.indexOf(character) > 0) ?
-                prefixRemoved.substring(0, prefixRemoved.indexOf(character)) : clusterName;
+        upstreamDigest = null;
     }
 
     public void addUpstreamServer(AppServiceCluster appServiceCluster) {
         this.addUpstreamServer(appServiceCluster.getClusterName());
     }
 
+    /**
+     * Reads the configuration file, or every file under the directory, along with every file they include.  The
+     * files are read in parallel, see <code>IncludeScan</code>.
+     *
+     * @param envConfig The configuration file or directory.
+     */
     public void readEnvConfig(String envConfig) {
-        File envConfigFile = new File(envConfig);
+        List<IncludeScan> scans = new ArrayList<>();
+        findEnvConfigFiles(new File(envConfig), scans);
+        ForkJoinTask.invokeAll(scans);
+        scans.forEach(scan -> addScanResult(scan.join()));
+    }
+
+    private void findEnvConfigFiles(File envConfigFile, List<IncludeScan> scans) {
         if (envConfigFile.exists()) {
             if (envConfigFile.isDirectory() && envConfigFile.listFiles() != null) {
                 stream(envConfigFile.listFiles())
-                        .map(File::getAbsolutePath)
-                        .forEach(this::readEnvConfig);
+                        .sorted()
+                        .forEach(file -> findEnvConfigFiles(file, scans));
             } else {
-                readNginxConfFile(envConfig, "proxy_pass");
+                scans.add(new IncludeScan(this, envConfigFile.getAbsolutePath(), "proxy_pass", Collections.emptySet()));
             }
         }
     }
 
     String buildUpstreamServerEntry(String serverName, UpstreamAppInfo info) {
         StringBuilder sb = new StringBuilder();
-        sb.append("\n")
+        try {
+            appendUpstreamServerEntry(sb, serverName, info);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return sb.toString();
+    }
+
+    private void appendUpstreamServerEntry(Appendable out, String serverName, UpstreamAppInfo info) throws IOException {
+        out.append("\n")
                 .append("  upstream ").append(serverName).append(" { \n");
         if (frameworkProperties.defineUpstreamZones()) {
-            sb.append("    zone " + serverName + " 64k;\n");
+            out.append("    zone ").append(serverName).append(" 64k;\n");
         }
-        sb.append("    server ")
+        out.append("    server ")
                 .append(frameworkProperties.getUpstreamName())
                 .append(":")
-                .append(info.port())
+                .append(String.valueOf(info.port()))
                 .append(" max_fails=0")
                 .append(";\n")
                 .append("  }")
                 .append("\n")
                 .append("\n");
-        return sb.toString();
     }
 
+    /**
+     * @param wildcardInclude The include with a wildcard in the file name.
+     * @return The matching files, sorted by name like nginx includes them.
+     */
     public List<String> getWildCardFiles(String wildcardInclude) {
         String baseDirectory = wildcardInclude.contains("/") ? wildcardInclude.substring(0, wildcardInclude.lastIndexOf("/")) : "";
         String wildCard = wildcardInclude.substring(baseDirectory.length() + 1).replaceAll("\\*", "\\.\\*");
         try {
             return stream(new File(baseDirectory).list())
                     .filter(s -> s.matches(".*" + wildCard))
+                    .sorted()
                     .map(s -> baseDirectory  + "/" + s)
                     .collect(toList());
         } catch (Exception e) {
@@ -186,26 +207,44 @@ public class NginxEnvironmentFileBuilder {
         }
     }
 
-    FrameworkProperties getPropertiesForTest() {
-        return frameworkProperties;
-    }
-
+    /**
+     * @return The hash of the upstream file from when it was written, or from streaming it into the hash alone if it
+     * has not been written.
+     */
     private byte[] computeUpstreamHash() {
-        try {
-            MessageDigest upstreamHash = MessageDigest.getInstance("MD5");
-            upstreamHash.update(this.buildClusterFileContents().getBytes());
-            return upstreamHash.digest();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+        if (upstreamDigest == null) {
+            try {
+                writeClusterFile(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                    }
+                });
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
+        return upstreamDigest;
     }
 
     public String computeConfigurationHash() {
         try {
-            MessageDigest totalHash = MessageDigest.getInstance("MD5");
-            totalHash.update(configurationMD5.digest());
+            MessageDigest totalHash = newMD5();
+            // The configuration digest is copied so that the hash can be computed again.
+            totalHash.update(((MessageDigest) configurationMD5.clone()).digest());
             totalHash.update(computeUpstreamHash());
             return new BigInteger(1, totalHash.digest()).toString(16);
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static MessageDigest newMD5() {
+        try {
+            return MessageDigest.getInstance("MD5");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
@@ -223,6 +262,72 @@ public class NginxEnvironmentFileBuilder {
     public void registerUpstreams(AppServiceCluster[] clusters) {
         Arrays.stream(clusters).forEach(cluster -> {
             addUpstreamServer(cluster.getClusterName());
+            if (cluster.isUseHttps()) {
+                httpsClusters.add(cluster.getClusterName().trim());
+            }
         });
     }
+
+    /**
+     * Reads one configuration file, or the files matching a wildcard include, and then every file they include.  The
+     * included files are read by tasks of their own, so files that do not include each other are read at the same
+     * time and a scan takes as long as the longest chain of includes.  The results are joined in the order of the
+     * includes, which is the order the files would have been read on one thread.
+     */
+    private static class IncludeScan extends RecursiveTask<ScanResult> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient NginxEnvironmentFileBuilder builder;
+        private final String confFile;
+        private final String prefix;
+        private final Set<String> includedBy;
+
+        IncludeScan(NginxEnvironmentFileBuilder builder, String confFile, String prefix, Set<String> includedBy) {
+            this.builder = builder;
+            this.confFile = confFile;
+            this.prefix = prefix;
+            this.includedBy = includedBy;
+        }
+
+        @Override
+        protected ScanResult compute() {
+            ScanResult result = new ScanResult();
+            List<IncludeScan> includes;
+            if (confFile.contains("*")) {
+                includes = builder.getWildCardFiles(confFile).stream()
+                        .map(file -> new IncludeScan(builder, file, prefix, includedBy))
+                        .collect(toList());
+            } else {
+                File file = new File(confFile);
+                if (!file.isFile()) {
+                    throw new RuntimeException(new FileNotFoundException(confFile));
+                }
+                String path = file.getAbsolutePath();
+                if (includedBy.contains(path)) {
+                    throw new RuntimeException("The nginx configuration includes itself: " + path);
+                }
+                ConfigFileAnalysis analysis = builder.analysisCache.analyze(file, prefix);
+                result.digests.add(analysis.getDigest());
+                result.clusters.addAll(analysis.getClusters());
+                Set<String> chain = new HashSet<>(includedBy);
+                chain.add(path);
+                includes = analysis.getIncludes().stream()
+                        .map(include -> new IncludeScan(builder, builder.correctFilePath(include), prefix, chain))
+                        .collect(toList());
+            }
+            invokeAll(includes);
+            includes.forEach(include -> result.add(include.join()));
+            return result;
+        }
+    }
+
+    private static class ScanResult {
+        private final List<String> digests = new ArrayList<>();
+        private final Set<String> clusters = new LinkedHashSet<>();
+
+        void add(ScanResult included) {
+            digests.addAll(included.digests);
+            clusters.addAll(included.clusters);
+        }
+    }
 }
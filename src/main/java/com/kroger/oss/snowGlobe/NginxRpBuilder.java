@@ -18,19 +18,26 @@
 
 package com.kroger.oss.snowGlobe;
 
+import com.kroger.oss.snowGlobe.call.HttpClientPool;
+import com.kroger.oss.snowGlobe.environment.ConfigAnalysisCache;
 import com.kroger.oss.snowGlobe.util.ComposeUtility;
 import com.kroger.oss.snowGlobe.util.ContainerUtil;
 import com.kroger.oss.snowGlobe.util.UpstreamUtil;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import static java.util.Arrays.stream;
+import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toList;
 
 /**
@@ -41,26 +48,32 @@ import static java.util.stream.Collectors.toList;
 public class NginxRpBuilder {
 
     final AppServiceCluster[] clusters;
+    // The clusters as the test defined them, which are bound to the instances started for the copies in "clusters".
+    private final AppServiceCluster[] definedClusters;
     ComposeUtility composeUtility;
     PortMapper portMapper = new PortMapper();
     FrameworkProperties frameworkProperties;
     String configurationHash = null;
-    private String upstreamFileContents;
+    private HttpClientPool httpClientPool;
 
 
     /**
      * The constructor that will define the upstream servers file.  This will be populated later once the setup has been
-     * defined and the cluster started.
+     * defined and the cluster started.  The reverse proxy works on copies of the clusters, and once their instances
+     * are running, the clusters that were passed in are given the same ports and can read the journals of the
+     * instances.
      *
      * @param clusters Zero or more upstream clusters that will be used. These represent one or more instances in an upstream.
      */
     public NginxRpBuilder(String snowGlobeConfig, AppServiceCluster[] clusters) {
         if (clusters != null && clusters.length > 0) {
-            this.clusters = stream(clusters).map(AppServiceCluster::clone).collect(toList()).toArray(clusters);
+            this.clusters = stream(clusters).map(AppServiceCluster::clone).collect(toList()).toArray(new AppServiceCluster[0]);
+            this.definedClusters = clusters;
         } else {
             this.clusters = new AppServiceCluster[0];
+            this.definedClusters = this.clusters;
         }
-        frameworkProperties = new FrameworkProperties(snowGlobeConfig);
+        frameworkProperties = FrameworkProperties.load(snowGlobeConfig);
     }
 
 
@@ -83,9 +96,10 @@ public class NginxRpBuilder {
     }
 
     public NginxRpBuilder start() {
-        analyzeNginxConfig();
+        if (configurationHash == null || !getEnvironmentFile().exists()) {
+            analyzeNginxConfig();
+        }
         initializeUpstreamInstances();
-        buildEnvironmentFile();
         composeUtility = new ComposeUtility(this, frameworkProperties);
         composeUtility.start();
         return this;
@@ -95,6 +109,19 @@ public class NginxRpBuilder {
         portMapper.initMapping(frameworkProperties);
         UpstreamUtil.setupUpstreamService(frameworkProperties);
         UpstreamUtil.initializeUpstreamInstances(clusters, frameworkProperties);
+        bindClustersToInstances();
+    }
+
+    /**
+     * Gives the clusters of the test the ports of the instances that were started for their copies, and lets them read
+     * the journals of those instances.
+     */
+    void bindClustersToInstances() {
+        for (int i = 0; i < clusters.length; i++) {
+            clusters[i].bindToRunningInstance(clusters[i].getPort(), frameworkProperties);
+            definedClusters[i].assignPort(clusters[i].getPort());
+            definedClusters[i].bindToRunningInstance(clusters[i].getPort(), frameworkProperties);
+        }
     }
 
 
@@ -110,24 +137,13 @@ public class NginxRpBuilder {
     }
 
     private File getEnvironmentFile() {
-        final String buildDirectory = System.getProperty("user.dir") + File.separator + "build";
-        new File(buildDirectory).mkdirs();
-        return new File(new File(buildDirectory), "NGINX_ENV-" + getHashedPrefix() + ".conf");
+        return new File(getBuildDirectory(), "NGINX_ENV-" + getHashedPrefix() + ".conf");
     }
 
-    private void buildEnvironmentFile() {
-        File environmentFile = getEnvironmentFile();
-        if (!frameworkProperties.preserveTempFiles()) {
-            environmentFile.deleteOnExit();
-        }
-        try {
-            String contents = upstreamFileContents;
-            PrintWriter pw = new PrintWriter(environmentFile);
-            pw.write(contents);
-            pw.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    private File getBuildDirectory() {
+        File buildDirectory = new File(System.getProperty("user.dir") + File.separator + "build");
+        buildDirectory.mkdirs();
+        return buildDirectory;
     }
 
     private void analyzeNginxConfig() {
@@ -135,17 +151,38 @@ public class NginxRpBuilder {
         determineUpstreamClusters(builder);
         builder.registerUpstreams(clusters);
         builder.computeUpstreamPorts();
-        upstreamFileContents = builder.buildClusterFileContents();
-        configurationHash = builder.computeConfigurationHash();
+        buildEnvironmentFile(builder);
         builder.setUpstreamPorts(clusters);
     }
 
+    /**
+     * Streams the upstream file to a temporary file while it is hashed, since its name depends on the hash.  It is
+     * then moved into place in one step, so a reverse proxy of another test JVM that uses the same file never sees
+     * it half written.
+     */
+    private void buildEnvironmentFile(NginxEnvironmentFileBuilder builder) {
+        try {
+            Path tempFile = Files.createTempFile(getBuildDirectory().toPath(), "NGINX_ENV-", ".tmp");
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                builder.writeClusterFile(out);
+            }
+            configurationHash = builder.computeConfigurationHash();
+            File environmentFile = getEnvironmentFile();
+            Files.move(tempFile, environmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (!frameworkProperties.preserveTempFiles()) {
+                environmentFile.deleteOnExit();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
     private void determineUpstreamClusters(NginxEnvironmentFileBuilder builder) {
         if (hasFilesToScan()) {
             frameworkProperties.getFilesToScan().stream()
                     .forEach(additionalFile ->
                             builder.readEnvConfig(System.getProperty("user.dir") + additionalFile));
+            ConfigAnalysisCache.getShared().save();
         }
     }
 
@@ -168,6 +205,11 @@ public class NginxRpBuilder {
         argsMap.put("restart", "always");
         argsMap.put("ports", buildComposePorts());
         argsMap.put("command", getStartCommand());
+        if (frameworkProperties.useJvmUpstream()) {
+            // The upstream name resolves to the test JVM that serves the clusters.
+            argsMap.put("extra_hosts", singletonList(frameworkProperties.getUpstreamName() + ":" +
+                    frameworkProperties.getJvmUpstreamHostAddress()));
+        }
         return composeMap;
     }
 
@@ -237,11 +279,36 @@ public class NginxRpBuilder {
         portMapper.useExistingPorts(existingPorts);
     }
 
+    /**
+     * The pooled http client that is shared by every request sent to this reverse proxy.  The pool is created the
+     * first time it is needed and is closed when the JVM shuts down.
+     *
+     * @return The http client pool for this reverse proxy.
+     */
+    public synchronized HttpClientPool getHttpClientPool() {
+        if (httpClientPool == null || httpClientPool.isClosed()) {
+            httpClientPool = new HttpClientPool(frameworkProperties);
+        }
+        return httpClientPool;
+    }
+
+    /**
+     * Closes all pooled connections to this reverse proxy.  A new pool will be created if more calls are made.
+     */
+    public synchronized void closeConnections() {
+        if (httpClientPool != null) {
+            httpClientPool.close();
+            httpClientPool = null;
+        }
+    }
+
     /**
      * Causes the nginx instance running to reload.  This can be useful for when Nginx holds state for calls
      * or upstreams like active health checks.
+     *
+     * @return How long it took until the new configuration was serving requests.
      */
-    public void reloadNginx() {
-        composeUtility.reload();
+    public Duration reloadNginx() {
+        return composeUtility.reload();
     }
 }
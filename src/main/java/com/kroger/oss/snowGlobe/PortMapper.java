@@ -18,50 +18,59 @@
 
 package com.kroger.oss.snowGlobe;
 
-import java.io.IOException;
-import java.net.ServerSocket;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static java.lang.Integer.parseInt;
 import static java.lang.String.valueOf;
 import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toMap;
 
+/**
+ * Maps the url of a test request to the port on the host that forwards to the matching nginx port.  The host ports are
+ * picked by Docker when the container starts and are read back from the running container, so two test JVMs can never
+ * be handed the same free port.  The patterns from the yaml file are compiled once into an ordered routing table and
+ * the first pattern that matches the whole url wins.  Matchers are reused per thread and the route for each url is
+ * remembered, so repeated lookups do not allocate.
+ */
 class PortMapper {
 
-    private List<String> mappingOrder = new ArrayList<>();
+    static final int MAX_REMEMBERED_URLS = 4096;
+
+    private volatile Route[] routes = new Route[0];
+    private Set<Integer> nginxPorts = new LinkedHashSet<>();
     private Map<Integer, Integer> nginxToDockerPortMap = new HashMap<>();
-    private Map<String, Integer> urlRegexToNginxPortMap = new HashMap<>();
-
-    public static int getAvailablePort() {
-        try {
-            ServerSocket serverSocket = new ServerSocket(0);
-            int localPort = serverSocket.getLocalPort();
-            serverSocket.close();
-            return localPort;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
+    private final Map<String, Route> routeByUrl = new ConcurrentHashMap<>();
+    private final ThreadLocal<Matcher[]> matchers = new ThreadLocal<>();
 
     Integer getMappedPortForUrl(String url) {
-        return nginxToDockerPortMap.get(getNginxPort(url));
+        return getRoute(url).dockerPort;
     }
 
+    /**
+     * Only the nginx ports are published, which lets Docker choose a free host port for each one when it binds them.
+     *
+     * @return The ports for the compose file.
+     */
     List<String> getComposePortMapping() {
-        return nginxToDockerPortMap.entrySet().stream()
-                .map(entry -> entry.getValue() + ":" + entry.getKey())
+        return nginxPorts.stream()
+                .map(String::valueOf)
                 .collect(toList());
     }
 
     void initMapping(FrameworkProperties frameworkProperties) {
-        List<Map<String, Object>> yamlMapping = frameworkProperties.getNginxPortMapping();
-        yamlMapping.forEach(mapping -> mappingOrder.add(valueOf(getActualMappingForPort(mapping).get("pattern"))));
-        urlRegexToNginxPortMap = yamlMapping.stream()
-                .collect(toMap(mapping -> valueOf(getActualMappingForPort(mapping).get("pattern")),
-                        mapping -> parseInt(valueOf(getActualMappingForPort(mapping).get("port")))));
-        nginxToDockerPortMap = urlRegexToNginxPortMap.entrySet().stream()
-                .collect(toMap(Map.Entry::getValue, entry -> getAvailablePort()));
+        List<Route> table = new ArrayList<>();
+        Set<Integer> ports = new LinkedHashSet<>();
+        for (Map<String, Object> mapping : frameworkProperties.getNginxPortMapping()) {
+            Map<String, Object> actualMapping = getActualMappingForPort(mapping);
+            int nginxPort = parseInt(valueOf(actualMapping.get("port")));
+            ports.add(nginxPort);
+            table.add(new Route(Pattern.compile(valueOf(actualMapping.get("pattern"))), nginxPort));
+        }
+        nginxPorts = ports;
+        routes = table.toArray(new Route[0]);
+        resolveDockerPorts();
     }
 
     @SuppressWarnings("unchecked")
@@ -72,22 +81,72 @@ class PortMapper {
     }
 
     /**
-     * Determines the Nginx port to use for the incoming call.  This looks at the array of ports and
-     * urls and finds the matching ones and then chooses the first one defined in the yaml file.
+     * Determines the route to use for the incoming call.  The whole url is remembered rather than just the scheme and
+     * host because the patterns in the yaml file are free to match on the path as well.
      *
      * @param url The url to test
-     * @return The first matching url in the list of urls to test.
+     * @return The first route defined in the yaml file whose pattern matches the url.
      */
-    private Integer getNginxPort(String url) {
-        return urlRegexToNginxPortMap.entrySet().stream()
-                .filter(entry -> url.matches(entry.getKey()))
-                .sorted(Comparator.comparingInt(o -> mappingOrder.indexOf(o.getKey())))
-                .findFirst()
-                .orElseThrow(() -> new RuntimeException("Unable to map url request: \"" + url + "\" to known port in the yaml configuration."))
-                .getValue();
+    private Route getRoute(String url) {
+        Route route = routeByUrl.get(url);
+        if (route == null) {
+            route = findFirstMatch(url);
+            if (routeByUrl.size() >= MAX_REMEMBERED_URLS) {
+                routeByUrl.clear();
+            }
+            routeByUrl.put(url, route);
+        }
+        return route;
+    }
+
+    private Route findFirstMatch(String url) {
+        Route[] table = routes;
+        Matcher[] threadMatchers = getMatchers(table);
+        for (int i = 0; i < table.length; i++) {
+            if (threadMatchers[i].reset(url).matches()) {
+                return table[i];
+            }
+        }
+        throw new RuntimeException("Unable to map url request: \"" + url + "\" to known port in the yaml configuration.");
+    }
+
+    private Matcher[] getMatchers(Route[] table) {
+        Matcher[] threadMatchers = matchers.get();
+        if (threadMatchers == null || threadMatchers.length != table.length
+                || (table.length > 0 && threadMatchers[0].pattern() != table[0].pattern)) {
+            threadMatchers = new Matcher[table.length];
+            for (int i = 0; i < table.length; i++) {
+                threadMatchers[i] = table[i].pattern.matcher("");
+            }
+            matchers.set(threadMatchers);
+        }
+        return threadMatchers;
     }
 
     public void useExistingPorts(Map<Integer, Integer> existingPorts) {
         nginxToDockerPortMap = existingPorts;
+        resolveDockerPorts();
+    }
+
+    private void resolveDockerPorts() {
+        for (Route route : routes) {
+            route.dockerPort = nginxToDockerPortMap.get(route.nginxPort);
+        }
+        routeByUrl.clear();
+    }
+
+    /**
+     * One entry of the routing table: a url pattern and the nginx port it is sent to.  The host port is kept already
+     * boxed so that returning it does not allocate.
+     */
+    private static class Route {
+        private final Pattern pattern;
+        private final int nginxPort;
+        private volatile Integer dockerPort;
+
+        Route(Pattern pattern, int nginxPort) {
+            this.pattern = pattern;
+            this.nginxPort = nginxPort;
+        }
     }
 }
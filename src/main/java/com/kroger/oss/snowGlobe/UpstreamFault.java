@@ -0,0 +1,155 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe;
+
+/**
+ * A fault that a fake upstream cluster injects into its responses, to test how the reverse proxy fails over with
+ * settings such as <code>proxy_next_upstream</code>, <code>proxy_read_timeout</code> and <code>max_fails</code>.  A
+ * fault applies to every path of the cluster unless it is limited with <code>onPaths</code>, and to every request
+ * unless it is given a probability.  Faults are added to a cluster with <code>AppServiceCluster.withFault</code>.
+ */
+public class UpstreamFault {
+
+    public enum Type {
+        /**
+         * The connection is reset without a response.
+         */
+        RESET_CONNECTION,
+        /**
+         * The status line and headers are sent, then nothing until the connection is closed after a time.
+         */
+        STALL_AFTER_HEADERS,
+        /**
+         * The headers promise the whole body, but the connection is closed part way through it.
+         */
+        TRUNCATE_BODY,
+        /**
+         * The status line and each header are sent one at a time, with a delay before each of them.
+         */
+        SLOW_HEADERS
+    }
+
+    private final Type type;
+    private final int stallMs;
+    private final int bodyBytes;
+    private final int headerDelayMs;
+    private String paths;
+    private double probability = 1.0;
+
+    private UpstreamFault(Type type, int stallMs, int bodyBytes, int headerDelayMs) {
+        this.type = type;
+        this.stallMs = stallMs;
+        this.bodyBytes = bodyBytes;
+        this.headerDelayMs = headerDelayMs;
+    }
+
+    /**
+     * @return A fault that resets the connection before any of the response is sent.
+     */
+    public static UpstreamFault resetConnection() {
+        return new UpstreamFault(Type.RESET_CONNECTION, 0, 0, 0);
+    }
+
+    /**
+     * @param stallMs How long the connection is held open after the headers before it is closed.
+     * @return A fault that sends the headers and then stalls.
+     */
+    public static UpstreamFault stallAfterHeaders(int stallMs) {
+        if (stallMs <= 0) {
+            throw new IllegalArgumentException("The stall must be at least a millisecond, not " + stallMs + ".");
+        }
+        return new UpstreamFault(Type.STALL_AFTER_HEADERS, stallMs, 0, 0);
+    }
+
+    /**
+     * @param bodyBytes How many bytes of the body are sent before the connection is closed.  The body is always cut
+     *                  short by at least one byte.
+     * @return A fault that sends only the start of the body.
+     */
+    public static UpstreamFault truncateBody(int bodyBytes) {
+        if (bodyBytes < 0) {
+            throw new IllegalArgumentException("The bytes of body to send can not be negative.");
+        }
+        return new UpstreamFault(Type.TRUNCATE_BODY, 0, bodyBytes, 0);
+    }
+
+    /**
+     * @param headerDelayMs The delay before the status line and before each header.
+     * @return A fault that trickles the headers.
+     */
+    public static UpstreamFault slowHeaders(int headerDelayMs) {
+        if (headerDelayMs <= 0) {
+            throw new IllegalArgumentException("The header delay must be at least a millisecond, not " + headerDelayMs + ".");
+        }
+        return new UpstreamFault(Type.SLOW_HEADERS, 0, 0, headerDelayMs);
+    }
+
+    /**
+     * A builder method that limits the fault to some paths of the cluster.
+     *
+     * @param paths The paths, with the same wildcards and parameters as <code>AppServiceCluster.withExpectedPaths</code>.
+     * @return the <code>UpstreamFault</code> object.
+     */
+    public UpstreamFault onPaths(String... paths) {
+        this.paths = String.join("|", paths);
+        return this;
+    }
+
+    /**
+     * A builder method that injects the fault into only some of the requests.
+     *
+     * @param probability The chance, from 0 to 1, that a request gets the fault.
+     * @return the <code>UpstreamFault</code> object.
+     */
+    public UpstreamFault withProbability(double probability) {
+        if (probability < 0 || probability > 1) {
+            throw new IllegalArgumentException("The probability must be from 0 to 1, not " + probability + ".");
+        }
+        this.probability = probability;
+        return this;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getStallMs() {
+        return stallMs;
+    }
+
+    public int getBodyBytes() {
+        return bodyBytes;
+    }
+
+    public int getHeaderDelayMs() {
+        return headerDelayMs;
+    }
+
+    /**
+     * @return The paths the fault is limited to, or null for every path.
+     */
+    public String getPaths() {
+        return paths;
+    }
+
+    public double getProbability() {
+        return probability;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.call;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Holds the outcome of every request in a batch made by <code>CallUtility.makeAll</code>.  A request either has a
+ * <code>ResponseVerification</code> or the error that stopped the call.  Assertions are run against every response
+ * and all failures are reported together instead of stopping at the first one.
+ */
+public class BatchVerification {
+
+    private final List<Result> results;
+
+    BatchVerification(List<Result> results) {
+        this.results = Collections.unmodifiableList(results);
+    }
+
+    /**
+     * @return The number of requests that were made in the batch.
+     */
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * @return The responses of every request that completed, in the order the requests were given.
+     */
+    public List<ResponseVerification> getResponses() {
+        return results.stream()
+                .filter(result -> result.response != null)
+                .map(result -> result.response)
+                .collect(toList());
+    }
+
+    /**
+     * @return The errors of every request that could not be made, in the order the requests were given.
+     */
+    public List<Throwable> getFailures() {
+        return results.stream()
+                .filter(result -> result.error != null)
+                .map(result -> result.error)
+                .collect(toList());
+    }
+
+    /**
+     * Fails if any request in the batch could not be made.
+     *
+     * @return this object.
+     */
+    public BatchVerification expectNoFailures() {
+        return andExpectEach(response -> {
+        });
+    }
+
+    /**
+     * Runs the assertions against every response in the batch.  Every request is checked and a single assertion error
+     * is thrown at the end that lists each request that failed.
+     *
+     * @param assertions The assertions to make on each response.
+     * @return this object.
+     */
+    public BatchVerification andExpectEach(Consumer<ResponseVerification> assertions) {
+        return andExpectEach((request, response) -> assertions.accept(response));
+    }
+
+    /**
+     * Runs the assertions against every request and response pair in the batch.  This allows a routing matrix to look
+     * up the expectation for each request.  Every request is checked and a single assertion error is thrown at the end
+     * that lists each request that failed.
+     *
+     * @param assertions The assertions to make on each request and response.
+     * @return this object.
+     */
+    public BatchVerification andExpectEach(BiConsumer<TestRequest, ResponseVerification> assertions) {
+        List<String> failures = new ArrayList<>();
+        List<Throwable> causes = new ArrayList<>();
+        for (Result result : results) {
+            Throwable failure = result.error;
+            if (failure == null) {
+                try {
+                    assertions.accept(result.request, result.response);
+                } catch (AssertionError | RuntimeException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                failures.add(result.request.getMethod() + " " + result.request.getPrettyUrl() + ": " + failure.getMessage());
+                causes.add(failure);
+            }
+        }
+        if (!failures.isEmpty()) {
+            AssertionError error = new AssertionError(failures.size() + " of " + results.size()
+                    + " requests failed:\n\t" + String.join("\n\t", failures));
+            causes.forEach(error::addSuppressed);
+            throw error;
+        }
+        return this;
+    }
+
+    static class Result {
+        final TestRequest request;
+        final ResponseVerification response;
+        final Throwable error;
+
+        Result(TestRequest request, ResponseVerification response, Throwable error) {
+            this.request = request;
+            this.response = response;
+            this.error = error;
+        }
+    }
+}
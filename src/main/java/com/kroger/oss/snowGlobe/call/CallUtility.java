@@ -18,29 +18,33 @@
 
 package com.kroger.oss.snowGlobe.call;
 
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.kroger.oss.snowGlobe.FrameworkProperties;
 import org.apache.http.HttpEntity;
-import org.apache.http.client.HttpRequestRetryHandler;
-import org.apache.http.client.config.CookieSpecs;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.ParseException;
 import org.apache.http.client.methods.*;
-import org.apache.http.config.Registry;
-import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.socket.PlainConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.nio.charset.UnsupportedCharsetException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.stream.Collectors.toList;
 
 /**
  * This is a collections of functions that allows the user to make a call based on the <code>TestRequest</code> class.
@@ -48,15 +52,27 @@ import java.net.InetAddress;
 public class CallUtility {
 
 
-    private static FrameworkProperties getProperties() {
-        return new FrameworkProperties();
+    private static HttpClientPool defaultClientPool;
+    private static ExecutorService requestExecutor;
+
+    /**
+     * The pool used for requests that were not sent <code>to</code> a reverse proxy.  This is built from the default
+     * configuration the first time it is needed.
+     *
+     * @return The shared default http client pool.
+     */
+    static synchronized HttpClientPool getDefaultClientPool() {
+        if (defaultClientPool == null || defaultClientPool.isClosed()) {
+            defaultClientPool = new HttpClientPool(FrameworkProperties.load());
+        }
+        return defaultClientPool;
     }
 
     /**
      * This is the main method used to execute a call to the nginx reverse proxy in the testing framework.  This method
-     * will build the custom http client that is set to route all DNS traffic to 127.0.0.1.  This will also handle
-     * the response and response body, returning it in a <code>ResponseVerification</code> class, allowing assertions
-     * to be made to it.
+     * will use the pooled http client of the reverse proxy that is set to route all DNS traffic to 127.0.0.1.  This will
+     * also handle the response and response body, returning it in a <code>ResponseVerification</code> class, allowing
+     * assertions to be made to it.
      *
      * @param testRequest This is the test request that has all of the information about the call, headers, and body of the request.
      *                    This object should change the protocol to http and properly add in the port number to match to the correct
@@ -65,139 +81,161 @@ public class CallUtility {
      * com.kroger.snowGlobe.integration.tests.tests to assert specific things about the request translation, and the response translation.
      */
     public static ResponseVerification make(TestRequest testRequest) {
-        CloseableHttpResponse rawResponse = makeRequest(testRequest, buildHttpClient());
+        HttpClientPool pool = getHttpClientPool(testRequest);
+        CloseableHttpClient httpClient = pool.getClient();
+        HttpClientContext context = HttpClientContext.create();
+        RequestTimings timings = RequestTimings.start(context);
+        CloseableHttpResponse rawResponse = execute(httpClient, buildRequest(testRequest), context);
+        CapturedBody body;
+        try {
+            long bodyStart = System.nanoTime();
+            body = captureBody(rawResponse.getEntity(), pool.getFrameworkProperties().getHttpMaxBodyInMemoryBytes());
+            timings.bodyRead(System.nanoTime() - bodyStart);
+        } finally {
+            close(rawResponse);
+        }
         CloseableHttpResponse healthCheckResponse = null;
         if (null != testRequest.getHealthCheckUrl()) {
-            healthCheckResponse = makeGetRequest(testRequest, buildHttpClient());
+            healthCheckResponse = makeGetRequest(testRequest, httpClient);
+            // Only the status is verified, so release the connection back to the pool right away.
+            close(healthCheckResponse);
         }
-        String jsonResponse = getResponseBody(rawResponse.getEntity());
-        ResponseBody responseBody = buildResponseBody(jsonResponse);
-        return new ResponseVerification(responseBody, rawResponse, healthCheckResponse, jsonResponse, testRequest);
+        ResponseBody responseBody = ResponseBody.fromUpstreamResponse(body);
+        return new ResponseVerification(responseBody, rawResponse, healthCheckResponse, body, testRequest, timings);
     }
 
     /**
-     * Builds a custom Http client with custom DNS resolution, disabling persistent cookie stores and with custom
-     * timeout values.
+     * Makes the call on the shared request executor and completes the future with the response once it has been read.
      *
-     * @return An http client to be used to execute test requests to nginx.
+     * @param testRequest The request to make.
+     * @return A future for the response object wrapped in the <code>ResponseVerification</code> object.
      */
-    static CloseableHttpClient buildHttpClient() {
-        return HttpClients.custom()
-                .setConnectionManager(buildConnectionManager())
-                .setDefaultRequestConfig(RequestConfig.custom()
-                        // Waiting for a connection from connection manager
-                        .setConnectionRequestTimeout(100)
-                        // Waiting for connection to establish
-                        .setConnectTimeout(100)
-                        .setExpectContinueEnabled(false)
-                        // Waiting for data
-                        .setSocketTimeout(200)
-                        // Do not allow cookies to be stored between calls.
-                        .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
-                        .build())
-                .setRetryHandler(buildRetryHandler())
-                .disableRedirectHandling().build();
+    public static CompletableFuture<ResponseVerification> makeAsync(TestRequest testRequest) {
+        return CompletableFuture.supplyAsync(() -> make(testRequest), getRequestExecutor());
     }
 
     /**
-     * Builds a custom connection manager that will map all DNS entries to the 127.0.0.1 domain.  This used in
-     * conjunction with the random ports for the docker compose RP entry allow for all traffic to be properly
-     * routed.
+     * Makes every request concurrently on the shared request executor over the pooled connections and waits for all
+     * of them to finish.  A request that fails does not stop the others; its error is kept in the result so that all
+     * failures can be reported together.
      *
-     * @return A connection manager that resolves all DNS names to 127.0.0.1
+     * @param testRequests The requests to make.
+     * @return The result of every request in the same order as the requests were given.
      */
-    static BasicHttpClientConnectionManager buildConnectionManager() {
-        return new BasicHttpClientConnectionManager(getDefaultRegistry(), null,
-                null, host -> new InetAddress[]{InetAddress.getByAddress(getResolvedIpAddress())});
+    public static BatchVerification makeAll(Collection<TestRequest> testRequests) {
+        List<TestRequest> requests = new ArrayList<>(testRequests);
+        List<CompletableFuture<ResponseVerification>> futures = requests.stream()
+                .map(CallUtility::makeAsync)
+                .collect(toList());
+        List<BatchVerification.Result> results = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            results.add(awaitResult(requests.get(i), futures.get(i)));
+        }
+        return new BatchVerification(results);
     }
 
-    private static byte[] getResolvedIpAddress() {
-        return getProperties().getLocalHostResolvedIp();
+    private static BatchVerification.Result awaitResult(TestRequest request, CompletableFuture<ResponseVerification> future) {
+        try {
+            return new BatchVerification.Result(request, future.get(), null);
+        } catch (ExecutionException e) {
+            return new BatchVerification.Result(request, null, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new BatchVerification.Result(request, null, e);
+        }
+    }
+
+    /**
+     * The executor used for asynchronous calls.  It is bounded to the size of the connection pool so that no more
+     * calls are in flight than there are pooled connections.  The threads are daemon threads so they never keep the
+     * JVM alive.
+     *
+     * @return The shared request executor.
+     */
+    static synchronized ExecutorService getRequestExecutor() {
+        if (requestExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            requestExecutor = Executors.newFixedThreadPool(FrameworkProperties.load().getHttpMaxConnections(), runnable -> {
+                Thread thread = new Thread(runnable, "snow-globe-call-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return requestExecutor;
     }
 
     /**
-     * A copy of the BasicHttpClientConnectionManager default registry to be able to create a custom connection
-     * manager.  The implementation in the BasicHttpClientConnectionManager is private and can't be used so we
-     * made a copy of it.
+     * Finds the pooled client to use for the request.  Requests that are sent to a reverse proxy share the pool of
+     * that reverse proxy, all others use the default pool.
      *
-     * @return the default registry for creating sockets based on the protocol.
+     * @param testRequest The request that will be made.
+     * @return The pool whose client makes the call.
      */
-    static Registry<ConnectionSocketFactory> getDefaultRegistry() {
-        return RegistryBuilder.<ConnectionSocketFactory>create()
-                .register("http", PlainConnectionSocketFactory.getSocketFactory())
-                .register("https", SSLConnectionSocketFactory.getSocketFactory())
-                .build();
+    static HttpClientPool getHttpClientPool(TestRequest testRequest) {
+        HttpClientPool pool = testRequest.getHttpClientPool();
+        return (pool != null) ? pool : getDefaultClientPool();
     }
 
     /**
-     * Maps expected JSON formatted response from fake upstream server to the ResponseBody class.
+     * Builds a separate pool to generate load with the same settings as the pool of the request, except that failed
+     * calls are not retried and the timeouts are the given ones.  The caller closes the pool when the run is done.
      *
-     * @param body String representation of the JSON response.
-     * @return The ResponseBody object representing the JSON response.
+     * @param testRequest    One of the requests of the load run.
+     * @param connections    The number of threads that will send requests at the same time.
+     * @param connectTimeout The longest time to wait for a connection to be established.
+     * @param readTimeout    The longest time to wait for data from nginx.
+     * @return The pool to prepare the requests of the run with.
      */
-    static ResponseBody buildResponseBody(String body) {
-        ObjectMapper mapper = new ObjectMapper();
-        ResponseBody res;
+    public static HttpClientPool buildLoadClientPool(TestRequest testRequest, int connections, Duration connectTimeout,
+                                                     Duration readTimeout) {
+        return HttpClientPool.forLoad(getHttpClientPool(testRequest).getFrameworkProperties(), connections,
+                (int) connectTimeout.toMillis(), (int) readTimeout.toMillis());
+    }
+
+    /**
+     * Closes the response, consuming any remaining content so that the connection goes back to the pool.
+     *
+     * @param response The response to close.
+     */
+    static void close(CloseableHttpResponse response) {
         try {
-            res = mapper.readValue(body, ResponseBody.class);
-        } catch (JsonParseException jpe) {
-            res = ResponseBody.buildDirectResponseFromRp(body);
+            EntityUtils.consume(response.getEntity());
+            response.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return res;
     }
 
     /**
-     * Maps out to make the call based on the request HTTP method.
+     * Builds the call based on the request HTTP method with the headers and body of the test request.
      *
-     * @param testRequest The request to make.
-     * @param httpclient  The http client to use to execute that action.
-     * @return The response that was given from the http client.
+     * @param testRequest The request information used to build the call.
+     * @return The call that can be executed by the http client.
      */
-    static CloseableHttpResponse makeRequest(TestRequest testRequest, CloseableHttpClient httpclient) {
+    static HttpRequestBase buildRequest(TestRequest testRequest) {
+        HttpRequestBase request;
         switch (testRequest.getMethod()) {
             case "POST":
-                return makePostRequest(testRequest, httpclient);
+                HttpPost httpPost = new HttpPost(testRequest.getUrl());
+                if (testRequest.getBody() != null) {
+                    httpPost.setEntity(getHttpEntity(testRequest));
+                }
+                request = httpPost;
+                break;
             case "GET":
-                return makeGetRequest(testRequest, httpclient);
+                request = new HttpGet(testRequest.getUrl());
+                break;
             case "PUT":
-                return makePutRequest(testRequest, httpclient);
+                request = new HttpPut(testRequest.getUrl());
+                break;
             case "DELETE":
-                return makeDeleteRequest(testRequest, httpclient);
+                request = new HttpDelete(testRequest.getUrl());
+                break;
             default:
                 throw new RuntimeException("Unable to make request with action: " + testRequest.getMethod());
         }
-    }
-
-    /**
-     * Makes a delete request to the client based on the input from the testRequest object though the custom connection
-     * setup for the call.
-     *
-     * @param testRequest The request information used to make the request.
-     * @param httpclient  The calling object to invoke.
-     * @return A response object that we will receive.  In this framework, this is the response that is given back from
-     * the Nginx Reverse Proxy.
-     */
-    static CloseableHttpResponse makeDeleteRequest(TestRequest testRequest, CloseableHttpClient httpclient) {
-        HttpDelete delete = new HttpDelete(testRequest.getUrl());
-        setHeaders(delete, testRequest);
-        return execute(httpclient, delete);
-    }
-
-    /**
-     * Makes a put request to the client based on the input from the testRequest object though the custom connection
-     * setup for the call.
-     *
-     * @param testRequest The request information used to make the request.
-     * @param httpclient  The calling object to invoke.
-     * @return A response object that we will receive.  In this framework, this is the response that is given back from
-     * the Nginx Reverse Proxy.
-     */
-    static CloseableHttpResponse makePutRequest(TestRequest testRequest, CloseableHttpClient httpclient) {
-        HttpPut put = new HttpPut(testRequest.getUrl());
-        setHeaders(put, testRequest);
-        return execute(httpclient, put);
+        setHeaders(request, testRequest);
+        return request;
     }
 
     /**
@@ -215,24 +253,6 @@ public class CallUtility {
         return execute(httpclient, httpGet);
     }
 
-    /**
-     * Makes a post request to the client based on the input from the testRequest object though the custom connection
-     * setup for the call.
-     *
-     * @param testRequest The request information used to make the request.
-     * @param httpclient  The calling object to invoke.
-     * @return A response object that we will receive.  In this framework, this is the response that is given back from
-     * the Nginx Reverse Proxy.
-     */
-    static CloseableHttpResponse makePostRequest(TestRequest testRequest, CloseableHttpClient httpclient) {
-        HttpPost httpPost = new HttpPost(testRequest.getUrl());
-        setHeaders(httpPost, testRequest);
-        if (testRequest.getBody() != null) {
-            httpPost.setEntity(getHttpEntity(testRequest));
-        }
-        return execute(httpclient, httpPost);
-    }
-
     /**
      * Sets incoming headers on the call.
      *
@@ -245,33 +265,6 @@ public class CallUtility {
         }
     }
 
-    /**
-     * Builds a custom retry handler that will retry a request up to 20 times if the call fails to connect to the
-     * destination.  This is used since startup of nginx and other upstream servers are asynchronous.  This smooths
-     * over the "bumpiness" of getting everything started up before we make a call.
-     *
-     * @return The retry handler that will be used by the custom http client.
-     */
-    static HttpRequestRetryHandler buildRetryHandler() {
-        final int maxRetries = calcMaxRetries();
-        return (exception, executionCount, context) -> {
-            if (executionCount > maxRetries) {
-                // Do not retry if over max retry count
-                return false;
-            }
-            try {
-                Thread.sleep(getProperties().getMaxNginxStartupPollingTimeMs());
-            } catch (InterruptedException e) {
-            }
-            // Retry if the server dropped connection on us
-            return true;
-        };
-    }
-
-    private static int calcMaxRetries() {
-        return getProperties().getMaxNginxStartupTime() * 1000 / getProperties().getMaxNginxStartupPollingTimeMs();
-    }
-
     /**
      * Gets the UTF-8 body from the request object.  This is used to set the body of the request for POSTs.
      *
@@ -296,8 +289,20 @@ public class CallUtility {
      * @return The response from action.  All errors will bubble up as a runtime exception.
      */
     static CloseableHttpResponse execute(CloseableHttpClient client, HttpUriRequest action) {
+        return execute(client, action, null);
+    }
+
+    /**
+     * Executes the call with the given context and handling any IO exception.
+     *
+     * @param client  The client to use to make the call.
+     * @param action  The action to invoke on the client.
+     * @param context The context of the call, which carries the <code>RequestTimings</code> for timed calls.
+     * @return The response from action.  All errors will bubble up as a runtime exception.
+     */
+    static CloseableHttpResponse execute(CloseableHttpClient client, HttpUriRequest action, HttpContext context) {
         try {
-            return client.execute(action);
+            return (context != null) ? client.execute(action, context) : client.execute(action);
         } catch (IOException e) {
             System.err.println("Error while making call to nginx");
             e.printStackTrace();
@@ -306,22 +311,34 @@ public class CallUtility {
     }
 
     /**
-     * This gets the response body out of the entity object.
+     * Reads the exact bytes of the response body.  Bodies larger than the limit are written to a temporary file
+     * instead of being kept in memory.
      *
+     * @param entity           the entity contained in the response, which is null when the response had no body.
+     * @param maxInMemoryBytes the largest body to keep in memory.
+     * @return The captured body.
+     */
+    static CapturedBody captureBody(HttpEntity entity, int maxInMemoryBytes) {
+        if (entity == null) {
+            return CapturedBody.of("");
+        }
+        try (InputStream content = entity.getContent()) {
+            return CapturedBody.capture(content, getCharset(entity), maxInMemoryBytes);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
      * @param entity the entity contained in the response.
-     * @return A string value of the response body.
+     * @return The charset named in the <code>Content-Type</code> header, or null if there is none or it is not valid.
      */
-    static String getResponseBody(HttpEntity entity) {
-        StringBuilder sb = new StringBuilder();
+    static Charset getCharset(HttpEntity entity) {
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(entity.getContent()), 65728);
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            ContentType contentType = ContentType.get(entity);
+            return (contentType != null) ? contentType.getCharset() : null;
+        } catch (ParseException | UnsupportedCharsetException e) {
+            return null;
         }
-        return sb.toString();
     }
 }
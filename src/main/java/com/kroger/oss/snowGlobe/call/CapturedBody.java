@@ -0,0 +1,217 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.call;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The exact bytes of a response body.  Bodies up to a size limit are kept in memory, larger ones are written to a
+ * temporary file as they are read so that multi-megabyte responses do not have to fit on the heap.  A SHA-256 digest
+ * is computed while the body is read, which lets the body be compared to a file without loading either one.
+ */
+public class CapturedBody {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] bytes;
+    private final File spillFile;
+    private final long length;
+    private final byte[] digest;
+    private final Charset charset;
+
+    private CapturedBody(byte[] bytes, File spillFile, long length, byte[] digest, Charset charset) {
+        this.bytes = bytes;
+        this.spillFile = spillFile;
+        this.length = length;
+        this.digest = digest;
+        this.charset = charset;
+    }
+
+    /**
+     * Reads the whole stream.  The stream is not closed.
+     *
+     * @param content          The body to read.
+     * @param charset          The charset from the <code>Content-Type</code> of the response, or null if it had none.
+     *                         Bodies without one are decoded as UTF-8.
+     * @param maxInMemoryBytes The largest body that is kept in memory.  Larger bodies are written to a temporary file.
+     * @return The captured body.
+     * @throws IOException when the body could not be read or written to the temporary file.
+     */
+    public static CapturedBody capture(InputStream content, Charset charset, int maxInMemoryBytes) throws IOException {
+        MessageDigest messageDigest = newDigest();
+        ByteArrayOutputStream memory = new ByteArrayOutputStream(Math.min(maxInMemoryBytes, BUFFER_SIZE));
+        OutputStream out = memory;
+        File spillFile = null;
+        long length = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                if (spillFile == null && length + read > maxInMemoryBytes) {
+                    spillFile = File.createTempFile("snow-globe-body", ".tmp");
+                    spillFile.deleteOnExit();
+                    out = new FileOutputStream(spillFile);
+                    memory.writeTo(out);
+                    memory = null;
+                }
+                out.write(buffer, 0, read);
+                messageDigest.update(buffer, 0, read);
+                length += read;
+            }
+        } finally {
+            if (spillFile != null) {
+                out.close();
+            }
+        }
+        byte[] bytes = (spillFile == null) ? memory.toByteArray() : null;
+        return new CapturedBody(bytes, spillFile, length, messageDigest.digest(), charsetOrDefault(charset));
+    }
+
+    /**
+     * @param body The body as text.
+     * @return The UTF-8 bytes of the text as a captured body.
+     */
+    public static CapturedBody of(String body) {
+        byte[] bytes = (body != null) ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        return new CapturedBody(bytes, null, bytes.length, newDigest().digest(bytes), StandardCharsets.UTF_8);
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return True when the body was larger than the in memory limit and was written to a temporary file.
+     */
+    public boolean isSpilledToDisk() {
+        return spillFile != null;
+    }
+
+    /**
+     * @return The SHA-256 digest of the body.
+     */
+    public byte[] getDigest() {
+        return digest.clone();
+    }
+
+    /**
+     * @return A new stream over the exact bytes of the body.
+     */
+    public InputStream openStream() {
+        if (spillFile == null) {
+            return new ByteArrayInputStream(bytes);
+        }
+        try {
+            return new FileInputStream(spillFile);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Decodes the body with the charset of the response.  For bodies that were spilled to disk this reads the whole
+     * file, so it should be avoided for very large bodies.
+     *
+     * @return The body as text.
+     */
+    public String asString() {
+        if (spillFile == null) {
+            return new String(bytes, charset);
+        }
+        try {
+            return new String(Files.readAllBytes(spillFile.toPath()), charset);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Checks the body against the contents of a file one buffer at a time.  The sizes are compared first, and only
+     * if they match is the file run through the digest.
+     *
+     * @param expectedFile The file with the expected body.
+     * @return True when the body is byte for byte the same as the file.
+     */
+    public boolean matchesFile(Path expectedFile) {
+        try {
+            if (Files.size(expectedFile) != length) {
+                return false;
+            }
+            return Arrays.equals(digest, digestOf(expectedFile));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static byte[] digestOf(Path file) throws IOException {
+        MessageDigest messageDigest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+        }
+        return messageDigest.digest();
+    }
+
+    static String toHex(byte[] value) {
+        StringBuilder hex = new StringBuilder(value.length * 2);
+        for (byte b : value) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static Charset charsetOrDefault(Charset charset) {
+        return (charset != null) ? charset : StandardCharsets.UTF_8;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return length + " bytes" + (isSpilledToDisk() ? " in " + spillFile : "") + " (sha-256 " + toHex(digest) + ")";
+    }
+}
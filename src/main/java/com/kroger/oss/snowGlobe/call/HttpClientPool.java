@@ -0,0 +1,327 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.call;
+
+import com.kroger.oss.snowGlobe.FrameworkProperties;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.ssl.SSLContexts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A shared http client backed by a pooled connection manager.  Each <code>NginxRpBuilder</code> owns one of these so
+ * that every test request made against the same reverse proxy reuses kept-alive connections instead of paying for a
+ * new TCP (and TLS) handshake per call.  The pool is closed when the JVM shuts down or when <code>close()</code> is
+ * called.
+ */
+public class HttpClientPool implements Closeable {
+
+    private final FrameworkProperties frameworkProperties;
+    private final int maxConnections;
+    private final int leaseTimeoutMs;
+    private final int connectTimeoutMs;
+    private final int socketTimeoutMs;
+    private final boolean retryOnStartup;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final Thread shutdownHook;
+    private volatile boolean closed = false;
+
+    /**
+     * Builds the pool and the client that uses it.
+     *
+     * @param frameworkProperties The properties that define the pool size, keep alive and the resolved ip address.
+     */
+    public HttpClientPool(FrameworkProperties frameworkProperties) {
+        this(frameworkProperties, frameworkProperties.getHttpMaxConnections(), 100, 100, 200, true);
+    }
+
+    private HttpClientPool(FrameworkProperties frameworkProperties, int maxConnections, int leaseTimeoutMs,
+                           int connectTimeoutMs, int socketTimeoutMs, boolean retryOnStartup) {
+        this.frameworkProperties = frameworkProperties;
+        this.maxConnections = maxConnections;
+        this.leaseTimeoutMs = leaseTimeoutMs;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.socketTimeoutMs = socketTimeoutMs;
+        this.retryOnStartup = retryOnStartup;
+        this.connectionManager = buildConnectionManager();
+        this.httpClient = buildHttpClient();
+        this.shutdownHook = new Thread(this::closeQuietly);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Builds a pool for generating load.  It has one connection for each thread that sends requests, so a request never
+     * waits for a connection to be leased, and it does not retry failed calls the way the startup client does.  Each
+     * failed call is returned to the caller so that it can be counted as an error.
+     *
+     * @param frameworkProperties The properties that define the keep alive and the resolved ip address.
+     * @param connections        The number of threads that will send requests.
+     * @param connectTimeoutMs   The longest time to wait for a connection to be established.
+     * @param readTimeoutMs      The longest time to wait for data from nginx.
+     * @return A pool that is closed when the load run is done.
+     */
+    public static HttpClientPool forLoad(FrameworkProperties frameworkProperties, int connections,
+                                         int connectTimeoutMs, int readTimeoutMs) {
+        return new HttpClientPool(frameworkProperties, connections, connectTimeoutMs, connectTimeoutMs,
+                readTimeoutMs, false);
+    }
+
+    /**
+     * @return The pooled client to be used to execute test requests to nginx.
+     */
+    public CloseableHttpClient getClient() {
+        if (closed) {
+            throw new IllegalStateException("The http client pool has already been closed.");
+        }
+        return httpClient;
+    }
+
+    FrameworkProperties getFrameworkProperties() {
+        return frameworkProperties;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the client and every pooled connection.  The pool can not be used after it has been closed.
+     */
+    @Override
+    public void close() {
+        closeQuietly();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignored) {
+            // The JVM is already shutting down and the hook is running or has run.
+        }
+    }
+
+    private synchronized void closeQuietly() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Builds a custom Http client with custom DNS resolution, disabling persistent cookie stores and with custom
+     * timeout values.  Connections are kept alive for the configured time so that repeated calls reuse them.  The
+     * request executor records when the request was sent and when the response headers arrived for calls that are
+     * timed with <code>RequestTimings</code>.
+     *
+     * @return An http client to be used to execute test requests to nginx.
+     */
+    CloseableHttpClient buildHttpClient() {
+        final long keepAliveMs = frameworkProperties.getHttpKeepAliveMs();
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy((response, context) -> keepAliveMs)
+                .evictIdleConnections(keepAliveMs, TimeUnit.MILLISECONDS)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        // Waiting for a connection from connection manager
+                        .setConnectionRequestTimeout(leaseTimeoutMs)
+                        // Waiting for connection to establish
+                        .setConnectTimeout(connectTimeoutMs)
+                        .setExpectContinueEnabled(false)
+                        // Waiting for data
+                        .setSocketTimeout(socketTimeoutMs)
+                        // Do not allow cookies to be stored between calls.
+                        .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
+                        .build())
+                .setRequestExecutor(new TimedRequestExecutor())
+                .disableRedirectHandling();
+        if (retryOnStartup) {
+            builder.setRetryHandler(buildRetryHandler());
+        } else {
+            builder.disableAutomaticRetries();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Builds a pooled connection manager that will map all DNS entries to the resolved ip address (127.0.0.1 by
+     * default).  This used in conjunction with the random ports for the docker compose RP entry allow for all
+     * traffic to be properly routed.  Connections that have been idle are validated before they are leased again
+     * since nginx may have closed them during a reload.
+     *
+     * @return A pooled connection manager that resolves all DNS names to the resolved ip address.
+     */
+    PoolingHttpClientConnectionManager buildConnectionManager() {
+        final byte[] resolvedIp = frameworkProperties.getLocalHostResolvedIp();
+        PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(getDefaultRegistry(),
+                null, null, host -> new InetAddress[]{InetAddress.getByAddress(resolvedIp)},
+                -1, TimeUnit.MILLISECONDS);
+        manager.setMaxTotal(maxConnections);
+        manager.setDefaultMaxPerRoute(maxConnections);
+        manager.setValidateAfterInactivity(500);
+        return manager;
+    }
+
+    /**
+     * The default registry for creating sockets based on the protocol.  The socket factories are the http client
+     * defaults, but they record the connect and TLS handshake times of calls that are timed with
+     * <code>RequestTimings</code>.
+     *
+     * @return the default registry for creating sockets based on the protocol.
+     */
+    static Registry<ConnectionSocketFactory> getDefaultRegistry() {
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new TimedPlainSocketFactory())
+                .register("https", new TimedSslSocketFactory())
+                .build();
+    }
+
+    /**
+     * Builds a custom retry handler that will retry a request up to 20 times if the call fails to connect to the
+     * destination.  This is used since startup of nginx and other upstream servers are asynchronous.  This smooths
+     * over the "bumpiness" of getting everything started up before we make a call.
+     *
+     * @return The retry handler that will be used by the custom http client.
+     */
+    HttpRequestRetryHandler buildRetryHandler() {
+        final int pollingTimeMs = frameworkProperties.getMaxNginxStartupPollingTimeMs();
+        final int maxRetries = frameworkProperties.getMaxNginxStartupTime() * 1000 / pollingTimeMs;
+        return (exception, executionCount, context) -> {
+            if (executionCount > maxRetries) {
+                // Do not retry if over max retry count
+                return false;
+            }
+            try {
+                Thread.sleep(pollingTimeMs);
+            } catch (InterruptedException e) {
+            }
+            // Retry if the server dropped connection on us
+            return true;
+        };
+    }
+
+    static class TimedPlainSocketFactory implements ConnectionSocketFactory {
+        private final PlainConnectionSocketFactory delegate = PlainConnectionSocketFactory.getSocketFactory();
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return delegate.createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return delegate.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } finally {
+                RequestTimings timings = RequestTimings.from(context);
+                if (timings != null) {
+                    timings.addConnectNanos(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    static class TimedSslSocketFactory extends SSLConnectionSocketFactory {
+
+        TimedSslSocketFactory() {
+            super(SSLContexts.createDefault(), getDefaultHostnameVerifier());
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            RequestTimings timings = RequestTimings.from(context);
+            long tlsBefore = (timings != null) ? timings.getTlsHandshake().toNanos() : 0;
+            long start = System.nanoTime();
+            try {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } finally {
+                if (timings != null) {
+                    long tlsDuringConnect = timings.getTlsHandshake().toNanos() - tlsBefore;
+                    timings.addConnectNanos(System.nanoTime() - start - tlsDuringConnect);
+                }
+            }
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.createLayeredSocket(socket, target, port, context);
+            } finally {
+                RequestTimings timings = RequestTimings.from(context);
+                if (timings != null) {
+                    timings.addTlsHandshakeNanos(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    static class TimedRequestExecutor extends HttpRequestExecutor {
+
+        @Override
+        protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws IOException, HttpException {
+            RequestTimings timings = RequestTimings.from(context);
+            if (timings != null) {
+                timings.requestSent();
+            }
+            return super.doSendRequest(request, conn, context);
+        }
+
+        @Override
+        protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws HttpException, IOException {
+            HttpResponse response = super.doReceiveResponse(request, conn, context);
+            RequestTimings timings = RequestTimings.from(context);
+            if (timings != null) {
+                timings.firstByteReceived();
+            }
+            return response;
+        }
+    }
+}
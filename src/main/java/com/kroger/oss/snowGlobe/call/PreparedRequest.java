@@ -0,0 +1,85 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.call;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A <code>TestRequest</code> that has been resolved once so that it can be sent many times.  The url (and the port it
+ * maps to on the reverse proxy), the headers and the body are all built up front, and the response body is drained
+ * into a reused buffer.  This keeps the cost of sending the same request again to the http client itself, which is
+ * what load generation needs.
+ * <p>
+ * A prepared request is not thread safe.  Each thread that sends requests should prepare its own.
+ */
+public class PreparedRequest {
+
+    private final TestRequest testRequest;
+    private final CloseableHttpClient httpClient;
+    private final HttpRequestBase request;
+    private final byte[] drainBuffer = new byte[8192];
+
+    /**
+     * Prepares the request to be sent with the client of the given pool, such as one built with
+     * <code>CallUtility.buildLoadClientPool</code>.
+     *
+     * @param testRequest The request to send.
+     * @param pool        The pool whose client sends the request.
+     */
+    public PreparedRequest(TestRequest testRequest, HttpClientPool pool) {
+        this.testRequest = testRequest;
+        this.httpClient = pool.getClient();
+        this.request = CallUtility.buildRequest(testRequest);
+    }
+
+    public TestRequest getTestRequest() {
+        return testRequest;
+    }
+
+    /**
+     * Sends the request and reads the whole response, throwing away the body.
+     *
+     * @return The HTTP status code of the response.
+     * @throws IOException when the call could not be made.
+     */
+    public int execute() throws IOException {
+        request.reset();
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            drain(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    private void drain(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return;
+        }
+        try (InputStream content = entity.getContent()) {
+            while (content.read(drainBuffer) != -1) {
+                // The body is not needed, only the time it took to read it.
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.call;
+
+import org.apache.http.protocol.HttpContext;
+
+import java.time.Duration;
+
+/**
+ * The time spent in each phase of a single call to nginx.  The pooled http client fills this in as the call is made:
+ * the socket factories time the TCP connect and the TLS handshake, the request executor times the wait for the first
+ * byte of the response and <code>CallUtility</code> times reading the body.  When a kept-alive connection is reused,
+ * the connect and TLS handshake times are zero.
+ */
+public class RequestTimings {
+
+    static final String CONTEXT_ATTRIBUTE = "snowglobe.request.timings";
+
+    private long startNanos;
+    private long requestSentNanos;
+    private long connectNanos;
+    private long tlsHandshakeNanos;
+    private long timeToFirstByteNanos;
+    private long bodyReadNanos;
+    private long totalNanos;
+
+    /**
+     * @return Timings where every phase is zero.  This is used when a response was not timed.
+     */
+    public static RequestTimings none() {
+        return new RequestTimings();
+    }
+
+    static RequestTimings start(HttpContext context) {
+        RequestTimings timings = new RequestTimings();
+        timings.startNanos = System.nanoTime();
+        context.setAttribute(CONTEXT_ATTRIBUTE, timings);
+        return timings;
+    }
+
+    static RequestTimings from(HttpContext context) {
+        Object timings = (context != null) ? context.getAttribute(CONTEXT_ATTRIBUTE) : null;
+        return (timings instanceof RequestTimings) ? (RequestTimings) timings : null;
+    }
+
+    void addConnectNanos(long nanos) {
+        connectNanos += nanos;
+    }
+
+    void addTlsHandshakeNanos(long nanos) {
+        tlsHandshakeNanos += nanos;
+    }
+
+    void requestSent() {
+        requestSentNanos = System.nanoTime();
+    }
+
+    void firstByteReceived() {
+        timeToFirstByteNanos = System.nanoTime() - startNanos;
+    }
+
+    void bodyRead(long nanos) {
+        bodyReadNanos = nanos;
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return The time spent waiting for a connection from the pool, not counting the time to connect a new one.
+     */
+    public Duration getConnectionAcquisition() {
+        long acquisition = (requestSentNanos == 0) ? 0 : requestSentNanos - startNanos - connectNanos - tlsHandshakeNanos;
+        return Duration.ofNanos(Math.max(acquisition, 0));
+    }
+
+    /**
+     * @return The time spent opening the TCP connection.  This is zero if a pooled connection was reused.
+     */
+    public Duration getConnect() {
+        return Duration.ofNanos(connectNanos);
+    }
+
+    /**
+     * @return The time spent in the TLS handshake.  This is zero for plain http or if a pooled connection was reused.
+     */
+    public Duration getTlsHandshake() {
+        return Duration.ofNanos(tlsHandshakeNanos);
+    }
+
+    /**
+     * @return The time from the start of the call until the status line and headers of the response were read.
+     */
+    public Duration getTimeToFirstByte() {
+        return Duration.ofNanos(timeToFirstByteNanos);
+    }
+
+    /**
+     * @return The time spent reading the body of the response.
+     */
+    public Duration getBodyRead() {
+        return Duration.ofNanos(bodyReadNanos);
+    }
+
+    /**
+     * @return The time from the start of the call until the whole body of the response was read.
+     */
+    public Duration getRoundTrip() {
+        return Duration.ofNanos(totalNanos);
+    }
+
+    public boolean isConnectionReused() {
+        return connectNanos == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[acquire=%.3fms, connect=%.3fms, tls=%.3fms, ttfb=%.3fms, body=%.3fms, total=%.3fms]",
+                getConnectionAcquisition().toNanos() / 1e6, connectNanos / 1e6, tlsHandshakeNanos / 1e6,
+                timeToFirstByteNanos / 1e6, bodyReadNanos / 1e6, totalNanos / 1e6);
+    }
+}
@@ -18,12 +18,30 @@
 
 package com.kroger.oss.snowGlobe.call;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.kroger.oss.snowGlobe.util.JsonUtil;
+
+import java.io.IOException;
+
+/**
+ * The body of a response to a test request.  When the call was proxied to a fake upstream this is the JSON that the
+ * upstream echoed back.  The echo is only parsed when one of its fields is first asked for, and the request that the
+ * upstream received is only bound when <code>getRequest</code> is called, so checks of the status code alone never
+ * pay for parsing it.
+ */
 public class ResponseBody {
 
+    private static final ObjectReader REQUEST_READER = JsonUtil.readerFor(RequestToService.class);
+
     private String cluster;
     private int instance;
     private RequestToService request;
     private String rawResponse;
+    private String upstreamJson;
+    private CapturedBody capturedBody;
+    private boolean summaryParsed = true;
 
     // This is used by jackson to help convert from JSON -> POJO.
     public ResponseBody() {
@@ -39,31 +57,138 @@ public class ResponseBody {
         return new ResponseBody(body);
     }
 
-    public String getCluster() {
+    /**
+     * Builds a response body that is parsed on first use.  If the body turns out not to be the JSON echoed by a fake
+     * upstream then it is treated as a response made directly by the reverse proxy.
+     *
+     * @param body The body of the response.
+     * @return The lazily parsed response body.
+     */
+    public static ResponseBody fromUpstreamResponse(String body) {
+        ResponseBody responseBody = new ResponseBody();
+        responseBody.upstreamJson = body;
+        responseBody.summaryParsed = false;
+        return responseBody;
+    }
+
+    /**
+     * Builds a response body from the captured bytes of the response.  The bytes are only decoded when the body is
+     * first used.
+     *
+     * @param body The captured body of the response.
+     * @return The lazily parsed response body.
+     */
+    public static ResponseBody fromUpstreamResponse(CapturedBody body) {
+        ResponseBody responseBody = new ResponseBody();
+        responseBody.capturedBody = body;
+        responseBody.summaryParsed = false;
+        return responseBody;
+    }
+
+    public synchronized String getCluster() {
+        parseSummary();
         return cluster;
     }
 
-    public void setCluster(String cluster) {
+    public synchronized void setCluster(String cluster) {
+        parseSummary();
         this.cluster = cluster;
     }
 
-    public int getInstance() {
+    public synchronized int getInstance() {
+        parseSummary();
         return instance;
     }
 
-    public void setInstance(int instance) {
+    public synchronized void setInstance(int instance) {
+        parseSummary();
         this.instance = instance;
     }
 
-    public RequestToService getRequest() {
+    public synchronized RequestToService getRequest() {
+        parseSummary();
+        if (request == null && upstreamJson != null) {
+            request = bindRequest(upstreamJson);
+        }
         return request;
     }
 
-    public void setRequest(RequestToService request) {
+    public synchronized void setRequest(RequestToService request) {
+        parseSummary();
         this.request = request;
     }
 
-    public String getRawResponse() {
+    public synchronized String getRawResponse() {
+        parseSummary();
         return rawResponse;
     }
+
+    /**
+     * Streams over the top level of the JSON to pick out the cluster and instance.  The echoed request is skipped
+     * over without being bound.  Anything that is not a JSON object with a request in it came from the reverse proxy.
+     */
+    private void parseSummary() {
+        if (summaryParsed) {
+            return;
+        }
+        summaryParsed = true;
+        if (capturedBody != null) {
+            upstreamJson = capturedBody.asString();
+            capturedBody = null;
+        }
+        boolean hasRequest = false;
+        try (JsonParser parser = JsonUtil.getFactory().createParser(upstreamJson)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                treatAsDirectResponse();
+                return;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("cluster".equals(field)) {
+                    cluster = parser.getValueAsString();
+                } else if ("instance".equals(field)) {
+                    instance = parser.getValueAsInt();
+                } else {
+                    hasRequest |= "request".equals(field);
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            hasRequest = false;
+        }
+        if (!hasRequest) {
+            treatAsDirectResponse();
+        }
+    }
+
+    private void treatAsDirectResponse() {
+        cluster = null;
+        instance = 0;
+        rawResponse = upstreamJson;
+        request = new RequestToService();
+        upstreamJson = null;
+    }
+
+    /**
+     * Skips to the echoed request and binds only it.  The cluster and instance were already picked out.
+     */
+    private static RequestToService bindRequest(String json) {
+        try (JsonParser parser = JsonUtil.getFactory().createParser(json)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("request".equals(field)) {
+                        RequestToService bound = REQUEST_READER.readValue(parser);
+                        return (bound != null) ? bound : new RequestToService();
+                    }
+                    parser.skipChildren();
+                }
+            }
+            return new RequestToService();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
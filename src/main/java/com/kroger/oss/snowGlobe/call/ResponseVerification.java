@@ -23,7 +23,9 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Map;
 
 import static java.util.Arrays.stream;
@@ -40,29 +42,33 @@ import static org.junit.Assert.fail;
 public class ResponseVerification {
 
     private final int responseCode;
-    private final String clusterName;
-    private final int clusterNumber;
-    private final String appPath;
     private final int latencyMillis;
     private final int roundTripTimeMillis;
-    private final String body;
+    private final CapturedBody body;
     private final Map<String, String> responseHeaders;
     private final ResponseBody serviceResponseBody;
     private final TestRequest testRequest;
-    private final String urlToApplication;
     private final CloseableHttpResponse healthCheckResponse;
+    private final RequestTimings timings;
 
 
     public ResponseVerification(ResponseBody serviceResponseBody, CloseableHttpResponse response, CloseableHttpResponse healthCheckResponse, String body, TestRequest testRequest) {
+        this(serviceResponseBody, response, healthCheckResponse, body, testRequest, RequestTimings.none());
+    }
+
+    public ResponseVerification(ResponseBody serviceResponseBody, CloseableHttpResponse response, CloseableHttpResponse healthCheckResponse, String body, TestRequest testRequest,
+                                RequestTimings timings) {
+        this(serviceResponseBody, response, healthCheckResponse, CapturedBody.of(body), testRequest, timings);
+    }
+
+    public ResponseVerification(ResponseBody serviceResponseBody, CloseableHttpResponse response, CloseableHttpResponse healthCheckResponse, CapturedBody body, TestRequest testRequest,
+                                RequestTimings timings) {
         this.testRequest = testRequest;
+        this.timings = timings;
         this.healthCheckResponse = healthCheckResponse;
         this.responseCode = response.getStatusLine().getStatusCode();
-        this.clusterName = serviceResponseBody.getCluster();
-        this.clusterNumber = serviceResponseBody.getInstance();
-        this.appPath = serviceResponseBody.getRequest().getPath();
-        this.urlToApplication = serviceResponseBody.getRequest().getUrlToApplication();
-        this.latencyMillis = 0;
-        this.roundTripTimeMillis = 0;
+        this.latencyMillis = (int) timings.getTimeToFirstByte().toMillis();
+        this.roundTripTimeMillis = (int) timings.getRoundTrip().toMillis();
         this.body = body;
         this.responseHeaders = buildHeaders(response.getAllHeaders());
         this.serviceResponseBody = serviceResponseBody;
@@ -97,7 +103,7 @@ public class ResponseVerification {
 
     public ResponseVerification expectClusterName(String clusterName) {
         assertThat("The request:" + this.testRequest.getPrettyUrl() + " was routed to the wrong upstream cluster!",
-                this.clusterName, is(clusterName));
+                this.serviceResponseBody.getCluster(), is(clusterName));
         return this;
     }
 
@@ -106,7 +112,7 @@ public class ResponseVerification {
     }
 
     public ResponseVerification expectClusterNumber(int clusterNumber) {
-        assertThat(this.clusterNumber, is(clusterNumber));
+        assertThat(this.serviceResponseBody.getInstance(), is(clusterNumber));
         return this;
     }
 
@@ -116,7 +122,7 @@ public class ResponseVerification {
 
     public ResponseVerification expectAppPath(String appPath) {
         assertThat("The path for: " + this.testRequest.getPrettyUrl() + " that was sent to the service did not match what we expected.",
-                this.appPath, is(appPath));
+                this.serviceResponseBody.getRequest().getPath(), is(appPath));
         return this;
     }
 
@@ -130,7 +136,7 @@ public class ResponseVerification {
 
     public ResponseVerification expectAppUrl(String url) {
         assertThat("The url for: " + this.testRequest.getPrettyUrl() + " that was sent to the service did not match what we expected.",
-                this.urlToApplication, is(url));
+                this.serviceResponseBody.getRequest().getUrlToApplication(), is(url));
         return this;
     }
 
@@ -252,13 +258,40 @@ public class ResponseVerification {
         return this;
     }
 
+    /**
+     * Compares the body to the file ignoring all line breaks.  Use <code>andExpectResponseBodyMatchesFileContents</code>
+     * for a byte for byte comparison.
+     */
     @Deprecated
     public ResponseVerification andResponseBodyMatchesFileContents(String expectedBodyPath) {
-        return andExpectResponseBodyContent(removeNewLines(readFile(System.getProperty("user.dir") + "/" + expectedBodyPath)));
+        String rawResponse = this.serviceResponseBody.getRawResponse();
+        assertThat((rawResponse != null) ? removeNewLines(rawResponse) : null,
+                is(removeNewLines(readFile(System.getProperty("user.dir") + "/" + expectedBodyPath))));
+        return this;
     }
 
+    /**
+     * Checks that the body of the response is byte for byte the same as the contents of the file.  The file is
+     * streamed through a digest, so neither it nor a large response body has to be held in memory.
+     *
+     * @param expectedBodyPath The path of the file, relative to the working directory.
+     * @return This object, for chaining.
+     */
     public ResponseVerification andExpectResponseBodyMatchesFileContents(String expectedBodyPath) {
-        return andExpectResponseBodyContent(removeNewLines(readFile(System.getProperty("user.dir") + "/" + expectedBodyPath)));
+        Path expectedFile = Paths.get(System.getProperty("user.dir"), expectedBodyPath);
+        if (!this.body.matchesFile(expectedFile)) {
+            fail("The body of the response for: " + this.testRequest.getPrettyUrl() + " did not match the contents of "
+                    + expectedBodyPath + ".  Expected " + describeFile(expectedFile) + " but was " + this.body + ".");
+        }
+        return this;
+    }
+
+    private String describeFile(Path file) {
+        try {
+            return Files.size(file) + " bytes (sha-256 " + CapturedBody.toHex(CapturedBody.digestOf(file)) + ")";
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     private String removeNewLines(String bodyContent) {
@@ -272,7 +305,7 @@ public class ResponseVerification {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return new String(encoded);
+        return new String(encoded, this.body.getCharset());
     }
 
     @Deprecated
@@ -286,6 +319,13 @@ public class ResponseVerification {
         return this;
     }
 
+    /**
+     * @return The exact bytes of the body of the response.
+     */
+    public CapturedBody getResponseBody() {
+        return body;
+    }
+
     public ResponseVerification andExpectResponseBodyContent(String expectedBody) {
         assertThat(this.serviceResponseBody.getRawResponse(), is(expectedBody));
         return this;
@@ -296,4 +336,45 @@ public class ResponseVerification {
                 this.serviceResponseBody.getRequest().getQuery(), hasEntry(param, value));
         return this;
     }
+
+    /**
+     * @return The time spent in each phase of the call.
+     */
+    public RequestTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * @return The time in milliseconds until the response headers were received.
+     */
+    public int getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * @return The time in milliseconds until the whole response body was read.
+     */
+    public int getRoundTripTimeMillis() {
+        return roundTripTimeMillis;
+    }
+
+    public ResponseVerification expectTimeToFirstByteBelow(Duration maximum) {
+        assertThat("The time to first byte for: " + this.testRequest.getPrettyUrl() + " was too slow " + this.timings + ".",
+                this.timings.getTimeToFirstByte(), lessThan(maximum));
+        return this;
+    }
+
+    public ResponseVerification andExpectTimeToFirstByteBelow(Duration maximum) {
+        return expectTimeToFirstByteBelow(maximum);
+    }
+
+    public ResponseVerification expectRoundTripBelow(Duration maximum) {
+        assertThat("The round trip time for: " + this.testRequest.getPrettyUrl() + " was too slow " + this.timings + ".",
+                this.timings.getRoundTrip(), lessThan(maximum));
+        return this;
+    }
+
+    public ResponseVerification andExpectRoundTripBelow(Duration maximum) {
+        return expectRoundTripBelow(maximum);
+    }
 }
@@ -124,6 +124,10 @@ public class TestRequest {
         return body;
     }
 
+    HttpClientPool getHttpClientPool() {
+        return (reverseProxy != null) ? reverseProxy.getHttpClientPool() : null;
+    }
+
     public TestRequest to(NginxRpBuilder reverseProxy) {
         this.reverseProxy = reverseProxy;
         return this;
@@ -0,0 +1,131 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.environment;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.kroger.oss.snowGlobe.util.JsonUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the analysis of every nginx configuration file that has been read, so that a file is only read again
+ * when its size or modification time changed.  The analyses are shared by every <code>NginxRpBuilder</code> in the
+ * JVM and are saved in the build directory so that the next run starts with them.
+ */
+public class ConfigAnalysisCache {
+
+    static final int VERSION = 2;
+
+    private static ConfigAnalysisCache shared;
+
+    private final File cacheFile;
+    private final Map<String, ConfigFileAnalysis> analyses = new ConcurrentHashMap<>();
+    private volatile boolean changed = false;
+
+    /**
+     * @param cacheFile The file the analyses are saved in.  Analyses already saved there are read right away.
+     */
+    public ConfigAnalysisCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+        load();
+    }
+
+    /**
+     * @return The cache shared by the JVM, saved in <code>build/snow-globe-config-analysis.json</code>.
+     */
+    public static synchronized ConfigAnalysisCache getShared() {
+        if (shared == null) {
+            File buildDirectory = new File(System.getProperty("user.dir") + File.separator + "build");
+            shared = new ConfigAnalysisCache(new File(buildDirectory, "snow-globe-config-analysis.json"));
+        }
+        return shared;
+    }
+
+    /**
+     * @param file   The nginx configuration file.
+     * @param prefix The directive that names an upstream cluster, for example <code>proxy_pass</code>.
+     * @return The analysis of the file, read again only if the file changed since it was last read.
+     */
+    public ConfigFileAnalysis analyze(File file, String prefix) {
+        String path = file.getAbsolutePath();
+        ConfigFileAnalysis cached = analyses.get(path);
+        if (cached != null && cached.isCurrent(prefix, file.length(), file.lastModified())) {
+            return cached;
+        }
+        ConfigFileAnalysis analysis = ConfigFileAnalysis.parse(file, prefix);
+        analyses.put(path, analysis);
+        changed = true;
+        return analysis;
+    }
+
+    /**
+     * Saves the analyses if any file was read since they were loaded or last saved.  The file is written next to the
+     * cache and moved over it, so that another test JVM never reads half of it.  A cache that can not be saved is only
+     * reported, since the next run can still read every file.
+     */
+    public synchronized void save() {
+        if (!changed) {
+            return;
+        }
+        changed = false;
+        Map<String, Object> contents = new HashMap<>();
+        contents.put("version", VERSION);
+        contents.put("files", new ArrayList<>(analyses.values()));
+        try {
+            cacheFile.getParentFile().mkdirs();
+            File tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+            Files.write(tempFile.toPath(), JsonUtil.toJson(contents).getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Unable to save the nginx configuration analysis: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the saved analyses.  A cache from another version, or one that can not be read, is ignored.
+     */
+    private void load() {
+        if (!cacheFile.exists()) {
+            return;
+        }
+        try {
+            JsonNode contents = JsonUtil.readerFor(JsonNode.class).readTree(new String(Files.readAllBytes(cacheFile.toPath()), StandardCharsets.UTF_8));
+            if (contents.path("version").asInt() != VERSION) {
+                return;
+            }
+            ObjectReader reader = JsonUtil.readerFor(ConfigFileAnalysis.class);
+            for (JsonNode file : contents.path("files")) {
+                ConfigFileAnalysis analysis = reader.readValue(file);
+                analyses.put(analysis.getPath(), analysis);
+            }
+        } catch (IOException | RuntimeException e) {
+            analyses.clear();
+        }
+    }
+}
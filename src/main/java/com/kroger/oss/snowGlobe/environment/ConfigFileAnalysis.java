@@ -0,0 +1,206 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.environment;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What Snow-Globe learned from reading one nginx configuration file: the upstream clusters it proxies to, the files it
+ * includes and a hash of its contents.  The size and modification time of the file when it was read tell if the
+ * analysis is still current.
+ */
+public class ConfigFileAnalysis {
+
+    /**
+     * A file that changed this close to when it was read may change again without its size or modification time
+     * changing, so its analysis is not trusted until the file is read again.
+     */
+    static final long UNSTABLE_WINDOW_MS = 2000;
+
+    private String path;
+    private String prefix;
+    private long size;
+    private long lastModified;
+    private long analyzedAt;
+    private String digest;
+    private List<String> clusters = new ArrayList<>();
+    private List<String> includes = new ArrayList<>();
+
+    /**
+     * Maps the file into memory, hashes it and reads its directives with <code>NginxConfigLexer</code>.  Every cluster
+     * named by a directive with the prefix and every include is recorded in the order they appear.  Comments and
+     * quotes are understood, and a directive may span lines.
+     *
+     * @param file   The nginx configuration file.
+     * @param prefix The directive that names an upstream cluster, for example <code>proxy_pass</code>.
+     * @return The analysis of the file.
+     */
+    public static ConfigFileAnalysis parse(File file, String prefix) {
+        ConfigFileAnalysis analysis = new ConfigFileAnalysis();
+        analysis.path = file.getAbsolutePath();
+        analysis.prefix = prefix;
+        analysis.analyzedAt = System.currentTimeMillis();
+        // The file is measured before it is read, so a change made while reading makes the analysis out of date.
+        analysis.size = file.length();
+        analysis.lastModified = file.lastModified();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(contents.duplicate());
+            analysis.digest = new BigInteger(1, md5.digest()).toString(16);
+            NginxConfigLexer.lex(contents, analysis::addDirective);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return analysis;
+    }
+
+    private void addDirective(NginxConfigLexer.Directive directive) {
+        if (directive.getArgCount() == 0) {
+            return;
+        }
+        if (directive.is(prefix)) {
+            String clusterName = clusterNameOf(directive.getArg(0));
+            if (clusterName != null) {
+                clusters.add(clusterName);
+            }
+        } else if (directive.is("include")) {
+            includes.add(directive.getArg(0));
+        }
+    }
+
+    /**
+     * Here, we expect each line to be in a specific format that gives us a hint as to which upstream servers the
+     * configuration will be looking for.
+     * <p>
+     * NOTE:  Any proxy_pass with a variable set will be ignored since that variable will be resolved at the request.
+     *
+     * @param line a line from the nginx.conf file that should be of the format:
+     *             "   proxy_pass http://[CLUSTER NAME]/..."
+     * @return The name of the cluster, or null if it is set with a variable.
+     */
+    public static String clusterNameOf(String line) {
+        if (!line.contains("://")) {
+            return null;
+        }
+        String prefixRemoved = line.substring(line.indexOf("://") + 3);
+        String clusterName = prefixRemoved;
+        clusterName = handleClusterNameChar(prefixRemoved, clusterName, "/");
+        clusterName = handleClusterNameChar(prefixRemoved, clusterName, ";");
+        clusterName = handleClusterNameChar(prefixRemoved, clusterName, "/");
+        return clusterName.contains("$") ? null : clusterName.trim();
+    }
+
+    private static String handleClusterNameChar(String prefixRemoved, String clusterName, String character) {
+        return (prefixRemoved.indexOf(character) > 0) ?
+                prefixRemoved.substring(0, prefixRemoved.indexOf(character)) : clusterName;
+    }
+
+    /**
+     * @param prefix       The directive that names an upstream cluster.
+     * @param size         The size of the file now.
+     * @param lastModified The modification time of the file now.
+     * @return If this analysis still describes the file.
+     */
+    public boolean isCurrent(String prefix, long size, long lastModified) {
+        return this.prefix.equals(prefix) && this.size == size && this.lastModified == lastModified
+                && lastModified < analyzedAt - UNSTABLE_WINDOW_MS;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public long getAnalyzedAt() {
+        return analyzedAt;
+    }
+
+    public void setAnalyzedAt(long analyzedAt) {
+        this.analyzedAt = analyzedAt;
+    }
+
+    /**
+     * @return The MD5 of the contents of the file, in hex.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * @return The clusters named on lines with the prefix, in the order they appear.
+     */
+    public List<String> getClusters() {
+        return clusters;
+    }
+
+    public void setClusters(List<String> clusters) {
+        this.clusters = clusters;
+    }
+
+    /**
+     * @return The targets of the include directives as written, in the order they appear.
+     */
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    public void setIncludes(List<String> includes) {
+        this.includes = includes;
+    }
+}
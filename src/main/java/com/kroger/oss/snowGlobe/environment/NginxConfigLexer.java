@@ -0,0 +1,289 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.environment;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits an nginx configuration into directives the way nginx reads it: words are separated by whitespace, a
+ * directive ends with <code>;</code> or opens a block with <code>{</code>, <code>#</code> at the start of a word
+ * comments out the rest of the line and words can be quoted.  A directive may span lines and a line may hold several
+ * directives.
+ * <p>
+ * The lexer makes one pass over the buffer and does not copy it.  A directive only remembers where its words are, and
+ * a word is decoded when it is asked for, so the directives that are not needed cost no allocation.
+ */
+public class NginxConfigLexer {
+
+    private static final int QUOTED = 1;
+    private static final int ESCAPED = 2;
+
+    public interface DirectiveHandler {
+
+        /**
+         * @param directive The directive that was read.  It is only valid during the call, since the lexer reuses it
+         *                  for the next directive.
+         */
+        void directive(Directive directive);
+    }
+
+    private final ByteBuffer buffer;
+    private final List<String> blocks = new ArrayList<>();
+    private List<String> blocksView = Collections.emptyList();
+    private final Directive directive = new Directive();
+    private int line = 1;
+
+    private NginxConfigLexer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Reads every directive between the position and the limit of the buffer.  The position of the buffer is not
+     * changed.
+     *
+     * @param buffer  The configuration, for example a file mapped into memory.
+     * @param handler Called with every directive in the order they appear.
+     */
+    public static void lex(ByteBuffer buffer, DirectiveHandler handler) {
+        new NginxConfigLexer(buffer).run(handler);
+    }
+
+    private void run(DirectiveHandler handler) {
+        int pos = buffer.position();
+        int limit = buffer.limit();
+        while (pos < limit) {
+            byte b = buffer.get(pos);
+            if (b == '\n') {
+                line++;
+                pos++;
+            } else if (isWhitespace(b)) {
+                pos++;
+            } else if (b == '#') {
+                while (pos < limit && buffer.get(pos) != '\n') {
+                    pos++;
+                }
+            } else if (b == ';') {
+                end(handler, false);
+                pos++;
+            } else if (b == '{') {
+                end(handler, true);
+                pos++;
+            } else if (b == '}') {
+                // A directive that is not ended before the block closes is not valid nginx, but it is still reported.
+                end(handler, false);
+                if (!blocks.isEmpty()) {
+                    blocks.remove(blocks.size() - 1);
+                    blocksView = Collections.unmodifiableList(new ArrayList<>(blocks));
+                }
+                pos++;
+            } else if (b == '"' || b == '\'') {
+                pos = readQuotedWord(pos, limit, b);
+            } else {
+                pos = readWord(pos, limit);
+            }
+        }
+        end(handler, false);
+    }
+
+    private int readQuotedWord(int pos, int limit, byte quote) {
+        int start = pos + 1;
+        int flags = QUOTED;
+        pos = start;
+        while (pos < limit && buffer.get(pos) != quote) {
+            byte b = buffer.get(pos);
+            if (b == '\\' && pos + 1 < limit) {
+                flags |= ESCAPED;
+                pos++;
+                b = buffer.get(pos);
+            }
+            if (b == '\n') {
+                line++;
+            }
+            pos++;
+        }
+        directive.addWord(start, pos, flags, line);
+        return pos + 1;
+    }
+
+    private int readWord(int pos, int limit) {
+        int start = pos;
+        int flags = 0;
+        boolean inVariable = false;
+        while (pos < limit) {
+            byte b = buffer.get(pos);
+            if (b == '\\' && pos + 1 < limit) {
+                flags |= ESCAPED;
+                pos += 2;
+                continue;
+            }
+            if (inVariable) {
+                inVariable = b != '}';
+            } else if (b == '{' && pos > start && buffer.get(pos - 1) == '$') {
+                // A variable such as ${host} is part of the word.
+                inVariable = true;
+            } else if (isWhitespace(b) || b == '\n' || b == ';' || b == '{' || b == '}') {
+                break;
+            }
+            pos++;
+        }
+        directive.addWord(start, pos, flags, line);
+        return pos;
+    }
+
+    private void end(DirectiveHandler handler, boolean opensBlock) {
+        if (directive.wordCount > 0) {
+            directive.opensBlock = opensBlock;
+            directive.blocks = blocksView;
+            handler.directive(directive);
+        }
+        if (opensBlock) {
+            blocks.add(directive.wordCount > 0 ? directive.getName() : "");
+            blocksView = Collections.unmodifiableList(new ArrayList<>(blocks));
+        }
+        directive.wordCount = 0;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * A directive: its name, its arguments and the blocks it is in.
+     */
+    public class Directive {
+        // The start, end and flags of each word.
+        private int[] words = new int[3 * 8];
+        private int wordCount = 0;
+        private int firstLine;
+        private boolean opensBlock;
+        private List<String> blocks;
+
+        private void addWord(int start, int end, int flags, int line) {
+            if (wordCount == 0) {
+                firstLine = line;
+            }
+            if (3 * (wordCount + 1) > words.length) {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+            words[3 * wordCount] = start;
+            words[3 * wordCount + 1] = end;
+            words[3 * wordCount + 2] = flags;
+            wordCount++;
+        }
+
+        /**
+         * @param name The name of a directive.
+         * @return If this directive has the name, compared without decoding it.
+         */
+        public boolean is(String name) {
+            if ((words[2] & ESCAPED) != 0) {
+                return getName().equals(name);
+            }
+            int start = words[0];
+            int end = words[1];
+            if (end - start != name.length()) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (buffer.get(start + i) != name.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public String getName() {
+            return word(0);
+        }
+
+        public int getArgCount() {
+            return wordCount - 1;
+        }
+
+        /**
+         * @param index The index of the argument, starting at zero.
+         * @return The argument without its quotes and with its escapes resolved.
+         */
+        public String getArg(int index) {
+            return word(index + 1);
+        }
+
+        /**
+         * @return The names of the blocks the directive is in, outermost first, for example
+         * <code>[http, server, location]</code>.
+         */
+        public List<String> getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * @return If the directive opens a block rather than ending with <code>;</code>.
+         */
+        public boolean opensBlock() {
+            return opensBlock;
+        }
+
+        /**
+         * @return The line the directive starts on.
+         */
+        public int getLine() {
+            return firstLine;
+        }
+
+        /**
+         * Resolves escapes like nginx does: <code>\"</code>, <code>\'</code> and <code>\\</code> lose the
+         * backslash, <code>\t</code>, <code>\r</code> and <code>\n</code> become the control characters and any
+         * other backslash is kept, as in the regular expression <code>\.php$</code>.
+         */
+        private String word(int index) {
+            int start = words[3 * index];
+            int end = words[3 * index + 1];
+            if ((words[3 * index + 2] & ESCAPED) == 0) {
+                byte[] bytes = new byte[end - start];
+                for (int pos = start; pos < end; pos++) {
+                    bytes[pos - start] = buffer.get(pos);
+                }
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+            for (int pos = start; pos < end; pos++) {
+                byte b = buffer.get(pos);
+                if (b == '\\' && pos + 1 < end) {
+                    byte next = buffer.get(pos + 1);
+                    if (next == '"' || next == '\'' || next == '\\') {
+                        b = next;
+                        pos++;
+                    } else if (next == 't' || next == 'r' || next == 'n') {
+                        b = (byte) ((next == 't') ? '\t' : (next == 'r') ? '\r' : '\n');
+                        pos++;
+                    }
+                }
+                bytes.write(b);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
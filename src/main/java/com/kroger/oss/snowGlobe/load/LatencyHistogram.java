@@ -0,0 +1,148 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.load;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * A log-linear histogram of latencies in nanoseconds.  Values are grouped by their power of two and each power of two
+ * is split into 64 linear sub-buckets, so every recorded value is kept within 1.6% of its true value no matter how
+ * large it is.  Recording is a single array increment with no allocation.  Histograms are not thread safe; each worker
+ * records into its own histogram and they are merged once the run is over.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_COUNT = SUB_BUCKET_HALF_COUNT * 2;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount;
+    private long minValue = Long.MAX_VALUE;
+    private long maxValue;
+    private double sum;
+
+    /**
+     * Records a single latency.  Negative values are recorded as zero.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        recordCount(Math.max(nanos, 0), 1);
+    }
+
+    private void recordCount(long value, long count) {
+        counts[indexFor(value)] += count;
+        totalCount += count;
+        sum += (double) value * count;
+        minValue = Math.min(minValue, value);
+        maxValue = Math.max(maxValue, value);
+    }
+
+    /**
+     * Adds every value from the other histogram into this one.
+     *
+     * @param other The histogram to add.
+     * @return this histogram.
+     */
+    public LatencyHistogram merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        minValue = Math.min(minValue, other.minValue);
+        maxValue = Math.max(maxValue, other.maxValue);
+        return this;
+    }
+
+    /**
+     * Clears every recorded value.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        minValue = Long.MAX_VALUE;
+        maxValue = 0;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMinNanos() {
+        return totalCount == 0 ? 0 : minValue;
+    }
+
+    public long getMaxNanos() {
+        return maxValue;
+    }
+
+    public double getMeanNanos() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * Finds the latency that the given percentage of all recorded values are at or below.  The value returned is the
+     * highest value in the matching bucket so that the percentile is never under-reported.
+     *
+     * @param percentile The percentile between 0 and 100.
+     * @return The latency in nanoseconds.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        double clamped = Math.min(Math.max(percentile, 0.0), 100.0);
+        long countAtPercentile = Math.max(1, (long) Math.ceil(clamped / 100.0 * totalCount));
+        long runningCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            runningCount += counts[i];
+            if (runningCount >= countAtPercentile) {
+                return Math.min(highestValueInBucket(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    public Duration getPercentile(double percentile) {
+        return Duration.ofNanos(getValueAtPercentile(percentile));
+    }
+
+    static int indexFor(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + (subBucket - SUB_BUCKET_HALF_COUNT);
+    }
+
+    static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
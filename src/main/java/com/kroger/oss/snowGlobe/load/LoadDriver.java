@@ -0,0 +1,219 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.load;
+
+import com.kroger.oss.snowGlobe.call.CallUtility;
+import com.kroger.oss.snowGlobe.call.HttpClientPool;
+import com.kroger.oss.snowGlobe.call.PreparedRequest;
+import com.kroger.oss.snowGlobe.call.TestRequest;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates closed-loop load against a running <code>NginxRpBuilder</code>.  Each worker sends a request, waits for the
+ * whole response and then sends the next one, cycling through the given requests.  The run stops after a duration or
+ * after a number of iterations, whichever is set.  Every latency is recorded so that percentiles, the error rate and
+ * the throughput can be asserted with the returned <code>LoadVerification</code>.
+ * <p>
+ * The run uses its own connection pool with one connection per worker.  Failed calls are not retried, so each one is
+ * counted as an error.
+ * <p>
+ * A closed loop slows down when nginx slows down, so it under-reports tail latency during stalls.  Use
+ * <code>OpenLoopDriver</code> when the latency at a fixed arrival rate matters.
+ */
+public class LoadDriver {
+
+    private final List<TestRequest> requests;
+    private int workers = 1;
+    private Duration duration;
+    private long iterations = -1;
+    private Duration warmup = Duration.ZERO;
+    private Duration connectTimeout = Duration.ofSeconds(1);
+    private Duration readTimeout = Duration.ofSeconds(10);
+
+    LoadDriver(List<TestRequest> requests) {
+        if (requests == null || requests.isEmpty()) {
+            throw new IllegalArgumentException("At least one request is needed to generate load.");
+        }
+        this.requests = new ArrayList<>(requests);
+    }
+
+    /**
+     * Starts the definition of a closed-loop load run.
+     *
+     * @param requests The requests that will be cycled through.  Each one should already be sent <code>to</code> a
+     *                 reverse proxy.
+     * @return The driver to configure and run.
+     */
+    public static LoadDriver closedLoop(TestRequest... requests) {
+        return new LoadDriver(Arrays.asList(requests));
+    }
+
+    public static LoadDriver closedLoop(List<TestRequest> requests) {
+        return new LoadDriver(requests);
+    }
+
+    public LoadDriver withWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one worker is needed to generate load.");
+        }
+        this.workers = workers;
+        return this;
+    }
+
+    public LoadDriver forDuration(Duration duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    public LoadDriver forIterations(long iterations) {
+        this.iterations = iterations;
+        return this;
+    }
+
+    /**
+     * Sends requests for the given time before the measured run starts.  This lets the pooled connections and nginx
+     * warm up so that the first requests do not skew the results.
+     *
+     * @param warmup The time to send requests without recording them.
+     * @return this driver.
+     */
+    public LoadDriver withWarmup(Duration warmup) {
+        this.warmup = warmup;
+        return this;
+    }
+
+    /**
+     * Sets the longest time to wait for a connection to nginx to be established.  The default is one second.
+     *
+     * @param connectTimeout The connect timeout of each call.
+     * @return this driver.
+     */
+    public LoadDriver withConnectTimeout(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /**
+     * Sets the longest time to wait for data from nginx before the call fails.  The default is ten seconds.
+     *
+     * @param readTimeout The read timeout of each call.
+     * @return this driver.
+     */
+    public LoadDriver withReadTimeout(Duration readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * Runs the load and waits for every worker to finish.
+     *
+     * @return The merged results of every worker.
+     */
+    public LoadVerification run() {
+        if (duration == null && iterations < 0) {
+            throw new IllegalStateException("Either a duration or a number of iterations must be set for a load run.");
+        }
+        long elapsed;
+        List<Worker> finished;
+        try (HttpClientPool pool = CallUtility.buildLoadClientPool(requests.get(0), workers, connectTimeout,
+                readTimeout)) {
+            if (!warmup.isZero()) {
+                runWorkers(pool, System.nanoTime() + warmup.toNanos(), new AtomicLong(Long.MAX_VALUE));
+            }
+            long start = System.nanoTime();
+            long deadline = (duration != null) ? start + duration.toNanos() : Long.MAX_VALUE;
+            finished = runWorkers(pool, deadline, new AtomicLong(iterations < 0 ? Long.MAX_VALUE : iterations));
+            elapsed = System.nanoTime() - start;
+        }
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        Map<Integer, Long> responseCodeCounts = new HashMap<>();
+        long errors = 0;
+        for (Worker worker : finished) {
+            latencies.merge(worker.latencies);
+            worker.responseCodeCounts.forEach((code, count) -> responseCodeCounts.merge(code, count, Long::sum));
+            errors += worker.errors;
+        }
+        return new LoadVerification(latencies, errors, elapsed, responseCodeCounts);
+    }
+
+    private List<Worker> runWorkers(HttpClientPool pool, long deadline, AtomicLong remaining) {
+        List<Worker> started = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            Worker worker = new Worker(i, pool, deadline, remaining);
+            worker.start();
+            started.add(worker);
+        }
+        for (Worker worker : started) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        return started;
+    }
+
+    private class Worker extends Thread {
+        private final long deadline;
+        private final AtomicLong remaining;
+        private final PreparedRequest[] prepared;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final Map<Integer, Long> responseCodeCounts = new HashMap<>();
+        private long errors;
+        private int nextRequest;
+
+        Worker(int workerNumber, HttpClientPool pool, long deadline, AtomicLong remaining) {
+            super("snow-globe-load-" + workerNumber);
+            setDaemon(true);
+            this.deadline = deadline;
+            this.remaining = remaining;
+            this.prepared = requests.stream().map(request -> new PreparedRequest(request, pool))
+                    .toArray(PreparedRequest[]::new);
+            this.nextRequest = workerNumber % requests.size();
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline && remaining.getAndDecrement() > 0) {
+                PreparedRequest request = prepared[nextRequest];
+                nextRequest = (nextRequest + 1) % prepared.length;
+                long start = System.nanoTime();
+                try {
+                    int responseCode = request.execute();
+                    responseCodeCounts.merge(responseCode, 1L, Long::sum);
+                    if (responseCode >= 500) {
+                        errors++;
+                    }
+                } catch (Exception e) {
+                    errors++;
+                }
+                latencies.record(System.nanoTime() - start);
+            }
+        }
+    }
+}
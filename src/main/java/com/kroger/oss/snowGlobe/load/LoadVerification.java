@@ -0,0 +1,151 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.load;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+/**
+ * The result of a load run.  This holds the latency of every request, the number of requests that failed and how long
+ * the run took, allowing assertions to be made on the latency percentiles, the error rate and the throughput.
+ */
+public class LoadVerification {
+
+    private final LatencyHistogram latencies;
+    private final LatencyHistogram serviceTimes;
+    private final long errorCount;
+    private final long elapsedNanos;
+    private final Map<Integer, Long> responseCodeCounts;
+
+    public LoadVerification(LatencyHistogram latencies, long errorCount, long elapsedNanos, Map<Integer, Long> responseCodeCounts) {
+        this(latencies, latencies, errorCount, elapsedNanos, responseCodeCounts);
+    }
+
+    /**
+     * Builds the result of a run where the latency seen by a client differs from the time each call took.  In an open
+     * loop the latency is measured from when a request was scheduled to be sent, so it includes any time spent waiting
+     * to be sent while nginx was stalled.
+     *
+     * @param latencies          The latencies measured from the intended start of each request.
+     * @param serviceTimes       The time each call took from when it was actually sent.
+     * @param errorCount         The number of calls that failed or returned a 5xx status code.
+     * @param elapsedNanos       The time the whole run took.
+     * @param responseCodeCounts The number of responses for each HTTP status code.
+     */
+    public LoadVerification(LatencyHistogram latencies, LatencyHistogram serviceTimes, long errorCount,
+                            long elapsedNanos, Map<Integer, Long> responseCodeCounts) {
+        this.latencies = latencies;
+        this.serviceTimes = serviceTimes;
+        this.errorCount = errorCount;
+        this.elapsedNanos = elapsedNanos;
+        this.responseCodeCounts = Collections.unmodifiableMap(new TreeMap<>(responseCodeCounts));
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    public LatencyHistogram getServiceTimes() {
+        return serviceTimes;
+    }
+
+    public long getRequestCount() {
+        return latencies.getTotalCount();
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public Duration getElapsed() {
+        return Duration.ofNanos(elapsedNanos);
+    }
+
+    /**
+     * @return The number of responses received for each HTTP status code.
+     */
+    public Map<Integer, Long> getResponseCodeCounts() {
+        return responseCodeCounts;
+    }
+
+    /**
+     * @return The fraction of requests, between 0 and 1, that could not be made or returned a 5xx status code.
+     */
+    public double getErrorRate() {
+        long requestCount = getRequestCount();
+        return requestCount == 0 ? 0 : (double) errorCount / requestCount;
+    }
+
+    /**
+     * @return The number of requests completed per second over the whole run.
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : getRequestCount() / (elapsedNanos / 1_000_000_000.0);
+    }
+
+    public LoadVerification expectPercentileBelow(double percentile, Duration maximum) {
+        assertThat("The p" + percentile + " latency of the load run was too high. " + this,
+                latencies.getPercentile(percentile), lessThan(maximum));
+        return this;
+    }
+
+    public LoadVerification andExpectPercentileBelow(double percentile, Duration maximum) {
+        return expectPercentileBelow(percentile, maximum);
+    }
+
+    public LoadVerification expectP99Below(Duration maximum) {
+        return expectPercentileBelow(99.0, maximum);
+    }
+
+    public LoadVerification andExpectP99Below(Duration maximum) {
+        return expectP99Below(maximum);
+    }
+
+    public LoadVerification expectErrorRateBelow(double maximumRate) {
+        assertThat("The error rate of the load run was too high. " + this, getErrorRate(), lessThan(maximumRate));
+        return this;
+    }
+
+    public LoadVerification andExpectErrorRateBelow(double maximumRate) {
+        return expectErrorRateBelow(maximumRate);
+    }
+
+    public LoadVerification expectThroughputAbove(double requestsPerSecond) {
+        assertThat("The throughput of the load run was too low. " + this, getThroughput(), greaterThan(requestsPerSecond));
+        return this;
+    }
+
+    public LoadVerification andExpectThroughputAbove(double requestsPerSecond) {
+        return expectThroughputAbove(requestsPerSecond);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[requests=%d, errors=%d, elapsed=%dms, throughput=%.1f/s, p50=%.3fms, p99=%.3fms, p99.9=%.3fms, max=%.3fms, codes=%s]",
+                getRequestCount(), errorCount, elapsedNanos / 1_000_000, getThroughput(),
+                latencies.getValueAtPercentile(50) / 1e6, latencies.getValueAtPercentile(99) / 1e6,
+                latencies.getValueAtPercentile(99.9) / 1e6, latencies.getMaxNanos() / 1e6, responseCodeCounts);
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.load;
+
+import com.kroger.oss.snowGlobe.call.CallUtility;
+import com.kroger.oss.snowGlobe.call.HttpClientPool;
+import com.kroger.oss.snowGlobe.call.PreparedRequest;
+import com.kroger.oss.snowGlobe.call.TestRequest;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates open-loop load against a running <code>NginxRpBuilder</code>.  Requests are scheduled at a fixed arrival
+ * rate, or at a rate that ramps linearly over the run, no matter how quickly nginx answers.  The latency of each
+ * request is measured from the time it was scheduled to be sent, not from when a connection was free to send it, so
+ * a stall in nginx shows up in every request that should have been sent during the stall.  This avoids the
+ * coordinated omission of a closed loop, which stops sending while it waits and under-reports tail latency.
+ * <p>
+ * Each request is resolved to the host port of the reverse proxy once, before the run starts.  While the run is going,
+ * the generator only claims the next slot in the schedule, waits for its time and records the result into
+ * per-connection histograms, so it does not allocate and does not become the bottleneck.
+ * <p>
+ * The run uses its own connection pool with one connection per sender.  Failed calls are not retried, so each one is
+ * counted as an error.
+ */
+public class OpenLoopDriver {
+
+    private static final long SPIN_THRESHOLD_NANOS = 100_000;
+
+    private final List<TestRequest> requests;
+    private double startRate = -1;
+    private double endRate = -1;
+    private Duration duration;
+    private int connections = 16;
+    private Duration connectTimeout = Duration.ofSeconds(1);
+    private Duration readTimeout = Duration.ofSeconds(10);
+
+    OpenLoopDriver(List<TestRequest> requests) {
+        if (requests == null || requests.isEmpty()) {
+            throw new IllegalArgumentException("At least one request is needed to generate load.");
+        }
+        this.requests = new ArrayList<>(requests);
+    }
+
+    /**
+     * Starts the definition of an open-loop load run.
+     *
+     * @param requests The requests that will be cycled through.  Each one should already be sent <code>to</code> a
+     *                 reverse proxy.
+     * @return The driver to configure and run.
+     */
+    public static OpenLoopDriver openLoop(TestRequest... requests) {
+        return new OpenLoopDriver(Arrays.asList(requests));
+    }
+
+    public static OpenLoopDriver openLoop(List<TestRequest> requests) {
+        return new OpenLoopDriver(requests);
+    }
+
+    /**
+     * Sets a fixed arrival rate for the whole run.
+     *
+     * @param requestsPerSecond The number of requests to start each second.
+     * @return this driver.
+     */
+    public OpenLoopDriver atRate(double requestsPerSecond) {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("The arrival rate must be above zero.");
+        }
+        this.startRate = requestsPerSecond;
+        this.endRate = requestsPerSecond;
+        return this;
+    }
+
+    /**
+     * Ramps the arrival rate linearly from the rate given to <code>atRate</code> up (or down) to this rate by the end
+     * of the run.
+     *
+     * @param requestsPerSecond The number of requests to start each second at the end of the run.
+     * @return this driver.
+     */
+    public OpenLoopDriver rampingTo(double requestsPerSecond) {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("The arrival rate must be above zero.");
+        }
+        this.endRate = requestsPerSecond;
+        return this;
+    }
+
+    public OpenLoopDriver forDuration(Duration duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    /**
+     * Sets the number of connections that send requests.  When every connection is busy, the next request is sent
+     * late and its latency includes the time it waited.
+     *
+     * @param connections The number of sending connections.
+     * @return this driver.
+     */
+    public OpenLoopDriver withConnections(int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("At least one connection is needed to generate load.");
+        }
+        this.connections = connections;
+        return this;
+    }
+
+    /**
+     * Sets the longest time to wait for a connection to nginx to be established.  The default is one second.
+     *
+     * @param connectTimeout The connect timeout of each call.
+     * @return this driver.
+     */
+    public OpenLoopDriver withConnectTimeout(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /**
+     * Sets the longest time to wait for data from nginx before the call fails.  The default is ten seconds.
+     *
+     * @param readTimeout The read timeout of each call.
+     * @return this driver.
+     */
+    public OpenLoopDriver withReadTimeout(Duration readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * Runs the load and waits for every scheduled request to finish.
+     *
+     * @return The merged results of every connection.  The latencies are measured from the intended start of each
+     * request and the service times from when it was actually sent.
+     */
+    public LoadVerification run() {
+        if (startRate <= 0 || duration == null) {
+            throw new IllegalStateException("Both an arrival rate and a duration must be set for an open-loop run.");
+        }
+        long totalRequests = totalRequests();
+        AtomicLong nextSlot = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(1);
+        List<Sender> senders = new ArrayList<>();
+        long elapsed;
+        try (HttpClientPool pool = CallUtility.buildLoadClientPool(requests.get(0), connections, connectTimeout,
+                readTimeout)) {
+            for (int i = 0; i < connections; i++) {
+                senders.add(new Sender(i, pool, totalRequests, nextSlot, ready));
+            }
+            senders.forEach(Thread::start);
+            long start = System.nanoTime();
+            senders.forEach(sender -> sender.startNanos = start);
+            ready.countDown();
+            for (Sender sender : senders) {
+                try {
+                    sender.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+            elapsed = System.nanoTime() - start;
+        }
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        LatencyHistogram serviceTimes = new LatencyHistogram();
+        Map<Integer, Long> responseCodeCounts = new HashMap<>();
+        long errors = 0;
+        for (Sender sender : senders) {
+            latencies.merge(sender.latencies);
+            serviceTimes.merge(sender.serviceTimes);
+            for (int code = 0; code < sender.responseCodeCounts.length; code++) {
+                if (sender.responseCodeCounts[code] > 0) {
+                    responseCodeCounts.merge(code, sender.responseCodeCounts[code], Long::sum);
+                }
+            }
+            errors += sender.errors;
+        }
+        return new LoadVerification(latencies, serviceTimes, errors, elapsed, responseCodeCounts);
+    }
+
+    /**
+     * @return The number of requests that are scheduled over the whole run.
+     */
+    long totalRequests() {
+        double seconds = duration.toNanos() / 1e9;
+        return (long) Math.floor((startRate + endRate) / 2 * seconds);
+    }
+
+    /**
+     * Finds when a request should be sent, relative to the start of the run.  With a linear ramp, the number of
+     * requests sent by time t is <code>startRate * t + (endRate - startRate) * t^2 / (2 * duration)</code>, so the
+     * time of request i is the positive root of that quadratic.
+     *
+     * @param slot The position of the request in the schedule, starting at zero.
+     * @return The offset from the start of the run in nanoseconds.
+     */
+    long intendedOffsetNanos(long slot) {
+        double seconds;
+        if (startRate == endRate) {
+            seconds = slot / startRate;
+        } else {
+            double rampSeconds = duration.toNanos() / 1e9;
+            double a = (endRate - startRate) / (2 * rampSeconds);
+            seconds = (-startRate + Math.sqrt(startRate * startRate + 4 * a * slot)) / (2 * a);
+        }
+        return (long) (seconds * 1e9);
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS / 2);
+            }
+        }
+    }
+
+    private class Sender extends Thread {
+        private final long totalRequests;
+        private final AtomicLong nextSlot;
+        private final CountDownLatch ready;
+        private final PreparedRequest[] prepared;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LatencyHistogram serviceTimes = new LatencyHistogram();
+        private final long[] responseCodeCounts = new long[600];
+        private long errors;
+        private volatile long startNanos;
+
+        Sender(int senderNumber, HttpClientPool pool, long totalRequests, AtomicLong nextSlot, CountDownLatch ready) {
+            super("snow-globe-open-loop-" + senderNumber);
+            setDaemon(true);
+            this.totalRequests = totalRequests;
+            this.nextSlot = nextSlot;
+            this.ready = ready;
+            this.prepared = requests.stream().map(request -> new PreparedRequest(request, pool))
+                    .toArray(PreparedRequest[]::new);
+        }
+
+        @Override
+        public void run() {
+            try {
+                ready.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long slot;
+            while ((slot = nextSlot.getAndIncrement()) < totalRequests) {
+                long intendedStart = startNanos + intendedOffsetNanos(slot);
+                waitUntil(intendedStart);
+                long sent = System.nanoTime();
+                try {
+                    int responseCode = prepared[(int) (slot % prepared.length)].execute();
+                    if (responseCode >= 0 && responseCode < responseCodeCounts.length) {
+                        responseCodeCounts[responseCode]++;
+                    }
+                    if (responseCode >= 500) {
+                        errors++;
+                    }
+                } catch (Exception e) {
+                    errors++;
+                }
+                long done = System.nanoTime();
+                latencies.record(done - intendedStart);
+                serviceTimes.record(done - sent);
+            }
+        }
+    }
+}
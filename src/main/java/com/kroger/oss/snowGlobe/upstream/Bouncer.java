@@ -0,0 +1,254 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+import com.kroger.oss.snowGlobe.util.JsonUtil;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.Arrays.stream;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Answers the requests of one upstream cluster the way the upstream bounce container does: a request to one of the
+ * matching paths gets the cluster's response code, every other request is a 404, and the body always describes the
+ * request that was received in the JSON that <code>ResponseBody</code> reads.  A cluster can shape its responses with
+ * a delay, a body padded to a size or read from a file, chunking and a bandwidth limit, the same as the upstream bounce
+ * container's <code>shaper.js</code>, and it can inject faults into them like its <code>faults.js</code>.
+ */
+class Bouncer {
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+    private static final byte[] PADDING_START = ",\"padding\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PADDING_END = "\"}".getBytes(StandardCharsets.US_ASCII);
+
+    private final UpstreamDefinition definition;
+    private final List<PathPattern> matchingPaths;
+    private final byte[] padding;
+    private final List<Fault> faults;
+    private final RequestJournal journal = new RequestJournal();
+
+    Bouncer(UpstreamDefinition definition) {
+        this.definition = definition;
+        this.matchingPaths = paths(definition.getMatchingPaths());
+        this.faults = (definition.getFaults() == null) ? Collections.emptyList() :
+                definition.getFaults().stream().map(Fault::new).collect(toList());
+        this.padding = (definition.getResponseSize() > 0) ? padding(definition.getResponseSize()) : null;
+    }
+
+    UpstreamDefinition getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @param connectionId The id of the connection the request came over, for the journal.
+     */
+    UpstreamResponse handle(UpstreamRequest request, String connectionId) {
+        long start = System.nanoTime();
+        Map<String, String> headers = headers(request);
+        ReceivedRequest received = journal.record(request, headers, connectionId);
+        int status = 404;
+        Map<String, String> params = Collections.emptyMap();
+        for (PathPattern matchingPath : matchingPaths) {
+            Map<String, String> matched = matchingPath.match(request.getPath());
+            if (matched != null) {
+                status = definition.getResponseCode();
+                params = matched;
+                break;
+            }
+        }
+        Map<String, Object> echo = new LinkedHashMap<>();
+        echo.put("cluster", definition.getClusterName());
+        echo.put("instance", definition.getInstanceNumber());
+        echo.put("request", describe(request, headers, params));
+        FaultDefinition fault = pickFault(request.getPath());
+        UpstreamResponse response;
+        try {
+            if (definition.getResponseFile() != null && fault == null) {
+                response = UpstreamResponse.file(status, FileChannel.open(Paths.get(definition.getResponseFile())));
+            } else {
+                response = UpstreamResponse.json(status, padTo(JsonUtil.toJson(echo).getBytes(StandardCharsets.UTF_8)));
+            }
+        } catch (IOException e) {
+            return UpstreamResponse.text(500, String.valueOf(e));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        if (definition.getResponseHeaders() != null) {
+            definition.getResponseHeaders().forEach(response::header);
+        }
+        int sentStatus = response.getStatus();
+        return response.shape(definition.getResponseDelayMs(), definition.isChunkedResponse(),
+                definition.getBandwidthBytesPerSecond()).fault(fault)
+                .whenFinished(completed -> RequestJournal.finish(received, completed ? sentStatus : null, start));
+    }
+
+    ReceivedRequests readJournal() {
+        return journal.snapshot(definition);
+    }
+
+    void clearJournal() {
+        journal.clear();
+    }
+
+    /**
+     * @return The first fault whose paths match and whose probability comes up, or null for none.
+     */
+    private FaultDefinition pickFault(String path) {
+        for (Fault fault : faults) {
+            if (fault.matches(path) && ThreadLocalRandom.current().nextDouble() < fault.definition.getProbability()) {
+                return fault.definition;
+            }
+        }
+        return null;
+    }
+
+    private static List<PathPattern> paths(String paths) {
+        return (paths == null) ? Collections.emptyList() : stream(paths.split("\\|"))
+                .map(PathPattern::new)
+                .collect(toList());
+    }
+
+    /**
+     * Adds a padding field to the end of the echo so the body is the size of the cluster.  An echo that is already
+     * that size or larger is left alone.
+     */
+    private byte[] padTo(byte[] json) {
+        int unpadded = json.length + PADDING_START.length + PADDING_END.length - 1;
+        if (padding == null || unpadded > padding.length) {
+            return json;
+        }
+        byte[] padded = new byte[padding.length];
+        int position = json.length - 1;
+        System.arraycopy(json, 0, padded, 0, position);
+        System.arraycopy(PADDING_START, 0, padded, position, PADDING_START.length);
+        position += PADDING_START.length;
+        System.arraycopy(padding, 0, padded, position, padding.length - unpadded);
+        position += padding.length - unpadded;
+        System.arraycopy(PADDING_END, 0, padded, position, PADDING_END.length);
+        return padded;
+    }
+
+    /**
+     * The same bytes for the same length every time, and the same as the upstream bounce container sends.  They come
+     * from an xorshift generator so that they do not compress well.
+     */
+    static byte[] padding(int length) {
+        byte[] bytes = new byte[length];
+        int x = 0x2545F491;
+        for (int i = 0; i < length; i++) {
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            bytes[i] = (byte) ALPHABET.charAt(Integer.remainderUnsigned(x, ALPHABET.length()));
+        }
+        return bytes;
+    }
+
+    /**
+     * Describes the request with the fields of an express request that the upstream bounce container sends back.  The
+     * ones express leaves undefined, such as the host when there is no Host header, are left out.
+     */
+    private Map<String, Object> describe(UpstreamRequest request, Map<String, String> headers, Map<String, String> params) {
+        String host = request.getHeader("Host");
+        String protocol = "http";
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("baseUrl", "");
+        description.put("headers", headers);
+        if (host != null) {
+            description.put("hostname", hostname(host));
+            description.put("urlToRp", host);
+        }
+        description.put("urlToApplication", protocol + "://" + host + request.getTarget());
+        description.put("params", params);
+        description.put("path", request.getPath());
+        description.put("protocol", protocol);
+        description.put("query", query(request.getQueryString()));
+        description.put("secure", false);
+        description.put("xhr", "XMLHttpRequest".equalsIgnoreCase(request.getHeader("X-Requested-With")));
+        return description;
+    }
+
+    /**
+     * Header names are lower case like node has them.  Repeated headers are joined into one value.
+     */
+    private static Map<String, String> headers(UpstreamRequest request) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String[] header : request.getHeaders()) {
+            String name = header[0].toLowerCase();
+            String separator = name.equals("cookie") ? "; " : ", ";
+            headers.merge(name, header[1], (first, second) -> first + separator + second);
+        }
+        return headers;
+    }
+
+    private static String hostname(String host) {
+        int portStart = host.lastIndexOf(':');
+        return (portStart > host.lastIndexOf(']')) ? host.substring(0, portStart) : host;
+    }
+
+    /**
+     * A parameter that is repeated becomes a list of its values, as express parses it.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> query(String queryString) {
+        Map<String, Object> query = new LinkedHashMap<>();
+        if (queryString == null || queryString.isEmpty()) {
+            return query;
+        }
+        for (String parameter : queryString.split("&")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            int equals = parameter.indexOf('=');
+            String name = PathPattern.decode((equals < 0 ? parameter : parameter.substring(0, equals)).replace('+', ' '));
+            String value = (equals < 0) ? "" : PathPattern.decode(parameter.substring(equals + 1).replace('+', ' '));
+            query.merge(name, value, (existing, added) -> {
+                List<Object> values = (existing instanceof List) ? (List<Object>) existing : new ArrayList<>(Collections.singletonList(existing));
+                values.add(added);
+                return values;
+            });
+        }
+        return query;
+    }
+
+    private static class Fault {
+        private final FaultDefinition definition;
+        private final List<PathPattern> paths;
+
+        Fault(FaultDefinition definition) {
+            this.definition = definition;
+            this.paths = paths(definition.getPaths());
+        }
+
+        boolean matches(String path) {
+            return definition.getPaths() == null || paths.stream().anyMatch(pattern -> pattern.match(path) != null);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+import com.kroger.oss.snowGlobe.UpstreamFault;
+
+/**
+ * The fields of an <code>UpstreamFault</code> as they are sent in the definition of an upstream cluster.
+ */
+public class FaultDefinition {
+
+    private UpstreamFault.Type type;
+    private String paths;
+    private double probability = 1.0;
+    private int stallMs;
+    private int bodyBytes;
+    private int headerDelayMs;
+
+    public UpstreamFault.Type getType() {
+        return type;
+    }
+
+    public void setType(UpstreamFault.Type type) {
+        this.type = type;
+    }
+
+    /**
+     * @return The <code>|</code> delimited paths the fault is limited to, or null for every path.
+     */
+    public String getPaths() {
+        return paths;
+    }
+
+    public void setPaths(String paths) {
+        this.paths = paths;
+    }
+
+    public double getProbability() {
+        return probability;
+    }
+
+    public void setProbability(double probability) {
+        this.probability = probability;
+    }
+
+    public int getStallMs() {
+        return stallMs;
+    }
+
+    public void setStallMs(int stallMs) {
+        this.stallMs = stallMs;
+    }
+
+    public int getBodyBytes() {
+        return bodyBytes;
+    }
+
+    public void setBodyBytes(int bodyBytes) {
+        this.bodyBytes = bodyBytes;
+    }
+
+    public int getHeaderDelayMs() {
+        return headerDelayMs;
+    }
+
+    public void setHeaderDelayMs(int headerDelayMs) {
+        this.headerDelayMs = headerDelayMs;
+    }
+}
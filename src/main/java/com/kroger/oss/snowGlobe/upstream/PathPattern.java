@@ -0,0 +1,94 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A route path in the form express takes for <code>app.all(path)</code>, so that the matching paths of a cluster
+ * behave the same in the JVM upstream server as in the upstream bounce container.  Matching ignores case and a
+ * trailing slash.  <code>*</code> matches anything and is captured as a numbered parameter, and <code>:name</code>
+ * matches one path segment and is captured by name, or may be left out when followed by <code>?</code>.
+ */
+class PathPattern {
+
+    private static final Pattern NAMED_PARAMETER = Pattern.compile(":(\\w+)(\\?)?");
+
+    private final Pattern pattern;
+    private final List<String> parameterNames = new ArrayList<>();
+
+    PathPattern(String path) {
+        StringBuilder regex = new StringBuilder("^");
+        int wildcards = 0;
+        int i = 0;
+        while (i < path.length()) {
+            char c = path.charAt(i);
+            Matcher named = NAMED_PARAMETER.matcher(path).region(Math.min(i + 1, path.length()), path.length());
+            if (c == '/' && named.lookingAt()) {
+                parameterNames.add(named.group(1));
+                regex.append("(?:/([^/]+?))").append(named.group(2) == null ? "" : "?");
+                i = named.end();
+            } else if (c == '*') {
+                parameterNames.add(String.valueOf(wildcards++));
+                regex.append("(.*)");
+                i++;
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+                i++;
+            }
+        }
+        regex.append("/?$");
+        pattern = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * @param path The path of the request, without the query string.
+     * @return The decoded parameters captured from the path, or null if the path does not match.
+     */
+    Map<String, String> match(String path) {
+        Matcher matcher = pattern.matcher(path);
+        if (!matcher.matches()) {
+            return null;
+        }
+        Map<String, String> parameters = new LinkedHashMap<>();
+        for (int i = 0; i < parameterNames.size(); i++) {
+            String value = matcher.group(i + 1);
+            if (value != null) {
+                parameters.put(parameterNames.get(i), decode(value));
+            }
+        }
+        return parameters;
+    }
+
+    static String decode(String value) {
+        try {
+            return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+/**
+ * One request received by an upstream instance, as its journal records it.
+ */
+public class ReceivedRequest {
+
+    private long receivedAt;
+    private String method;
+    private String path;
+    private String headersDigest;
+    private String connectionId;
+    private Integer status;
+    private Double serviceTimeMs;
+
+    /**
+     * @return When the request arrived, in milliseconds since the epoch.
+     */
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    public void setReceivedAt(long receivedAt) {
+        this.receivedAt = receivedAt;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    /**
+     * @return The path without the query string.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @return The hex SHA-256 of a line of "name: value" for each header, sorted by lower case name, so that requests
+     * with the same headers can be told apart from others without comparing every header.
+     */
+    public String getHeadersDigest() {
+        return headersDigest;
+    }
+
+    public void setHeadersDigest(String headersDigest) {
+        this.headersDigest = headersDigest;
+    }
+
+    /**
+     * @return An id that is the same for the requests that came over the same connection.
+     */
+    public String getConnectionId() {
+        return connectionId;
+    }
+
+    public void setConnectionId(String connectionId) {
+        this.connectionId = connectionId;
+    }
+
+    /**
+     * @return The status of the response, or null while it is being sent or if it was cut short by a fault.
+     */
+    public Integer getStatus() {
+        return status;
+    }
+
+    public void setStatus(Integer status) {
+        this.status = status;
+    }
+
+    /**
+     * @return How long the instance took from the arrival of the request to the end of its response, or null while it
+     * is being sent.
+     */
+    public Double getServiceTimeMs() {
+        return serviceTimeMs;
+    }
+
+    public void setServiceTimeMs(Double serviceTimeMs) {
+        this.serviceTimeMs = serviceTimeMs;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The journal of an upstream instance: how many requests it has received and the latest of them, oldest first.  Only
+ * the last <code>RequestJournal.SIZE</code> requests are kept, but every one is counted.
+ */
+public class ReceivedRequests {
+
+    private String cluster;
+    private int instance;
+    private long received;
+    private List<ReceivedRequest> requests = new ArrayList<>();
+
+    public String getCluster() {
+        return cluster;
+    }
+
+    public void setCluster(String cluster) {
+        this.cluster = cluster;
+    }
+
+    public int getInstance() {
+        return instance;
+    }
+
+    public void setInstance(int instance) {
+        this.instance = instance;
+    }
+
+    /**
+     * @return Every request received since the instance started or its journal was cleared.
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    public void setReceived(long received) {
+        this.received = received;
+    }
+
+    public List<ReceivedRequest> getRequests() {
+        return requests;
+    }
+
+    public void setRequests(List<ReceivedRequest> requests) {
+        this.requests = requests;
+    }
+}
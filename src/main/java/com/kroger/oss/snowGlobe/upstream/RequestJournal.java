@@ -0,0 +1,114 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The last requests received by one cluster of the <code>UpstreamServer</code>, kept like the upstream bounce
+ * container's <code>journal.js</code> keeps them.  It is only used on the selector thread.
+ */
+class RequestJournal {
+
+    static final int SIZE = 1000;
+
+    private final ArrayDeque<ReceivedRequest> entries = new ArrayDeque<>(SIZE);
+    private long received = 0;
+
+    /**
+     * Records the request when it arrives.
+     *
+     * @param headers      The headers as the echo has them, by lower case name.
+     * @param connectionId The id of the connection it came over.
+     * @return The entry, for <code>finish</code> once the response is done.
+     */
+    ReceivedRequest record(UpstreamRequest request, Map<String, String> headers, String connectionId) {
+        ReceivedRequest entry = new ReceivedRequest();
+        entry.setReceivedAt(System.currentTimeMillis());
+        entry.setMethod(request.getMethod());
+        entry.setPath(request.getPath());
+        entry.setHeadersDigest(digest(headers));
+        entry.setConnectionId(connectionId);
+        if (entries.size() == SIZE) {
+            entries.removeFirst();
+        }
+        entries.addLast(entry);
+        received++;
+        return entry;
+    }
+
+    /**
+     * @param status The status sent, or null if the response was cut short.
+     */
+    static void finish(ReceivedRequest entry, Integer status, long startNanos) {
+        entry.setStatus(status);
+        entry.setServiceTimeMs((System.nanoTime() - startNanos) / 1e6);
+    }
+
+    /**
+     * @return A copy of the journal, which the caller may keep while requests are still recorded.
+     */
+    ReceivedRequests snapshot(UpstreamDefinition definition) {
+        ReceivedRequests snapshot = new ReceivedRequests();
+        snapshot.setCluster(definition.getClusterName());
+        snapshot.setInstance(definition.getInstanceNumber());
+        snapshot.setReceived(received);
+        for (ReceivedRequest entry : entries) {
+            ReceivedRequest copy = new ReceivedRequest();
+            copy.setReceivedAt(entry.getReceivedAt());
+            copy.setMethod(entry.getMethod());
+            copy.setPath(entry.getPath());
+            copy.setHeadersDigest(entry.getHeadersDigest());
+            copy.setConnectionId(entry.getConnectionId());
+            copy.setStatus(entry.getStatus());
+            copy.setServiceTimeMs(entry.getServiceTimeMs());
+            snapshot.getRequests().add(copy);
+        }
+        return snapshot;
+    }
+
+    void clear() {
+        entries.clear();
+        received = 0;
+    }
+
+    /**
+     * The same digest as <code>journal.js</code> makes: SHA-256 of "name: value\n" for each header, sorted by name.
+     */
+    static String digest(Map<String, String> headers) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            new TreeMap<>(headers).forEach((name, value) ->
+                    sha256.update((name + ": " + value + "\n").getBytes(StandardCharsets.UTF_8)));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : sha256.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
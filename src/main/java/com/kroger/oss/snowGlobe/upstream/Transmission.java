@@ -0,0 +1,258 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+import com.kroger.oss.snowGlobe.UpstreamFault;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Writes one response to a connection without blocking.  A response may have to wait before it starts and between
+ * slices of its body when its rate is limited, so writing it can take several turns of the selector.  A file is sent
+ * with <code>transferTo</code>, which lets the kernel copy it to the socket, unless it is chunked.
+ * <p>
+ * A response with a fault ends with the connection being closed, or reset, instead of when it has all been written.
+ */
+class Transmission implements Closeable {
+
+    static final long DONE = 0;
+    static final long BLOCKED = -1;
+    static final long CLOSE = -2;
+    static final long RESET = -3;
+    private static final int MAX_SLICE = 64 * 1024;
+    private static final long MIN_WAIT_NANOS = 1_000_000;
+
+    private final ByteBuffer head;
+    private final ByteBuffer body;
+    private final FileChannel file;
+    private final boolean chunked;
+    private final long startAt;
+    private final long bytesPerSecond;
+    private final UpstreamFault.Type fault;
+    private final long stallNanos;
+    private final long headerDelayNanos;
+    private long bodyRemaining;
+    private long nextHeaderLineAt;
+    private long stallEndsAt = 0;
+    private long filePosition = 0;
+    private long bodyStartedAt;
+    private long bodySent = 0;
+    private ByteBuffer pending;
+    private boolean trailerSent = false;
+    private boolean completed = false;
+    private Consumer<Boolean> whenFinished;
+
+    /**
+     * @param head           The status line and headers.
+     * @param body           The body in memory, or null.
+     * @param file           The file to send as the body, or null.
+     * @param bodyLength     How many bytes of the body to send, 0 for none.
+     * @param chunked        If the body is framed in chunks.
+     * @param delayNanos     How long to wait before any of the response is sent.
+     * @param bytesPerSecond The most bytes of body to send in a second, or 0 for no limit.
+     * @param fault          The fault to inject, or null for none.
+     */
+    Transmission(ByteBuffer head, ByteBuffer body, FileChannel file, long bodyLength, boolean chunked, long delayNanos,
+                 long bytesPerSecond, FaultDefinition fault) {
+        this.head = head;
+        this.body = body;
+        this.file = file;
+        this.chunked = chunked;
+        this.startAt = System.nanoTime() + delayNanos;
+        this.bytesPerSecond = bytesPerSecond;
+        this.fault = (fault == null) ? null : fault.getType();
+        this.stallNanos = (fault == null) ? 0 : TimeUnit.MILLISECONDS.toNanos(fault.getStallMs());
+        this.headerDelayNanos = (fault == null) ? 0 : TimeUnit.MILLISECONDS.toNanos(fault.getHeaderDelayMs());
+        this.nextHeaderLineAt = startAt + headerDelayNanos;
+        // A truncated body always stops short of its length, so that the client sees it end early.
+        this.bodyRemaining = (this.fault == UpstreamFault.Type.TRUNCATE_BODY && bodyLength > 0) ?
+                Math.min(fault.getBodyBytes(), bodyLength - 1) : bodyLength;
+    }
+
+    /**
+     * @param whenFinished Called when the transmission is closed with if all of it was written, or null.
+     */
+    Transmission whenFinished(Consumer<Boolean> whenFinished) {
+        this.whenFinished = whenFinished;
+        return this;
+    }
+
+    /**
+     * Writes as much of the response as the connection, the delay and the rate allow.
+     *
+     * @param channel The connection.
+     * @param now     The current <code>System.nanoTime()</code>.
+     * @return <code>DONE</code> once all of it has been written, <code>BLOCKED</code> when the connection can take no
+     * more until it is writable again, <code>CLOSE</code> or <code>RESET</code> when a fault ends the connection, or
+     * else how many nanoseconds to wait before writing more.
+     */
+    long writeTo(WritableByteChannel channel, long now) throws IOException {
+        if (now - startAt < 0) {
+            return startAt - now;
+        }
+        if (fault == UpstreamFault.Type.RESET_CONNECTION) {
+            return RESET;
+        }
+        while (true) {
+            if (pending != null) {
+                channel.write(pending);
+                if (pending.hasRemaining()) {
+                    return BLOCKED;
+                }
+                pending = null;
+            }
+            if (head.hasRemaining()) {
+                if (fault != UpstreamFault.Type.SLOW_HEADERS) {
+                    pending = head;
+                } else if (now - nextHeaderLineAt < 0) {
+                    return nextHeaderLineAt - now;
+                } else {
+                    pending = nextHeaderLine();
+                    nextHeaderLineAt = now + headerDelayNanos;
+                }
+                continue;
+            }
+            if (fault == UpstreamFault.Type.STALL_AFTER_HEADERS) {
+                if (stallEndsAt == 0) {
+                    stallEndsAt = now + stallNanos;
+                }
+                return (now - stallEndsAt < 0) ? stallEndsAt - now : CLOSE;
+            }
+            if (bodyRemaining == 0) {
+                if (fault == UpstreamFault.Type.TRUNCATE_BODY) {
+                    return CLOSE;
+                }
+                if (chunked && !trailerSent) {
+                    trailerSent = true;
+                    pending = ascii("0\r\n\r\n");
+                    continue;
+                }
+                completed = true;
+                return DONE;
+            }
+            if (bodySent == 0 && filePosition == 0 && bodyStartedAt == 0) {
+                bodyStartedAt = now;
+            }
+            long allowed = allowance(now);
+            if (allowed <= 0) {
+                double needed = Math.min(burst(), bodyRemaining) - allowed;
+                return Math.max(MIN_WAIT_NANOS, (long) (needed * 1e9 / bytesPerSecond));
+            }
+            int slice = (int) Math.min(Math.min(allowed, bodyRemaining), MAX_SLICE);
+            if (file != null && !chunked) {
+                long written = file.transferTo(filePosition, slice, channel);
+                filePosition += written;
+                bodyRemaining -= written;
+                bodySent += written;
+                if (written < slice) {
+                    return BLOCKED;
+                }
+                continue;
+            }
+            ByteBuffer data = nextSlice(slice);
+            bodyRemaining -= slice;
+            bodySent += slice;
+            pending = chunked ? frame(data) : data;
+        }
+    }
+
+    /**
+     * @return How many more bytes of body may be sent now.  A tenth of a second of bytes may be sent at once.
+     */
+    private long allowance(long now) {
+        if (bytesPerSecond <= 0) {
+            return Long.MAX_VALUE;
+        }
+        double earned = (now - bodyStartedAt) / 1e9 * bytesPerSecond;
+        return (long) Math.min(Long.MAX_VALUE / 2, burst() + earned - bodySent);
+    }
+
+    private long burst() {
+        return Math.max(1, bytesPerSecond / 10);
+    }
+
+    private ByteBuffer nextSlice(int length) throws IOException {
+        if (body != null) {
+            ByteBuffer slice = body.duplicate();
+            slice.limit(body.position() + length);
+            body.position(body.position() + length);
+            return slice;
+        }
+        ByteBuffer slice = ByteBuffer.allocate(length);
+        while (slice.hasRemaining()) {
+            int read = file.read(slice, filePosition);
+            if (read < 0) {
+                throw new IOException("The file ended before its length was sent.");
+            }
+            filePosition += read;
+        }
+        slice.flip();
+        return slice;
+    }
+
+    /**
+     * @return The next line of the head with its line break.  The blank line that ends the head goes with the last
+     * header.
+     */
+    private ByteBuffer nextHeaderLine() {
+        ByteBuffer line = head.duplicate();
+        int end = head.position();
+        while (end + 1 < head.limit() && !(head.get(end) == '\r' && head.get(end + 1) == '\n')) {
+            end++;
+        }
+        end = Math.min(head.limit(), end + 2);
+        if (head.limit() - end == 2) {
+            end = head.limit();
+        }
+        line.limit(end);
+        head.position(end);
+        return line;
+    }
+
+    private static ByteBuffer frame(ByteBuffer data) {
+        byte[] size = (Integer.toHexString(data.remaining()) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer chunk = ByteBuffer.allocate(size.length + data.remaining() + 2);
+        chunk.put(size).put(data).put((byte) '\r').put((byte) '\n');
+        chunk.flip();
+        return chunk;
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (whenFinished != null) {
+            whenFinished.accept(completed);
+            whenFinished = null;
+        }
+        if (file != null) {
+            file.close();
+        }
+    }
+}
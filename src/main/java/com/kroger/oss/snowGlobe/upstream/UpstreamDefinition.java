@@ -0,0 +1,176 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The definition an upstream instance is started from.  It has the same fields as the JSON definition the upstream
+ * bounce container takes on <code>/startServer</code>, so either server can be started from the same registration.
+ */
+public class UpstreamDefinition {
+
+    private int instanceNumber;
+    private String clusterName;
+    private String matchingPaths;
+    private int responseCode;
+    private boolean runHTTPS;
+    private Map<String, String> responseHeaders;
+    private int port;
+    private boolean sharedListener;
+    private int responseDelayMs;
+    private int responseSize;
+    private String responseFile;
+    private boolean chunkedResponse;
+    private long bandwidthBytesPerSecond;
+    private List<FaultDefinition> faults;
+
+    public int getInstanceNumber() {
+        return instanceNumber;
+    }
+
+    public void setInstanceNumber(int instanceNumber) {
+        this.instanceNumber = instanceNumber;
+    }
+
+    public String getClusterName() {
+        return clusterName;
+    }
+
+    public void setClusterName(String clusterName) {
+        this.clusterName = clusterName;
+    }
+
+    /**
+     * @return The <code>|</code> delimited paths that respond with the response code.  Every other path is a 404.
+     */
+    public String getMatchingPaths() {
+        return matchingPaths;
+    }
+
+    public void setMatchingPaths(String matchingPaths) {
+        this.matchingPaths = matchingPaths;
+    }
+
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    public void setResponseCode(int responseCode) {
+        this.responseCode = responseCode;
+    }
+
+    public boolean isRunHTTPS() {
+        return runHTTPS;
+    }
+
+    public void setRunHTTPS(boolean runHTTPS) {
+        this.runHTTPS = runHTTPS;
+    }
+
+    public Map<String, String> getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    public void setResponseHeaders(Map<String, String> responseHeaders) {
+        this.responseHeaders = responseHeaders;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @return If the instance is served by one listener on its port along with the other shared clusters, which picks
+     * the cluster by the Host header.
+     */
+    public boolean isSharedListener() {
+        return sharedListener;
+    }
+
+    public void setSharedListener(boolean sharedListener) {
+        this.sharedListener = sharedListener;
+    }
+
+    public int getResponseDelayMs() {
+        return responseDelayMs;
+    }
+
+    public void setResponseDelayMs(int responseDelayMs) {
+        this.responseDelayMs = responseDelayMs;
+    }
+
+    /**
+     * @return The size the body is padded to, or 0 to send the echo as it is.
+     */
+    public int getResponseSize() {
+        return responseSize;
+    }
+
+    public void setResponseSize(int responseSize) {
+        this.responseSize = responseSize;
+    }
+
+    /**
+     * @return The file sent as the body instead of the echo, or null.
+     */
+    public String getResponseFile() {
+        return responseFile;
+    }
+
+    public void setResponseFile(String responseFile) {
+        this.responseFile = responseFile;
+    }
+
+    public boolean isChunkedResponse() {
+        return chunkedResponse;
+    }
+
+    public void setChunkedResponse(boolean chunkedResponse) {
+        this.chunkedResponse = chunkedResponse;
+    }
+
+    /**
+     * @return The most bytes of body sent in a second, or 0 for no limit.
+     */
+    public long getBandwidthBytesPerSecond() {
+        return bandwidthBytesPerSecond;
+    }
+
+    public void setBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    }
+
+    /**
+     * @return The faults injected into the responses, in the order they are tried, or null for none.
+     */
+    public List<FaultDefinition> getFaults() {
+        return faults;
+    }
+
+    public void setFaults(List<FaultDefinition> faults) {
+        this.faults = faults;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One HTTP/1.x request read by the <code>UpstreamServer</code>.  Requests are parsed straight from the connection's
+ * buffer once all of it has arrived, including a body sent with a content length or chunked.
+ */
+class UpstreamRequest {
+
+    static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    private final String method;
+    private final String target;
+    private final String version;
+    private final List<String[]> headers;
+    private byte[] body;
+
+    private UpstreamRequest(String method, String target, String version, List<String[]> headers) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.headers = headers;
+    }
+
+    /**
+     * Reads one request from the buffer.  When the whole request is there, the buffer is left positioned after it so
+     * that a pipelined request can be read next.
+     *
+     * @param buffer The bytes read from the connection, ready to be read.
+     * @return The request, or null if it has not all arrived yet, in which case the buffer is not moved.
+     * @throws IllegalArgumentException If the bytes are not an HTTP request.
+     */
+    static UpstreamRequest read(ByteBuffer buffer) {
+        int start = buffer.position();
+        int headerEnd = indexOf(buffer, start, buffer.limit(), "\r\n\r\n");
+        if (headerEnd < 0) {
+            if (buffer.remaining() > MAX_HEADER_BYTES) {
+                throw new IllegalArgumentException("The request headers are larger than " + MAX_HEADER_BYTES + " bytes.");
+            }
+            return null;
+        }
+        String[] lines = ascii(buffer, start, headerEnd).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            throw new IllegalArgumentException("Not an HTTP/1.x request line: " + lines[0]);
+        }
+        List<String[]> headers = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Not a header: " + lines[i]);
+            }
+            headers.add(new String[]{lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim()});
+        }
+        UpstreamRequest request = new UpstreamRequest(requestLine[0], requestLine[1], requestLine[2],
+                Collections.unmodifiableList(headers));
+
+        int end = request.isChunked() ?
+                request.readChunkedBody(buffer, headerEnd + 4) :
+                request.readBody(buffer, headerEnd + 4);
+        if (end < 0) {
+            return null;
+        }
+        buffer.position(end);
+        return request;
+    }
+
+    /**
+     * @return Where the request ends, or -1 if the body has not all arrived.
+     */
+    private int readBody(ByteBuffer buffer, int bodyStart) {
+        String contentLength = getHeader("Content-Length");
+        int length;
+        try {
+            length = (contentLength == null) ? 0 : Integer.parseInt(contentLength);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a content length: " + contentLength);
+        }
+        if (buffer.limit() - bodyStart < length) {
+            return -1;
+        }
+        body = new byte[length];
+        ByteBuffer contents = buffer.duplicate();
+        contents.position(bodyStart);
+        contents.get(body);
+        return bodyStart + length;
+    }
+
+    /**
+     * @return Where the request ends, or -1 if the last chunk and the trailers have not all arrived.
+     */
+    private int readChunkedBody(ByteBuffer buffer, int bodyStart) {
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        int position = bodyStart;
+        while (true) {
+            int lineEnd = indexOf(buffer, position, buffer.limit(), "\r\n");
+            if (lineEnd < 0) {
+                return -1;
+            }
+            String sizeLine = ascii(buffer, position, lineEnd);
+            int extension = sizeLine.indexOf(';');
+            int size;
+            try {
+                size = Integer.parseInt((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a chunk size: " + sizeLine);
+            }
+            position = lineEnd + 2;
+            if (size == 0) {
+                // The trailers, if any, end with an empty line.
+                int trailersEnd = (buffer.limit() - position >= 2 && buffer.get(position) == '\r' && buffer.get(position + 1) == '\n') ?
+                        position : indexOf(buffer, position, buffer.limit(), "\r\n\r\n") + 2;
+                if (trailersEnd < position) {
+                    return -1;
+                }
+                body = chunks.toByteArray();
+                return trailersEnd + 2;
+            }
+            if (buffer.limit() - position < size + 2) {
+                return -1;
+            }
+            for (int i = 0; i < size; i++) {
+                chunks.write(buffer.get(position + i));
+            }
+            position += size + 2;
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int to, String ascii) {
+        outer:
+        for (int i = from; i <= to - ascii.length(); i++) {
+            for (int j = 0; j < ascii.length(); j++) {
+                if (buffer.get(i + j) != ascii.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static String ascii(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return The request target as sent, with the query string.
+     */
+    String getTarget() {
+        return target;
+    }
+
+    String getPath() {
+        int query = target.indexOf('?');
+        return (query < 0) ? target : target.substring(0, query);
+    }
+
+    /**
+     * @return The query string without the <code>?</code>, or null if there is none.
+     */
+    String getQueryString() {
+        int query = target.indexOf('?');
+        return (query < 0) ? null : target.substring(query + 1);
+    }
+
+    /**
+     * @return Every header in the order it was sent, as a name and a value.
+     */
+    List<String[]> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return The value of the first header with the name, ignoring case, or null if there is none.
+     */
+    String getHeader(String name) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    boolean isHead() {
+        return method.equals("HEAD");
+    }
+
+    /**
+     * @return If the client can take a chunked response.
+     */
+    boolean isHttp11() {
+        return !version.equals("HTTP/1.0");
+    }
+
+    /**
+     * nginx talks HTTP/1.0 to upstreams and closes the connection unless <code>proxy_http_version 1.1</code> is set,
+     * so connections are only kept open when the client asks for it the way its HTTP version does.
+     */
+    boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        if (!isHttp11()) {
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+        return connection == null || !connection.equalsIgnoreCase("close");
+    }
+
+    private boolean isChunked() {
+        String transferEncoding = getHeader("Transfer-Encoding");
+        return transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+    }
+}
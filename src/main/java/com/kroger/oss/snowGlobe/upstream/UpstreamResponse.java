@@ -0,0 +1,167 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A response of the <code>UpstreamServer</code>.  The body is either in memory or a file, and it may be shaped: held
+ * back for a time, sent chunked and sent at a limited rate.  Or it may carry a fault, which takes the place of the
+ * shaping.  See <code>Transmission</code> for how it is written.
+ */
+class UpstreamResponse {
+
+    private final int status;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private final byte[] body;
+    private final FileChannel file;
+    private int delayMs;
+    private boolean chunked;
+    private long bytesPerSecond;
+    private FaultDefinition fault;
+    private Consumer<Boolean> whenFinished;
+
+    UpstreamResponse(int status, String contentType, byte[] body) {
+        this(status, contentType, (body == null) ? new byte[0] : body, null);
+    }
+
+    private UpstreamResponse(int status, String contentType, byte[] body, FileChannel file) {
+        this.status = status;
+        this.body = body;
+        this.file = file;
+        if (contentType != null) {
+            headers.put("Content-Type", contentType);
+        }
+    }
+
+    static UpstreamResponse text(int status, String text) {
+        return new UpstreamResponse(status, "text/plain; charset=utf-8", text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static UpstreamResponse json(int status, byte[] json) {
+        return new UpstreamResponse(status, "application/json; charset=utf-8", json);
+    }
+
+    static UpstreamResponse json(int status, String json) {
+        return json(status, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static UpstreamResponse empty(int status) {
+        return new UpstreamResponse(status, null, null);
+    }
+
+    /**
+     * @param file The open file to send as the body, which is closed once it has been sent.
+     */
+    static UpstreamResponse file(int status, FileChannel file) {
+        return new UpstreamResponse(status, "application/octet-stream", null, file);
+    }
+
+    /**
+     * Sets a header, replacing one with the same name in any case.
+     */
+    UpstreamResponse header(String name, String value) {
+        headers.keySet().removeIf(existing -> existing.equalsIgnoreCase(name));
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * @param delayMs        How long to hold the response back before any of it is sent.
+     * @param chunked        If the body is sent chunked instead of with its length.
+     * @param bytesPerSecond The most bytes of body to send in a second, or 0 for no limit.
+     */
+    UpstreamResponse shape(int delayMs, boolean chunked, long bytesPerSecond) {
+        this.delayMs = delayMs;
+        this.chunked = chunked;
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @param fault The fault to inject in place of the shaping, or null to send the response as it is.
+     */
+    UpstreamResponse fault(FaultDefinition fault) {
+        this.fault = fault;
+        return this;
+    }
+
+    /**
+     * @param whenFinished Called once the response is done with if it was sent in full, or false if it was cut short.
+     */
+    UpstreamResponse whenFinished(Consumer<Boolean> whenFinished) {
+        this.whenFinished = whenFinished;
+        return this;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * A chunked body can not be sent to an HTTP/1.0 client, so it is sent without a length and the end of the
+     * connection marks the end of the body.  A connection with a fault is always closed.
+     */
+    boolean canKeepAlive(boolean http11) {
+        if (fault != null) {
+            return false;
+        }
+        return !chunked || http11;
+    }
+
+    /**
+     * @param keepAlive   If the connection stays open for another request.
+     * @param headRequest If the request was a HEAD, which gets the headers without the body.
+     * @param http11      If the request was HTTP/1.1, which can take a chunked body.
+     * @return The writer of the response.
+     */
+    Transmission transmit(boolean keepAlive, boolean headRequest, boolean http11) throws IOException {
+        // Like express, responses that can not have a body are sent without one.
+        boolean noBody = status == 204 || status == 304 || status < 200;
+        long length = noBody ? 0 : (file != null) ? file.size() : body.length;
+        String reason = (status == 421) ? "Misdirected Request" : EnglishReasonPhraseCatalog.INSTANCE.getReason(status, Locale.ENGLISH);
+        StringBuilder head = new StringBuilder()
+                .append("HTTP/1.1 ").append(status).append(' ').append(reason == null ? "Unknown" : reason).append("\r\n");
+        headers.forEach((name, value) -> head.append(name).append(": ").append(value).append("\r\n"));
+        boolean shaped = fault == null;
+        boolean chunkedBody = shaped && !noBody && chunked && http11;
+        if (chunkedBody) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else if (!noBody && !(shaped && chunked)) {
+            head.append("Content-Length: ").append(length).append("\r\n");
+        }
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        ByteBuffer headBuffer = ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        boolean writeBody = !noBody && !headRequest;
+        return new Transmission(headBuffer, (writeBody && file == null) ? ByteBuffer.wrap(body) : null,
+                file, writeBody ? length : 0, chunkedBody, shaped ? TimeUnit.MILLISECONDS.toNanos(delayMs) : 0,
+                shaped ? bytesPerSecond : 0, fault).whenFinished(whenFinished);
+    }
+}
@@ -0,0 +1,639 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.kroger.oss.snowGlobe.util.JsonUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * An upstream server that runs in the JVM instead of the upstream bounce container.  It answers requests with the same
+ * JSON as the bounce container, see <code>Bouncer</code>, so the reverse proxy tests can not tell the two apart.  Every
+ * listener and connection is served by one thread with a selector, so starting a cluster costs a bound socket and no
+ * thread, container or HTTP round trip.
+ * <p>
+ * The server can also be run on its own with <code>main</code>, where it takes the same management calls as the
+ * upstream bounce container on port 3000.  That allows it to be the image of the upstream container.
+ * <p>
+ * Https clusters are not served, since the bounce container's certificate is not part of the library.
+ */
+public class UpstreamServer implements Closeable {
+
+    static final int MAX_REQUEST_BYTES = 16 * 1024 * 1024;
+    private static UpstreamServer shared;
+
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Only used on the selector thread.
+    private final Map<Integer, Listener> listeners = new HashMap<>();
+    // Connections whose response is waiting on a delay or a rate limit, with the System.nanoTime() to carry on at.
+    private final Map<Connection, Long> waiting = new HashMap<>();
+    private long nextConnectionId = 0;
+
+    public UpstreamServer() {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        selectorThread = new Thread(this::run, "snow-globe-upstream");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * @return The server shared by every test in the JVM, which is started the first time it is asked for.
+     */
+    public static synchronized UpstreamServer getShared() {
+        if (shared == null) {
+            shared = new UpstreamServer();
+        }
+        return shared;
+    }
+
+    /**
+     * Starts serving the cluster.  An instance already listening on the port is replaced, unless both are served by
+     * a shared listener, in which case the cluster is added to it.
+     *
+     * @param definition The cluster to serve.
+     * @return The port the cluster is served on, which is the one in the definition unless that was 0.
+     */
+    public int start(UpstreamDefinition definition) {
+        return onSelectorThread(() -> startInstance(definition));
+    }
+
+    /**
+     * @return The ports the clusters are served on, in the same order as the definitions.
+     */
+    public int[] start(List<UpstreamDefinition> definitions) {
+        return onSelectorThread(() -> {
+            int[] ports = new int[definitions.size()];
+            for (int i = 0; i < ports.length; i++) {
+                ports[i] = startInstance(definitions.get(i));
+            }
+            return ports;
+        });
+    }
+
+    /**
+     * @return The definition of every running instance, with the port it is listening on.
+     */
+    public List<UpstreamDefinition> listInstances() {
+        return onSelectorThread(this::instances);
+    }
+
+    /**
+     * Stops the instance on the port.  For a shared listener, only the named cluster is removed, and the listener is
+     * closed once it has no clusters left.
+     *
+     * @return If there was such an instance.
+     */
+    public boolean stop(int port, String clusterName) {
+        return onSelectorThread(() -> stopInstance(port, clusterName));
+    }
+
+    /**
+     * @return The requests received by the instance on the port, or by the named cluster for a shared listener, or
+     * null if there is no such instance.
+     */
+    public ReceivedRequests readJournal(int port, String clusterName) {
+        return onSelectorThread(() -> {
+            Bouncer bouncer = bouncerOf(port, clusterName);
+            return (bouncer == null) ? null : bouncer.readJournal();
+        });
+    }
+
+    /**
+     * Forgets the requests received by the instance, as for <code>readJournal</code>.
+     *
+     * @return If there was such an instance.
+     */
+    public boolean clearJournal(int port, String clusterName) {
+        return onSelectorThread(() -> clearJournalOf(port, clusterName));
+    }
+
+    /**
+     * Stops every instance.
+     */
+    public void reset() {
+        onSelectorThread(() -> {
+            instancePorts().forEach(this::closeListener);
+            return null;
+        });
+    }
+
+    /**
+     * Takes the calls the upstream bounce container takes on its management port, so that <code>UpstreamUtil</code>
+     * can use this server as the upstream container.
+     *
+     * @param port The port for the management calls, or 0 for any free one.
+     * @return The port the management calls are taken on.
+     */
+    public int listenForManagement(int port) {
+        return onSelectorThread(() -> listen(port, this::manage).port);
+    }
+
+    /**
+     * Stops every instance and the selector thread.  The server can not be used after it has been closed.
+     */
+    @Override
+    public void close() {
+        synchronized (UpstreamServer.class) {
+            if (shared == this) {
+                shared = null;
+            }
+        }
+        if (!selectorThread.isAlive()) {
+            return;
+        }
+        onSelectorThread(() -> {
+            new ArrayList<>(listeners.keySet()).forEach(this::closeListener);
+            selector.close();
+            return null;
+        });
+    }
+
+    /**
+     * Runs the upstream server on its own, taking management calls on the port given, or 3000.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        UpstreamServer server = new UpstreamServer();
+        int port = server.listenForManagement(args.length > 0 ? Integer.parseInt(args[0]) : 3000);
+        System.out.println("Upstream manager listening on: " + port + "...");
+        server.selectorThread.join();
+    }
+
+    private <T> T onSelectorThread(Callable<T> task) {
+        if (Thread.currentThread() == selectorThread) {
+            try {
+                return task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (!selectorThread.isAlive()) {
+            throw new IllegalStateException("The upstream server has already been closed.");
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        tasks.add(() -> {
+            try {
+                result.complete(task.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        selector.wakeup();
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+    }
+
+    private void run() {
+        while (selector.isOpen()) {
+            try {
+                long timeoutMs = nextWakeMs();
+                if (timeoutMs < 0) {
+                    selector.select();
+                } else if (timeoutMs == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeoutMs);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            if (!selector.isOpen()) {
+                return;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        ((Listener) key.attachment()).accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    } else {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            resumeWaiting();
+        }
+    }
+
+    /**
+     * @return How many milliseconds until the first waiting connection can carry on, 0 if one already can, or -1 if
+     * none are waiting.
+     */
+    private long nextWakeMs() {
+        if (waiting.isEmpty()) {
+            return -1;
+        }
+        long now = System.nanoTime();
+        long first = waiting.values().stream().mapToLong(wakeAt -> wakeAt - now).min().getAsLong();
+        return (first <= 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(first) + 1;
+    }
+
+    private void resumeWaiting() {
+        if (waiting.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        List<Connection> due = waiting.entrySet().stream()
+                .filter(entry -> entry.getValue() - now <= 0)
+                .map(Map.Entry::getKey)
+                .collect(toList());
+        for (Connection connection : due) {
+            waiting.remove(connection);
+            try {
+                connection.write();
+            } catch (IOException | RuntimeException e) {
+                connection.close();
+            }
+        }
+    }
+
+    private int startInstance(UpstreamDefinition definition) throws IOException {
+        if (definition.isRunHTTPS()) {
+            throw new UnsupportedOperationException("The JVM upstream server does not serve https, which cluster " +
+                    definition.getClusterName() + " uses.  Use the upstream bounce container for https clusters.");
+        }
+        Listener listener = listeners.get(definition.getPort());
+        if (definition.isSharedListener()) {
+            if (listener == null || listener.sharedClusters == null) {
+                closeListener(definition.getPort());
+                listener = listen(definition.getPort(), null);
+                listener.sharedClusters = new LinkedHashMap<>();
+            }
+            definition.setPort(listener.port);
+            listener.sharedClusters.put(definition.getClusterName().toLowerCase(), new Bouncer(definition));
+        } else {
+            closeListener(definition.getPort());
+            listener = listen(definition.getPort(), null);
+            definition.setPort(listener.port);
+            listener.bouncer = new Bouncer(definition);
+        }
+        return listener.port;
+    }
+
+    private Listener listen(int port, Function<UpstreamRequest, UpstreamResponse> handler) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(port), 1024);
+            channel.configureBlocking(false);
+        } catch (BindException e) {
+            closeQuietly(channel);
+            throw new IllegalStateException("Unable to listen on port " + port + ", it is already in use.", e);
+        }
+        Listener listener = new Listener(channel, handler);
+        listeners.put(listener.port, listener);
+        channel.register(selector, SelectionKey.OP_ACCEPT, listener);
+        return listener;
+    }
+
+    private List<UpstreamDefinition> instances() {
+        List<UpstreamDefinition> definitions = new ArrayList<>();
+        listeners.values().forEach(listener -> {
+            if (listener.bouncer != null) {
+                definitions.add(listener.bouncer.getDefinition());
+            } else if (listener.sharedClusters != null) {
+                listener.sharedClusters.values().forEach(bouncer -> definitions.add(bouncer.getDefinition()));
+            }
+        });
+        return definitions;
+    }
+
+    private boolean stopInstance(int port, String clusterName) {
+        Listener listener = listeners.get(port);
+        if (listener == null || listener.handler != null) {
+            return false;
+        }
+        if (listener.sharedClusters != null) {
+            if (clusterName == null || listener.sharedClusters.remove(clusterName.toLowerCase()) == null) {
+                return false;
+            }
+            if (listener.sharedClusters.isEmpty()) {
+                closeListener(port);
+            }
+            return true;
+        }
+        closeListener(port);
+        return true;
+    }
+
+    private Bouncer bouncerOf(int port, String clusterName) {
+        Listener listener = listeners.get(port);
+        if (listener == null || listener.handler != null) {
+            return null;
+        }
+        if (listener.sharedClusters != null) {
+            return (clusterName == null) ? null : listener.sharedClusters.get(clusterName.toLowerCase());
+        }
+        return listener.bouncer;
+    }
+
+    private boolean clearJournalOf(int port, String clusterName) {
+        Bouncer bouncer = bouncerOf(port, clusterName);
+        if (bouncer != null) {
+            bouncer.clearJournal();
+        }
+        return bouncer != null;
+    }
+
+    /**
+     * Closes the listener on the port along with its open connections, so that a kept alive connection is not served
+     * by a cluster that has been replaced.
+     */
+    private void closeListener(int port) {
+        Listener listener = listeners.remove(port);
+        if (listener != null) {
+            closeQuietly(listener.channel);
+            new ArrayList<>(listener.connections).forEach(Connection::close);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // There is nothing left to do with it.
+        }
+    }
+
+    /**
+     * The management calls of the upstream bounce container.
+     */
+    private UpstreamResponse manage(UpstreamRequest request) {
+        String route = request.getMethod() + " " + request.getPath();
+        try {
+            switch (route) {
+                case "POST /startServer":
+                    return UpstreamResponse.text(200, String.valueOf(startInstance(readBody(request, UpstreamDefinition.class))));
+                case "POST /startServers":
+                    List<UpstreamDefinition> definitions = new ArrayList<>();
+                    for (JsonNode definition : readBody(request, JsonNode.class)) {
+                        definitions.add(JsonUtil.readerFor(UpstreamDefinition.class).readValue(definition));
+                    }
+                    return UpstreamResponse.json(200, JsonUtil.toJson(start(definitions)));
+                case "POST /reset":
+                    instancePorts().forEach(this::closeListener);
+                    return UpstreamResponse.empty(200);
+                case "POST /stopServer":
+                    JsonNode stop = readBody(request, JsonNode.class);
+                    boolean stopped = stopInstance(stop.path("port").asInt(),
+                            stop.hasNonNull("clusterName") ? stop.get("clusterName").asText() : null);
+                    return UpstreamResponse.empty(stopped ? 200 : 404);
+                case "GET /instances":
+                    return UpstreamResponse.json(200, JsonUtil.toJson(instances()));
+                case "GET /journal":
+                case "DELETE /journal":
+                    Map<String, Object> query = Bouncer.query(request.getQueryString());
+                    int port = Integer.parseInt(String.valueOf(query.get("port")));
+                    String clusterName = (query.get("clusterName") == null) ? null : String.valueOf(query.get("clusterName"));
+                    if (request.getMethod().equals("DELETE")) {
+                        return UpstreamResponse.empty(clearJournalOf(port, clusterName) ? 200 : 404);
+                    }
+                    Bouncer bouncer = bouncerOf(port, clusterName);
+                    return (bouncer == null) ? UpstreamResponse.empty(404) :
+                            UpstreamResponse.json(200, JsonUtil.toJson(bouncer.readJournal()));
+                case "GET /health":
+                    return UpstreamResponse.empty(200);
+                default:
+                    return UpstreamResponse.text(404, "Cannot " + route);
+            }
+        } catch (Exception e) {
+            return UpstreamResponse.text(500, String.valueOf(e));
+        }
+    }
+
+    /**
+     * @return The ports of the cluster instances, leaving out the management listener.
+     */
+    private Collection<Integer> instancePorts() {
+        return listeners.values().stream()
+                .filter(listener -> listener.handler == null)
+                .map(listener -> listener.port)
+                .collect(toList());
+    }
+
+    private static <T> T readBody(UpstreamRequest request, Class<T> type) throws IOException {
+        return JsonUtil.readerFor(type).readValue(request.getBody());
+    }
+
+    private class Listener {
+        private final ServerSocketChannel channel;
+        private final int port;
+        private final Function<UpstreamRequest, UpstreamResponse> handler;
+        private final Set<Connection> connections = new HashSet<>();
+        private Bouncer bouncer;
+        private Map<String, Bouncer> sharedClusters;
+
+        Listener(ServerSocketChannel channel, Function<UpstreamRequest, UpstreamResponse> handler) throws IOException {
+            this.channel = channel;
+            this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            this.handler = handler;
+        }
+
+        void accept() throws IOException {
+            SocketChannel socket;
+            while ((socket = channel.accept()) != null) {
+                socket.configureBlocking(false);
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(socket, this);
+                connections.add(connection);
+                socket.register(selector, SelectionKey.OP_READ, connection);
+            }
+        }
+
+        UpstreamResponse handle(UpstreamRequest request, String connectionId) {
+            if (handler != null) {
+                return handler.apply(request);
+            }
+            if (bouncer != null) {
+                return bouncer.handle(request, connectionId);
+            }
+            String host = request.getHeader("Host");
+            Bouncer cluster = (host == null) ? null : sharedClusters.get(host.replaceFirst(":\\d+$", "").toLowerCase());
+            if (cluster == null) {
+                return UpstreamResponse.text(421, "No cluster is registered on port " + port + " for the Host header " +
+                        host + ".  The Host header must be the cluster name, which nginx sends unless " +
+                        "\"proxy_set_header Host\" changes it.");
+            }
+            return cluster.handle(request, connectionId);
+        }
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final Listener listener;
+        private final String id = String.valueOf(nextConnectionId++);
+        private final Queue<Transmission> transmissions = new ArrayDeque<>();
+        private ByteBuffer received = ByteBuffer.allocate(8192);
+        private boolean closeWhenWritten = false;
+
+        Connection(SocketChannel channel, Listener listener) {
+            this.channel = channel;
+            this.listener = listener;
+        }
+
+        void read() throws IOException {
+            if (!received.hasRemaining()) {
+                if (received.capacity() >= MAX_REQUEST_BYTES) {
+                    respond(UpstreamResponse.text(413, "The request is larger than " + MAX_REQUEST_BYTES + " bytes."), null);
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(received.capacity() * 2);
+                received.flip();
+                larger.put(received);
+                received = larger;
+            }
+            if (channel.read(received) < 0) {
+                close();
+                return;
+            }
+            received.flip();
+            try {
+                UpstreamRequest request;
+                while (!closeWhenWritten && (request = UpstreamRequest.read(received)) != null) {
+                    UpstreamResponse response;
+                    try {
+                        response = listener.handle(request, id);
+                    } catch (RuntimeException e) {
+                        response = UpstreamResponse.text(500, String.valueOf(e));
+                    }
+                    respond(response, request);
+                }
+            } catch (IllegalArgumentException e) {
+                respond(UpstreamResponse.text(400, e.getMessage()), null);
+            }
+            received.compact();
+        }
+
+        /**
+         * @param request The request answered, or null when it could not be read, which closes the connection.
+         */
+        private void respond(UpstreamResponse response, UpstreamRequest request) throws IOException {
+            boolean http11 = request == null || request.isHttp11();
+            boolean keepAlive = request != null && request.isKeepAlive() && response.canKeepAlive(http11);
+            boolean head = request != null && request.isHead();
+            transmissions.add(response.transmit(keepAlive, head, http11));
+            closeWhenWritten = !keepAlive;
+            if (!waiting.containsKey(this)) {
+                write();
+            }
+        }
+
+        void write() throws IOException {
+            SelectionKey key = channel.keyFor(selector);
+            while (!transmissions.isEmpty()) {
+                long result = transmissions.peek().writeTo(channel, System.nanoTime());
+                if (result == Transmission.BLOCKED) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (result == Transmission.RESET) {
+                    // With no linger time the close sends a reset instead of a fin.
+                    channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                }
+                if (result == Transmission.CLOSE || result == Transmission.RESET) {
+                    close();
+                    return;
+                }
+                if (result != Transmission.DONE) {
+                    key.interestOps(0);
+                    waiting.put(this, System.nanoTime() + result);
+                    return;
+                }
+                closeQuietly(transmissions.poll());
+            }
+            if (closeWhenWritten) {
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void close() {
+            listener.connections.remove(this);
+            waiting.remove(this);
+            transmissions.forEach(UpstreamServer::closeQuietly);
+            transmissions.clear();
+            closeQuietly(channel);
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -53,20 +54,23 @@ public class ComposeUtility {
             if(frameworkProperties.getShouldReloadNginxOnEachRun()) {
                 reload();
             }
-            nginxRpBuilder.assignPortFormRunningContainer(ContainerUtil.getMappedPorts(containerId));
         } else {
             startReverseProxy();
             addNginxShutDownHook(containerId);
         }
+        nginxRpBuilder.assignPortFormRunningContainer(ContainerUtil.getMappedPorts(containerId));
     }
 
     /**
      * Causes the Nginx process to reload.  If a custom command is provided by the framework properties,
      * then it will be passed in, otherwise the default of "nginx", "-s", "reload" will be supplied.
+     *
+     * @return How long it took until the new configuration was serving requests.
      */
-    public void reload() {
+    public Duration reload() {
         String containerId = nginxRpBuilder.buildRpContainerId();
-        ContainerUtil.restartNginx(containerId, 100, frameworkProperties.getNginxReloadCommand());
+        return ContainerUtil.restartNginx(containerId, frameworkProperties.getNginxReloadCommand(),
+                frameworkProperties.getMaxNginxReloadTimeMs());
     }
 
     protected String getComposeFileName() {
@@ -107,6 +111,7 @@ public class ComposeUtility {
         } else {
             ContainerUtil.runCommand(command);
         }
+        ContainerRegistry.get().forget(nginxRpBuilder.buildRpContainerId());
     }
 
     protected String buildComposeFileContents() {
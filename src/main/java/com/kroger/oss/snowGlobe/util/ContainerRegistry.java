@@ -0,0 +1,216 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Remembers the state of the containers Snow-Globe asks about, so that starting a reverse proxy that is already
+ * running does not have to ask Docker again.  The remembered state is only trusted while the Docker event stream is
+ * followed: every event for a container forgets what was known about it, and everything is forgotten when the stream
+ * ends.  Without the stream every question goes straight to Docker.  The stream is closed when the JVM shuts down or
+ * when the registry is reset.
+ */
+public class ContainerRegistry implements DockerClient.ContainerEventListener {
+
+    static final long RECONNECT_DELAY_MS = 5000;
+
+    private static ContainerRegistry registry;
+
+    private final DockerClient dockerClient;
+    private final Map<String, ContainerState> containers = new ConcurrentHashMap<>();
+    private volatile boolean watching = false;
+    private volatile long lastWatchAttempt = 0;
+    private Closeable eventStream;
+    private boolean closed = false;
+    private final Thread shutdownHook = new Thread(this::close);
+    private boolean shutdownHookAdded = false;
+
+    ContainerRegistry(DockerClient dockerClient) {
+        this.dockerClient = dockerClient;
+    }
+
+    /**
+     * @return The registry for the Docker client that <code>ContainerUtil</code> uses.
+     */
+    public static synchronized ContainerRegistry get() {
+        if (registry == null) {
+            registry = new ContainerRegistry(ContainerUtil.getDockerClient());
+        }
+        return registry;
+    }
+
+    /**
+     * Stops following the events of the current registry, so that the next call to <code>get()</code> builds a new one.
+     */
+    static synchronized void reset() {
+        if (registry != null) {
+            registry.close();
+            registry = null;
+        }
+    }
+
+    /**
+     * @param containerName The name or id of the container.
+     * @return If the container exists and is running.
+     */
+    public boolean isRunning(String containerName) {
+        return getState(containerName).running;
+    }
+
+    /**
+     * @param containerName The name or id of the container.
+     * @return The container ports mapped to the host ports.  This is empty if the container is not running.
+     */
+    public Map<Integer, Integer> getMappedPorts(String containerName) {
+        return new HashMap<>(getState(containerName).mappedPorts);
+    }
+
+    /**
+     * Answers if a service in the container is healthy.  A passing health check is remembered until the container
+     * changes, so the check is only run again after the container was stopped, restarted or removed.
+     *
+     * @param containerName The name or id of the container.
+     * @param healthCheck   Checks the service, for example by calling its health endpoint.
+     * @return If the container is running and its service passed the health check.
+     */
+    public boolean isHealthy(String containerName, BooleanSupplier healthCheck) {
+        ContainerState state = getState(containerName);
+        if (!state.running) {
+            return false;
+        }
+        if (state.healthy) {
+            return true;
+        }
+        boolean healthy = healthCheck.getAsBoolean();
+        state.healthy = healthy;
+        return healthy;
+    }
+
+    /**
+     * Forgets what is known about the container.  This is called after Snow-Globe changed the container itself, since
+     * the event for the change may not have arrived yet.
+     *
+     * @param containerName The name or id of the container.
+     */
+    public void forget(String containerName) {
+        containers.remove(containerName);
+    }
+
+    @Override
+    public void connected() {
+        containers.clear();
+        watching = true;
+    }
+
+    @Override
+    public void containerChanged(String containerName, String action) {
+        if (containerName == null) {
+            containers.clear();
+        } else {
+            containers.remove(containerName);
+        }
+    }
+
+    @Override
+    public void disconnected() {
+        watching = false;
+        containers.clear();
+    }
+
+    synchronized void close() {
+        closed = true;
+        disconnected();
+        if (eventStream != null) {
+            try {
+                eventStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            eventStream = null;
+        }
+        if (shutdownHookAdded && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ignored) {
+                // The JVM is already shutting down and the hook is running or has run.
+            }
+        }
+    }
+
+    boolean isWatching() {
+        return watching;
+    }
+
+    private ContainerState getState(String containerName) {
+        watchEvents();
+        if (!watching) {
+            return load(containerName);
+        }
+        // The map does not let an event remove the entry while it is being loaded, so a change that happens during
+        // the load is never hidden behind the state read before it.
+        ContainerState state = containers.computeIfAbsent(containerName, this::load);
+        return watching ? state : load(containerName);
+    }
+
+    private ContainerState load(String containerName) {
+        boolean running = dockerClient.isContainerRunning(containerName);
+        return new ContainerState(running, running ? dockerClient.getMappedPorts(containerName) : Collections.emptyMap());
+    }
+
+    private synchronized void watchEvents() {
+        if (watching || closed || System.currentTimeMillis() - lastWatchAttempt < RECONNECT_DELAY_MS) {
+            return;
+        }
+        lastWatchAttempt = System.currentTimeMillis();
+        if (eventStream != null) {
+            try {
+                eventStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+        try {
+            eventStream = dockerClient.watchContainerEvents(this);
+        } catch (RuntimeException e) {
+            eventStream = null;
+        }
+        if (eventStream != null && !shutdownHookAdded) {
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+            shutdownHookAdded = true;
+        }
+    }
+
+    private static class ContainerState {
+        private final boolean running;
+        private final Map<Integer, Integer> mappedPorts;
+        private volatile boolean healthy = false;
+
+        ContainerState(boolean running, Map<Integer, Integer> mappedPorts) {
+            this.running = running;
+            this.mappedPorts = mappedPorts;
+        }
+    }
+}
@@ -1,12 +1,46 @@
 package com.kroger.oss.snowGlobe.util;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class ContainerUtil {
 
+    private static DockerClient dockerClient;
+
+    /**
+     * The client used for every Docker operation.  The Docker Engine API is used directly when the daemon can be
+     * reached over its unix socket or plain TCP, otherwise each operation runs the docker command line.
+     *
+     * @return The shared Docker client.
+     */
+    public static synchronized DockerClient getDockerClient() {
+        if (dockerClient == null) {
+            DockerClient engineClient = DockerEngineClient.fromEnvironment(System.getenv("DOCKER_HOST"), System.getenv("DOCKER_TLS_VERIFY"));
+            dockerClient = (engineClient != null) ? engineClient : new DockerCliClient();
+        }
+        return dockerClient;
+    }
+
+    /**
+     * Replaces the Docker client, for example with a stand-in for tests.
+     *
+     * @param client The client to use for every Docker operation.
+     */
+    public static synchronized void useDockerClient(DockerClient client) {
+        dockerClient = client;
+        ContainerRegistry.reset();
+    }
+
     public static void logContainerOutput(String containerName) {
         try {
             System.out.println("\n\tLogging output for container: " + containerName);
@@ -46,113 +80,230 @@ public class ContainerUtil {
         }
     }
 
+    /**
+     * Reads the host ports that Docker assigned to the container's published ports.  The ports are read from the
+     * structured container details, so they are exactly the ports Docker bound.
+     *
+     * @param containerId The name or id of the container.
+     * @return The container ports mapped to the host ports.  This is empty if the container does not exist.
+     */
     public static Map<Integer, Integer> getMappedPorts(String containerId) {
+        return ContainerRegistry.get().getMappedPorts(containerId);
+    }
+
+    /**
+     * Parses the <code>NetworkSettings.Ports</code> section of <code>docker inspect</code>, for example:
+     * <code>{"443/tcp":[{"HostIp":"0.0.0.0","HostPort":"32768"}],"80/tcp":null}</code>.  Ports that are not published
+     * to the host are skipped.
+     *
+     * @param portsJson The JSON of the port bindings.
+     * @return The container ports mapped to the host ports.
+     */
+    protected static Map<Integer, Integer> parsePortBindings(String portsJson) {
         try {
-            ProcessBuilder processBuilder = new ProcessBuilder("docker", "ps");
-            processBuilder.redirectErrorStream(true);
-            Process process = processBuilder.start();
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            process.waitFor();
-            while (bufferedReader.ready()) {
-                String line = bufferedReader.readLine();
-                if (line.contains(containerId)) {
-                    return parseMappedPorts(line);
-                }
-            }
-            return new HashMap<>();
-        } catch (Exception e) {
+            return parsePortBindings(JsonUtil.readerFor(JsonNode.class).readTree(portsJson));
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    protected static Map<Integer, Integer> parseMappedPorts(String psLine) {
+    static Map<Integer, Integer> parsePortBindings(JsonNode ports) {
         Map<Integer, Integer> mappedPorts = new HashMap<>();
-        int startIndex = psLine.indexOf("0.0.0.0");
-        int stopIndex = psLine.indexOf("RP-");
-        String ports = psLine.substring(startIndex, stopIndex)
-                .trim()
-                .replaceAll(" ", "")
-                .replaceAll("/tcp", "")
-                .replaceAll("->", "|")
-                .replaceAll("[0-9]+[.][0-9]+[.][0-9]+[.][0-9]+:", "");
-        String[] portMappings = ports.split(",");
-        Arrays.stream(portMappings).forEach(mapping -> {
-            String[] inOutPorts = mapping.split("[|]");
-            mappedPorts.put(Integer.parseInt(inOutPorts[1]), Integer.parseInt(inOutPorts[0]));
-        });
+        Iterator<Map.Entry<String, JsonNode>> entries = ports.fields();
+        while (entries.hasNext()) {
+            Map.Entry<String, JsonNode> entry = entries.next();
+            String containerPort = entry.getKey();
+            if (!containerPort.endsWith("/tcp")) {
+                continue;
+            }
+            for (JsonNode binding : entry.getValue()) {
+                String hostPort = binding.path("HostPort").asText();
+                if (!hostPort.isEmpty()) {
+                    mappedPorts.put(Integer.parseInt(containerPort.substring(0, containerPort.indexOf('/'))),
+                            Integer.parseInt(hostPort));
+                    break;
+                }
+            }
+        }
         return mappedPorts;
     }
 
-    public static boolean isContainerRunning(String containerId) {
+    /**
+     * Reads a stream of Docker events, one JSON object after another, until it ends.  The event format is the same
+     * for the Engine API and for <code>docker events --format '{{json .}}'</code>:
+     * <code>{"Type":"container","Action":"start","Actor":{"ID":"...","Attributes":{"name":"upstream"}}}</code>.
+     *
+     * @param events   The stream of events.
+     * @param listener Told about every container event.
+     * @throws IOException If the stream can not be read.
+     */
+    static void readContainerEvents(InputStream events, DockerClient.ContainerEventListener listener) throws IOException {
+        MappingIterator<JsonNode> iterator = JsonUtil.readerFor(JsonNode.class).readValues(events);
+        while (iterator.hasNextValue()) {
+            JsonNode event = iterator.nextValue();
+            if (!"container".equals(event.path("Type").asText("container"))) {
+                continue;
+            }
+            JsonNode name = event.path("Actor").path("Attributes").path("name");
+            String action = event.has("Action") ? event.path("Action").asText() : event.path("status").asText();
+            listener.containerChanged(name.isTextual() ? name.asText() : null, action);
+        }
+    }
+
+    /**
+     * Runs the command and reads all that it writes to standard out.
+     *
+     * @param command The command to run.
+     * @return The trimmed output, or null if the command failed.
+     */
+    static String runCommandForOutput(String... command) {
         try {
-            ProcessBuilder processBuilder = new ProcessBuilder("docker", "ps");
-            processBuilder.redirectErrorStream(true);
-            Process process = processBuilder.start();
-            boolean isRunning = false;
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            process.waitFor();
-            while (bufferedReader.ready()) {
-                String line = bufferedReader.readLine();
-                if (line.contains(containerId)) {
-                    isRunning = line.contains("Up");
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            StringBuilder output = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.append(line).append('\n');
                 }
             }
-            return isRunning;
+            return (process.waitFor() == 0) ? output.toString().trim() : null;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    public static void restartNginx(String containerId, int reloadWaitMs, String[] restartCmd) {
+    public static boolean isContainerRunning(String containerId) {
+        return ContainerRegistry.get().isRunning(containerId);
+    }
+
+    static final int RELOAD_TIMED_OUT = 124;
+    private static final long MAX_RELOAD_POLL_MS = 500;
+    // The default of nginx.reload.maxTimeMs.
+    private static final int DEFAULT_MAX_RELOAD_MS = 10000;
+
+    /**
+     * Reloads nginx and waits inside the container until the reload is done, so that no docker call is made while
+     * waiting.  The script remembers the running workers, runs the reload command and then reads the process titles
+     * in <code>/proc</code> with a backoff from 10ms up to 500ms, the same as the fallback without a shell.  The reload
+     * is done once a new worker is running and every original worker has retired or is shutting down.  A worker that
+     * is shutting down no longer accepts connections and has closed its idle ones, so a slow request that it is still
+     * draining does not hold up the reload.  The arguments are the longest time to wait in hundredths of a second and
+     * then the reload command.
+     */
+    static final String RELOAD_AND_WAIT_SCRIPT = "max=$1; shift\n" +
+            "workers() {\n" +
+            "  for p in /proc/[0-9]*; do\n" +
+            "    c=$(tr '\\000' ' ' < \"$p/cmdline\" 2>/dev/null) || continue\n" +
+            "    case \"$c\" in *'is shutting down'*) ;; 'nginx: worker process'*) echo \"${p#/proc/}\" ;; esac\n" +
+            "  done\n" +
+            "}\n" +
+            "old=\" $(workers | tr '\\n' ' ') \"\n" +
+            "\"$@\" || exit $?\n" +
+            "[ \"$old\" = '  ' ] && exit 0\n" +
+            "waited=0; delay=1\n" +
+            "while [ $waited -lt $max ]; do\n" +
+            "  fresh=0; stale=0\n" +
+            "  for pid in $(workers); do case \"$old\" in *\" $pid \"*) stale=1 ;; *) fresh=1 ;; esac; done\n" +
+            "  [ $stale -eq 0 ] && [ $fresh -eq 1 ] && exit 0\n" +
+            "  sleep \"$((delay / 100)).$((delay / 10 % 10))$((delay % 10))\"\n" +
+            "  waited=$((waited + delay)); delay=$((delay * 2)); [ $delay -gt " + MAX_RELOAD_POLL_MS / 10 + " ] && " +
+            "delay=" + MAX_RELOAD_POLL_MS / 10 + "\n" +
+            "done\n" +
+            "exit " + RELOAD_TIMED_OUT + "\n";
+
+    /**
+     * Reloads nginx and waits until the new configuration is serving requests.  When the container has no shell, the
+     * worker processes are listed with docker instead, with the same backoff.
+     *
+     * @param containerId   The name or id of the reverse proxy container.
+     * @param reloadCommand The command that makes nginx reload.
+     * @param maxReloadMs   The longest time to wait for the original workers to retire.
+     * @return How long the reload took.
+     */
+    public static Duration restartNginx(String containerId, String[] reloadCommand, int maxReloadMs) {
+        long start = System.nanoTime();
+        List<String> command = new ArrayList<>(Arrays.asList("sh", "-c", RELOAD_AND_WAIT_SCRIPT, "sh",
+                String.valueOf(Math.max(1, maxReloadMs / 10))));
+        command.addAll(Arrays.asList(reloadCommand));
+        int exitCode = execWithLogs(containerId, String.join(" ", reloadCommand), command);
         try {
-            List<String> originalWorkerThreads = getNginxWorkerThreads(containerId);
-            runCommandWithLogs(buildReloadCommand(containerId, restartCmd));
-            Thread.sleep(reloadWaitMs);
-            List<String> postReloadWorkerThreads = getNginxWorkerThreads(containerId);
-            // We are going to wait until all original worker threads are retired.
-            while (hasOriginalWorkerPidsRunning(originalWorkerThreads, postReloadWorkerThreads)) {
-                postReloadWorkerThreads = getNginxWorkerThreads(containerId);
-                Thread.sleep(reloadWaitMs);
+            if (exitCode == 126 || exitCode == 127) {
+                // There is no shell in the container, so the script never ran.
+                List<String> originalWorkers = getNginxWorkerThreads(containerId);
+                exitCode = execWithLogs(containerId, String.join(" ", reloadCommand), Arrays.asList(reloadCommand));
+                if (exitCode == 0 && !waitForWorkersToRetire(containerId, originalWorkers, start + TimeUnit.MILLISECONDS.toNanos(maxReloadMs))) {
+                    exitCode = RELOAD_TIMED_OUT;
+                }
             }
-        } catch (Exception e) {
+        } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
+        if (exitCode == RELOAD_TIMED_OUT) {
+            throw new RuntimeException("Nginx did not finish reloading within " + maxReloadMs + "ms, the original " +
+                    "workers are still running.  Check the nginx error log for configuration errors.");
+        } else if (exitCode != 0) {
+            throw new RuntimeException("The nginx reload command failed with exit code " + exitCode + ".");
+        }
+        Duration reloadTime = Duration.ofNanos(System.nanoTime() - start);
+        System.out.println("Nginx reloaded in " + reloadTime.toMillis() + "ms");
+        return reloadTime;
+    }
+
+    /**
+     * @deprecated Use <code>restartNginx(String, String[], int)</code>, which waits for the reload without a fixed
+     * sleep.  The sleep is ignored and the reload waits for up to the default of
+     * <code>nginx.reload.maxTimeMs</code>.
+     */
+    @Deprecated
+    public static void restartNginx(String containerId, int reloadWaitMs, String[] restartCmd) {
+        restartNginx(containerId, restartCmd, DEFAULT_MAX_RELOAD_MS);
+    }
+
+    private static int execWithLogs(String containerId, String description, List<String> command) {
+        System.out.println("\n\tRunning Command in " + containerId + ": " + description);
+        System.out.println("----------------------------------------------------");
+        int exitCode = getDockerClient().exec(containerId, command);
+        System.out.println("[EXIT CODE: " + exitCode + "]");
+        System.out.println("----------------------------------------------------");
+        return exitCode;
     }
 
-    private static String[] buildReloadCommand(String containerId, String[] customRestartCmd) {
-        String[] commandPrefix = {"docker", "exec", containerId};
-        ArrayList<String> command = new ArrayList<>(Arrays.asList(commandPrefix));
-        command.addAll(Arrays.asList(customRestartCmd));
-        return command.toArray(new String[1]);
+    private static boolean waitForWorkersToRetire(String containerId, List<String> originalWorkers, long deadlineNanos)
+            throws InterruptedException {
+        long delayMs = 10;
+        while (hasOriginalWorkerPidsRunning(originalWorkers, getNginxWorkerThreads(containerId))) {
+            if (System.nanoTime() > deadlineNanos) {
+                return false;
+            }
+            Thread.sleep(delayMs);
+            delayMs = Math.min(delayMs * 2, MAX_RELOAD_POLL_MS);
+        }
+        return true;
     }
 
     private static boolean hasOriginalWorkerPidsRunning(List<String> originalWorkerPids, List<String> postReloadWorkerPids) {
         return originalWorkerPids.stream().anyMatch(pid -> postReloadWorkerPids.contains(pid));
     }
 
+    /**
+     * @return The pids of the workers that accept connections.  Workers that are shutting down are left out.
+     */
     private static List<String> getNginxWorkerThreads(String containerId) {
-        try {
-            Process process = new ProcessBuilder("docker", "top", containerId, "-e", "-o", "pid,command").start();
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            process.waitFor();
-            List<String> allLines = new ArrayList<>();
-            while (bufferedReader.ready()) {
-                allLines.add(bufferedReader.readLine());
-            }
-            return allLines.stream()
-                    .filter((line) -> line.contains("nginx: worker process"))
-                    .map(line -> line.substring(0, line.indexOf("nginx")).trim())
-                    .collect(Collectors.toList());
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return getDockerClient().listProcesses(containerId).entrySet().stream()
+                .filter(process -> process.getValue().contains("nginx: worker process"))
+                .filter(process -> !process.getValue().contains("is shutting down"))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
     }
 
     public static void shutdownContainer(String containerName) {
-        runCommand("docker", "rm", "-f", containerName);
+        getDockerClient().removeContainer(containerName);
+        ContainerRegistry.get().forget(containerName);
     }
 
     public static void shutdownContainerWithLogs(String containerName) {
-        runCommandWithLogs("docker", "rm", "-f", containerName);
+        System.out.println("\n\tRemoving container: " + containerName);
+        getDockerClient().removeContainer(containerName);
+        ContainerRegistry.get().forget(containerName);
     }
 }
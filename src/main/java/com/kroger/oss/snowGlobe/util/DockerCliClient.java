@@ -0,0 +1,121 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.util;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs each Docker operation with the docker command line.  This is used when the Docker Engine API can not be reached
+ * directly, for example when the daemon requires TLS.
+ */
+public class DockerCliClient implements DockerClient {
+
+    @Override
+    public boolean isContainerRunning(String containerName) {
+        String running = ContainerUtil.runCommandForOutput("docker", "inspect", "--format", "{{.State.Running}}", containerName);
+        return "true".equals(running);
+    }
+
+    @Override
+    public Map<Integer, Integer> getMappedPorts(String containerName) {
+        String portsJson = ContainerUtil.runCommandForOutput("docker", "inspect", "--format", "{{json .NetworkSettings.Ports}}", containerName);
+        return (portsJson == null) ? new HashMap<>() : ContainerUtil.parsePortBindings(portsJson);
+    }
+
+    @Override
+    public boolean networkExists(String networkName) {
+        return ContainerUtil.runCommandForOutput("docker", "network", "inspect", networkName) != null;
+    }
+
+    @Override
+    public void createNetwork(String networkName) {
+        ContainerUtil.runCommand("docker", "network", "create", networkName);
+    }
+
+    @Override
+    public Map<String, String> listProcesses(String containerName) {
+        String output = ContainerUtil.runCommandForOutput("docker", "top", containerName, "-e", "-o", "pid,command");
+        Map<String, String> processes = new LinkedHashMap<>();
+        if (output == null) {
+            return processes;
+        }
+        String[] lines = output.split("\n");
+        // The first line is the column titles.
+        for (int i = 1; i < lines.length; i++) {
+            String[] pidAndCommand = lines[i].trim().split("\\s+", 2);
+            processes.put(pidAndCommand[0], (pidAndCommand.length > 1) ? pidAndCommand[1] : "");
+        }
+        return processes;
+    }
+
+    @Override
+    public int exec(String containerName, List<String> command) {
+        List<String> dockerCommand = new ArrayList<>(Arrays.asList("docker", "exec", containerName));
+        dockerCommand.addAll(command);
+        try {
+            Process process = new ProcessBuilder(dockerCommand).inheritIO().start();
+            return process.waitFor();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void removeContainer(String containerName) {
+        ContainerUtil.runCommand("docker", "rm", "-f", containerName);
+    }
+
+    /**
+     * Follows <code>docker events</code>.  The command line does not say when it has subscribed, so the events are
+     * replayed from a second before the command started and the listener is told it is connected straight away.  A
+     * replayed event only makes the listener forget a container it has not asked about yet.
+     */
+    @Override
+    public Closeable watchContainerEvents(ContainerEventListener listener) {
+        long sinceMs = System.currentTimeMillis() - 1000;
+        String since = String.format("%d.%09d", sinceMs / 1000, (sinceMs % 1000) * 1000000);
+        Process process;
+        try {
+            process = new ProcessBuilder("docker", "events", "--since", since, "--filter", "type=container",
+                    "--format", "{{json .}}").redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        listener.connected();
+        Thread reader = new Thread(() -> {
+            try {
+                ContainerUtil.readContainerEvents(process.getInputStream(), listener);
+            } catch (Exception e) {
+                // The process was stopped or docker went away.
+            } finally {
+                listener.disconnected();
+            }
+        }, "docker-events");
+        reader.setDaemon(true);
+        reader.start();
+        return process::destroy;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.util;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Docker operations that Snow-Globe needs while tests run.  <code>ContainerUtil.getDockerClient()</code> picks the
+ * Engine API client when the daemon can be reached directly and the docker command line otherwise.  Tests can swap in
+ * their own implementation with <code>ContainerUtil.useDockerClient</code>.
+ */
+public interface DockerClient {
+
+    /**
+     * @param containerName The name or id of the container.
+     * @return True if the container exists and is running.
+     */
+    boolean isContainerRunning(String containerName);
+
+    /**
+     * @param containerName The name or id of the container.
+     * @return The published container ports mapped to their host ports.  Empty if the container does not exist.
+     */
+    Map<Integer, Integer> getMappedPorts(String containerName);
+
+    boolean networkExists(String networkName);
+
+    void createNetwork(String networkName);
+
+    /**
+     * Lists the processes running in the container.
+     *
+     * @param containerName The name or id of the container.
+     * @return The command line of each process, keyed by its process id.
+     */
+    Map<String, String> listProcesses(String containerName);
+
+    /**
+     * Runs a command in the container and waits for it to finish.  Its output is written to standard out.
+     *
+     * @param containerName The name or id of the container.
+     * @param command       The command and its arguments.
+     * @return The exit code of the command.
+     */
+    int exec(String containerName, List<String> command);
+
+    /**
+     * Stops and removes the container.  Nothing happens if it does not exist.
+     *
+     * @param containerName The name or id of the container.
+     */
+    void removeContainer(String containerName);
+
+    /**
+     * Follows the stream of container events from the daemon on a background thread.
+     *
+     * @param listener Told when the stream is connected, when a container changes and when the stream ends.
+     * @return Stops following the events when closed.
+     */
+    Closeable watchContainerEvents(ContainerEventListener listener);
+
+    interface ContainerEventListener {
+
+        /**
+         * The stream is connected, so every container change from now on will be reported.
+         */
+        void connected();
+
+        /**
+         * @param containerName The name of the container that changed.
+         * @param action        What happened to it, for example <code>start</code>, <code>die</code> or
+         *                      <code>destroy</code>.
+         */
+        void containerChanged(String containerName, String action);
+
+        /**
+         * The stream ended, so changes may have been missed.
+         */
+        void disconnected();
+    }
+}
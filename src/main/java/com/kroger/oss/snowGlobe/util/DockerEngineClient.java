@@ -0,0 +1,357 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.newsclub.net.unix.AFUNIXSocket;
+import org.newsclub.net.unix.AFUNIXSocketAddress;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Talks to the Docker Engine HTTP API directly, over the daemon's unix socket or a plain TCP port, instead of starting
+ * a docker process per operation.  Connections are pooled and reused, and every answer is read as JSON.
+ */
+public class DockerEngineClient implements DockerClient, Closeable {
+
+    static final String DEFAULT_SOCKET = "/var/run/docker.sock";
+    private static final int MAX_CONNECTIONS = 4;
+
+    private final HttpHost daemon;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * @param socketFile The unix socket the Docker daemon listens on.
+     */
+    public DockerEngineClient(File socketFile) {
+        this(new HttpHost("localhost", 80), RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new UnixSocketFactory(socketFile))
+                .build());
+    }
+
+    /**
+     * @param host The host of a Docker daemon that listens on TCP without TLS.
+     * @param port The port of the Docker daemon.
+     */
+    public DockerEngineClient(String host, int port) {
+        this(new HttpHost(host, port), RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build());
+    }
+
+    private DockerEngineClient(HttpHost daemon, Registry<ConnectionSocketFactory> registry) {
+        this.daemon = daemon;
+        this.connectionManager = new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(2000)
+                        .setSocketTimeout(60000)
+                        .build())
+                .build();
+    }
+
+    /**
+     * Builds a client for the daemon named by <code>DOCKER_HOST</code>, or for the default unix socket when it is not
+     * set.
+     *
+     * @param dockerHost The value of <code>DOCKER_HOST</code>.
+     * @param tlsVerify  The value of <code>DOCKER_TLS_VERIFY</code>.
+     * @return The client, or null if the daemon can not be reached directly (it requires TLS, the socket does not
+     * exist or unix sockets are not supported on this platform).
+     */
+    public static DockerEngineClient fromEnvironment(String dockerHost, String tlsVerify) {
+        if (tlsVerify != null && !tlsVerify.isEmpty() && !tlsVerify.equals("0")) {
+            return null;
+        }
+        URI daemonUri = URI.create((dockerHost == null || dockerHost.isEmpty()) ? "unix://" + DEFAULT_SOCKET : dockerHost);
+        if ("unix".equals(daemonUri.getScheme())) {
+            File socketFile = new File(daemonUri.getPath());
+            return (socketFile.exists() && unixSocketsSupported()) ? new DockerEngineClient(socketFile) : null;
+        }
+        if ("tcp".equals(daemonUri.getScheme())) {
+            return new DockerEngineClient(daemonUri.getHost(), (daemonUri.getPort() > 0) ? daemonUri.getPort() : 2375);
+        }
+        return null;
+    }
+
+    private static boolean unixSocketsSupported() {
+        try {
+            return AFUNIXSocket.isSupported();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isContainerRunning(String containerName) {
+        JsonNode container = getJson("/containers/" + containerName + "/json");
+        return container != null && container.path("State").path("Running").asBoolean(false);
+    }
+
+    @Override
+    public Map<Integer, Integer> getMappedPorts(String containerName) {
+        JsonNode container = getJson("/containers/" + containerName + "/json");
+        return (container == null) ? new HashMap<>()
+                : ContainerUtil.parsePortBindings(container.path("NetworkSettings").path("Ports"));
+    }
+
+    @Override
+    public boolean networkExists(String networkName) {
+        return getJson("/networks/" + networkName) != null;
+    }
+
+    @Override
+    public void createNetwork(String networkName) {
+        Map<String, Object> network = new HashMap<>();
+        network.put("Name", networkName);
+        // A conflict means another test JVM created the network first.
+        send(post("/networks/create", network), 201, 409);
+    }
+
+    @Override
+    public Map<String, String> listProcesses(String containerName) {
+        Map<String, String> processes = new LinkedHashMap<>();
+        JsonNode top = getJson("/containers/" + containerName + "/top?ps_args=" + encode("-e -o pid,command"));
+        if (top == null) {
+            return processes;
+        }
+        int pidColumn = indexOf(top.path("Titles"), "PID");
+        int commandColumn = top.path("Titles").size() - 1;
+        for (JsonNode process : top.path("Processes")) {
+            processes.put(process.path(pidColumn).asText(), process.path(commandColumn).asText());
+        }
+        return processes;
+    }
+
+    @Override
+    public int exec(String containerName, List<String> command) {
+        Map<String, Object> execConfig = new HashMap<>();
+        execConfig.put("AttachStdout", true);
+        execConfig.put("AttachStderr", true);
+        execConfig.put("Cmd", command);
+        String execId = readJson(send(post("/containers/" + containerName + "/exec", execConfig), 201)).path("Id").asText();
+
+        Map<String, Object> startConfig = new HashMap<>();
+        startConfig.put("Detach", false);
+        startConfig.put("Tty", false);
+        try (CloseableHttpResponse response = execute(post("/exec/" + execId + "/start", startConfig))) {
+            expectStatus(response, 200);
+            copyOutput(response.getEntity().getContent());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return getJson("/exec/" + execId + "/json").path("ExitCode").asInt(-1);
+    }
+
+    @Override
+    public void removeContainer(String containerName) {
+        send(new HttpDelete("/containers/" + containerName + "?force=true"), 204, 404);
+    }
+
+    /**
+     * Follows <code>/events</code> on a thread of its own.  The daemon sends the response headers as soon as it has
+     * subscribed, so the listener is told it is connected before any change can be missed.
+     */
+    @Override
+    public Closeable watchContainerEvents(ContainerEventListener listener) {
+        HttpGet request = new HttpGet("/events?filters=" + encode("{\"type\":[\"container\"]}"));
+        // The stream stays open and quiet for as long as no container changes.
+        request.setConfig(RequestConfig.custom().setConnectTimeout(2000).setSocketTimeout(0).build());
+        Thread reader = new Thread(() -> followEvents(request, listener), "docker-events");
+        reader.setDaemon(true);
+        reader.start();
+        return request::abort;
+    }
+
+    private void followEvents(HttpGet request, ContainerEventListener listener) {
+        try (CloseableHttpResponse response = execute(request)) {
+            expectStatus(response, 200);
+            listener.connected();
+            ContainerUtil.readContainerEvents(response.getEntity().getContent(), listener);
+        } catch (IOException | RuntimeException e) {
+            // The stream was closed or the daemon went away.
+        } finally {
+            listener.disconnected();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Writes the output of an exec to standard out.  Without a TTY, Docker sends each chunk of output in a frame with
+     * an eight byte header whose last four bytes are the length of the chunk.
+     */
+    private static void copyOutput(InputStream stream) throws IOException {
+        DataInputStream frames = new DataInputStream(stream);
+        byte[] header = new byte[8];
+        while (true) {
+            try {
+                frames.readFully(header);
+            } catch (EOFException endOfOutput) {
+                return;
+            }
+            int length = ((header[4] & 0xff) << 24) | ((header[5] & 0xff) << 16) | ((header[6] & 0xff) << 8) | (header[7] & 0xff);
+            byte[] chunk = new byte[length];
+            frames.readFully(chunk);
+            System.out.write(chunk, 0, length);
+        }
+    }
+
+    private JsonNode getJson(String path) {
+        try (CloseableHttpResponse response = execute(new HttpGet(path))) {
+            if (response.getStatusLine().getStatusCode() == 404) {
+                EntityUtils.consume(response.getEntity());
+                return null;
+            }
+            expectStatus(response, 200);
+            return JsonUtil.readerFor(JsonNode.class).readTree(response.getEntity().getContent());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private HttpPost post(String path, Object body) {
+        HttpPost post = new HttpPost(path);
+        try {
+            post.setEntity(new StringEntity(JsonUtil.toJson(body), ContentType.APPLICATION_JSON));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return post;
+    }
+
+    private String send(HttpRequestBase request, int... expectedStatuses) {
+        try (CloseableHttpResponse response = execute(request)) {
+            expectStatus(response, expectedStatuses);
+            return (response.getEntity() != null) ? EntityUtils.toString(response.getEntity(), "UTF-8") : "";
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private CloseableHttpResponse execute(HttpRequestBase request) throws IOException {
+        return httpClient.execute(daemon, request);
+    }
+
+    private static void expectStatus(CloseableHttpResponse response, int... expectedStatuses) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        for (int expected : expectedStatuses) {
+            if (status == expected) {
+                return;
+            }
+        }
+        String body = (response.getEntity() != null) ? EntityUtils.toString(response.getEntity(), "UTF-8") : "";
+        throw new RuntimeException("Docker Engine API call failed with status " + status + ": " + body);
+    }
+
+    private static JsonNode readJson(String json) {
+        try {
+            return JsonUtil.readerFor(JsonNode.class).readTree(json);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int indexOf(JsonNode titles, String title) {
+        for (int i = 0; i < titles.size(); i++) {
+            if (title.equals(titles.get(i).asText())) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Connects to the Docker daemon's unix socket no matter which host and port the request is for.
+     */
+    static class UnixSocketFactory implements ConnectionSocketFactory {
+        private final File socketFile;
+
+        UnixSocketFactory(File socketFile) {
+            this.socketFile = socketFile;
+        }
+
+        /**
+         * The socket is connected as soon as it is created, since the http client sets socket options before it calls
+         * <code>connectSocket</code> and a unix socket does not accept options until it is open.
+         */
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return AFUNIXSocket.connectTo(new AFUNIXSocketAddress(socketFile));
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            return (socket != null) ? socket : createSocket(context);
+        }
+    }
+}
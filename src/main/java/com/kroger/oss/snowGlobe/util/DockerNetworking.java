@@ -18,43 +18,14 @@
 
 package com.kroger.oss.snowGlobe.util;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-
 public class DockerNetworking {
 
     public static final String SNOW_GLOBE_NETWORK = "snow-globe";
 
     public static void createNetwork() {
-        if (!networkExists()) {
-            makeNetwork();
-        }
-    }
-
-    private static void makeNetwork() {
-        try {
-            ProcessBuilder processBuilder = new ProcessBuilder("docker", "network", "create", SNOW_GLOBE_NETWORK);
-            Process process = processBuilder.start();
-            process.waitFor();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static boolean networkExists() {
-        try {
-            ProcessBuilder processBuilder = new ProcessBuilder("docker", "network", "ls");
-            Process process = processBuilder.start();
-            process.waitFor();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            while (reader.ready()) {
-                if (reader.readLine().contains(SNOW_GLOBE_NETWORK)) {
-                    return true;
-                }
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        DockerClient dockerClient = ContainerUtil.getDockerClient();
+        if (!dockerClient.networkExists(SNOW_GLOBE_NETWORK)) {
+            dockerClient.createNetwork(SNOW_GLOBE_NETWORK);
         }
-        return false;
     }
 }
@@ -0,0 +1,70 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * The one Jackson mapper used by Snow-Globe.  Building a mapper is expensive and its serializer caches are only warm
+ * after the first use, so every read and write of JSON goes through the readers and writer made here.  Readers and
+ * writers are immutable and safe to share between threads.
+ */
+public class JsonUtil {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final ObjectWriter WRITER = MAPPER.writer();
+
+    private JsonUtil() {
+    }
+
+    /**
+     * @param type The class that the JSON will be bound to.
+     * @return A shared reader that binds JSON to the given class.
+     */
+    public static ObjectReader readerFor(Class<?> type) {
+        return MAPPER.readerFor(type);
+    }
+
+    /**
+     * @return The shared factory for streaming over JSON without binding it to a class.
+     */
+    public static JsonFactory getFactory() {
+        return MAPPER.getFactory();
+    }
+
+    /**
+     * @param value The object to convert.
+     * @return The object as a JSON tree, the same as if it were written and read again.
+     */
+    public static JsonNode toTree(Object value) {
+        return MAPPER.valueToTree(value);
+    }
+
+    public static String toJson(Object value) throws JsonProcessingException {
+        return WRITER.writeValueAsString(value);
+    }
+}
@@ -19,31 +19,65 @@
 package com.kroger.oss.snowGlobe.util;
 
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
 import com.kroger.oss.snowGlobe.AppServiceCluster;
 import com.kroger.oss.snowGlobe.FrameworkProperties;
+import com.kroger.oss.snowGlobe.UpstreamFault;
+import com.kroger.oss.snowGlobe.upstream.ReceivedRequests;
+import com.kroger.oss.snowGlobe.upstream.UpstreamDefinition;
+import com.kroger.oss.snowGlobe.upstream.UpstreamServer;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.stream.Collectors.toList;
 
 public class UpstreamUtil {
 
+    static final int MAX_CONCURRENT_REGISTRATIONS = 16;
+    private static CloseableHttpClient upstreamClient;
+
     public static void setupUpstreamService(FrameworkProperties props) {
         DockerNetworking.createNetwork();
-        if (!upstreamRunning(props.getUpstreamServicePort())) {
+        if (props.useJvmUpstream()) {
+            UpstreamServer server = UpstreamServer.getShared();
+            if (!props.preserveUpstreamForPerformance()) {
+                server.reset();
+            }
+            return;
+        }
+        if (!upstreamRunning(props)) {
             startUpstream(props);
-            setupUpstreamShutdownHook(props.getUpstreamName());
-        } else {
+            if (!props.preserveUpstreamForPerformance()) {
+                setupUpstreamShutdownHook(props.getUpstreamName());
+            }
+        } else if (!props.preserveUpstreamForPerformance()) {
             resetUpstreams(props.getUpstreamServicePort());
         }
     }
@@ -55,27 +89,86 @@ public class UpstreamUtil {
     }
 
     public static int addUpstream(int instance, AppServiceCluster cluster, FrameworkProperties props) {
-        String clusterName = cluster.getClusterName();
-        String matchingPaths = cluster.getMatchingPaths();
-        int httpResponseCode = cluster.getHttpResponseCode();
-        Map<String, String> headers = cluster.getResponseHeaders();
-        boolean useHttps = cluster.isUseHttps();
-        int port = cluster.getPort();
-        StringEntity json = buildJsonBody(instance, clusterName, matchingPaths, httpResponseCode, headers, useHttps, port);
-        CloseableHttpClient client = HttpClients.createDefault();
-        HttpPost httpPost = buildRequest(json, props.getUpstreamServicePort());
-        try {
-            CloseableHttpResponse res = client.execute(httpPost);
-            int upstreamPort = getUpstreamPort(res);
-            client.close();
-            return upstreamPort;
+        if (props.useJvmUpstream()) {
+            return UpstreamServer.getShared().start(toDefinition(buildRegistration(instance, cluster, props)));
+        }
+        StringEntity json = buildJsonBody(buildRegistration(instance, cluster, props));
+        HttpPost httpPost = buildRequest(json, props.getUpstreamServicePort(), "/startServer");
+        try (CloseableHttpResponse res = getUpstreamClient().execute(httpPost)) {
+            return getUpstreamPort(res);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static HttpPost buildRequest(StringEntity json, String upstreamServicePort) {
-        HttpPost httpPost = new HttpPost("http://" + getUpstreamHost(System.getenv("DOCKER_HOST")) + ":" + upstreamServicePort + "/startServer");
+    /**
+     * Starts an instance of every cluster in the upstream bounce container with a single call.  If the bounce image is
+     * older and does not have the batch endpoint, the clusters are registered one per call, with the calls made
+     * concurrently.  When the upstream runs in the JVM, the clusters are started in process.
+     *
+     * @param instance The instance number of the clusters.
+     * @param clusters The clusters to start.
+     * @param props    The framework properties.
+     * @return The ports the instances are listening on, in the same order as the clusters.
+     */
+    public static int[] addUpstreams(int instance, AppServiceCluster[] clusters, FrameworkProperties props) {
+        if (clusters.length == 0) {
+            return new int[0];
+        }
+        List<Map<String, Object>> registrations = Arrays.stream(clusters)
+                .map(cluster -> buildRegistration(instance, cluster, props))
+                .collect(toList());
+        if (props.useJvmUpstream()) {
+            return UpstreamServer.getShared().start(registrations.stream().map(UpstreamUtil::toDefinition).collect(toList()));
+        }
+        HttpPost httpPost = buildRequest(buildJsonBody(registrations), props.getUpstreamServicePort(), "/startServers");
+        try (CloseableHttpResponse res = getUpstreamClient().execute(httpPost)) {
+            if (res.getStatusLine().getStatusCode() == 404) {
+                EntityUtils.consume(res.getEntity());
+                return addUpstreamsConcurrently(instance, clusters, props);
+            }
+            return getUpstreamPorts(res, clusters.length);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int[] addUpstreamsConcurrently(int instance, AppServiceCluster[] clusters, FrameworkProperties props) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(clusters.length, MAX_CONCURRENT_REGISTRATIONS));
+        try {
+            List<Future<Integer>> ports = Arrays.stream(clusters)
+                    .map(cluster -> executor.submit(() -> addUpstream(instance, cluster, props)))
+                    .collect(toList());
+            int[] upstreamPorts = new int[clusters.length];
+            for (int i = 0; i < upstreamPorts.length; i++) {
+                upstreamPorts[i] = ports.get(i).get();
+            }
+            return upstreamPorts;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The client used to talk to the upstream bounce container.  It is pooled so that registering many clusters at
+     * once reuses connections.
+     *
+     * @return The shared client for the upstream bounce container.
+     */
+    static synchronized CloseableHttpClient getUpstreamClient() {
+        if (upstreamClient == null) {
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setMaxTotal(MAX_CONCURRENT_REGISTRATIONS);
+            connectionManager.setDefaultMaxPerRoute(MAX_CONCURRENT_REGISTRATIONS);
+            upstreamClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+        }
+        return upstreamClient;
+    }
+
+    private static HttpPost buildRequest(StringEntity json, String upstreamServicePort, String path) {
+        HttpPost httpPost = new HttpPost("http://" + getUpstreamHost(System.getenv("DOCKER_HOST")) + ":" + upstreamServicePort + path);
         httpPost.setHeader("Content-type", "application/json");
         httpPost.setEntity(json);
         return httpPost;
@@ -90,19 +183,77 @@ public class UpstreamUtil {
         }
     }
 
-    private static StringEntity buildJsonBody(int instance, String clusterName, String matchingPaths,
-                                              int httpResponseCode, Map<String, String> headers, boolean useHttps,
-                                              int port) {
+    private static int[] getUpstreamPorts(CloseableHttpResponse res, int expectedCount) throws IOException {
+        String body = EntityUtils.toString(res.getEntity(), "UTF-8");
+        if (res.getStatusLine().getStatusCode() != 200) {
+            throw new RuntimeException("Unable to start the upstream instances: " + body);
+        }
+        int[] ports = JsonUtil.readerFor(int[].class).readValue(body);
+        if (ports.length != expectedCount) {
+            throw new RuntimeException("Expected " + expectedCount + " upstream ports but got: " + body);
+        }
+        return ports;
+    }
+
+    /**
+     * The definition the bounce container starts an instance from.  With a shared listener, the plain http clusters
+     * are marked so that the bounce container serves them all on one port and picks the cluster by the Host header.
+     */
+    static Map<String, Object> buildRegistration(int instance, AppServiceCluster cluster, FrameworkProperties props) {
         Map<String, Object> requestMap = new HashMap<>();
         requestMap.put("instanceNumber", instance);
-        requestMap.put("clusterName", clusterName);
-        requestMap.put("matchingPaths", matchingPaths);
-        requestMap.put("responseCode", httpResponseCode);
-        requestMap.put("runHTTPS", useHttps);
-        requestMap.put("responseHeaders", headers);
-        requestMap.put("port", port);
+        requestMap.put("clusterName", cluster.getClusterName());
+        requestMap.put("matchingPaths", cluster.getMatchingPaths());
+        requestMap.put("responseCode", cluster.getHttpResponseCode());
+        requestMap.put("runHTTPS", cluster.isUseHttps());
+        requestMap.put("responseHeaders", cluster.getResponseHeaders());
+        requestMap.put("port", cluster.getPort());
+        if (isShared(cluster, props)) {
+            requestMap.put("sharedListener", true);
+        }
+        // Responses are only shaped when asked, so definitions without shaping stay as they were.
+        putIfSet(requestMap, "responseDelayMs", cluster.getResponseDelayMs(), 0);
+        putIfSet(requestMap, "responseSize", cluster.getResponseSize(), 0);
+        putIfSet(requestMap, "responseFile", cluster.getResponseFile(), null);
+        putIfSet(requestMap, "chunkedResponse", cluster.isChunkedResponse(), false);
+        putIfSet(requestMap, "bandwidthBytesPerSecond", cluster.getBandwidthBytesPerSecond(), 0L);
+        if (!cluster.getFaults().isEmpty()) {
+            requestMap.put("faults", cluster.getFaults().stream().map(UpstreamUtil::buildFault).collect(toList()));
+        }
+        return requestMap;
+    }
+
+    /**
+     * Every field of the fault is sent, so that the definition listed by either upstream server matches it.
+     */
+    private static Map<String, Object> buildFault(UpstreamFault fault) {
+        Map<String, Object> faultMap = new HashMap<>();
+        faultMap.put("type", fault.getType().name());
+        faultMap.put("paths", fault.getPaths());
+        faultMap.put("probability", fault.getProbability());
+        faultMap.put("stallMs", fault.getStallMs());
+        faultMap.put("bodyBytes", fault.getBodyBytes());
+        faultMap.put("headerDelayMs", fault.getHeaderDelayMs());
+        return faultMap;
+    }
+
+    private static void putIfSet(Map<String, Object> requestMap, String key, Object value, Object unset) {
+        if (value != null && !value.equals(unset)) {
+            requestMap.put(key, value);
+        }
+    }
+
+    private static UpstreamDefinition toDefinition(Map<String, Object> registration) {
         try {
-            return new StringEntity(new ObjectMapper().writeValueAsString(requestMap));
+            return JsonUtil.readerFor(UpstreamDefinition.class).readValue(JsonUtil.toTree(registration));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static StringEntity buildJsonBody(Object registration) {
+        try {
+            return new StringEntity(JsonUtil.toJson(registration), ContentType.APPLICATION_JSON);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -110,14 +261,14 @@ public class UpstreamUtil {
 
     private static void startUpstream(FrameworkProperties props) {
         try {
-            String[] command = {"docker", "run", "-p", props.getUpstreamServicePort() + ":3000", "--network=" + props.getDockerNetworkName(),
-                    "--name", props.getUpstreamName(), "--detach", props.getUpstreamBounceImage()};
+            String[] command = buildStartCommand(props);
             if (props.logContainerOutput()) {
                 ContainerUtil.runCommandWithLogs(command);
             } else {
                 ContainerUtil.runCommand(command);
             }
-            waitForUpstreamToStart(props.getUpstreamName(), props.getUpstreamServicePort());
+            ContainerRegistry.get().forget(props.getUpstreamName());
+            waitForUpstreamToStart(props);
         } catch (Exception e) {
             // if we have gotten an exception, there is the possibility that another process was setting up this
             // container. This can happen with multiple parallel forks.
@@ -125,47 +276,252 @@ public class UpstreamUtil {
                 Thread.sleep(200);
             } catch (InterruptedException ignored) {
             }
-            if (!upstreamRunning(props.getUpstreamServicePort())) {
+            ContainerRegistry.get().forget(props.getUpstreamName());
+            if (!upstreamRunning(props)) {
                 throw new RuntimeException(e);
             }
         }
     }
 
-    private static void waitForUpstreamToStart(String upstreamName, String upstreamServicePort) throws InterruptedException {
+    static String[] buildStartCommand(FrameworkProperties props) {
+        List<String> command = new ArrayList<>(Arrays.asList("docker", "run", "-p", props.getUpstreamServicePort() + ":3000",
+                "--network=" + props.getDockerNetworkName(), "--name", props.getUpstreamName(),
+                "--env", "BOUNCE_WORKERS=" + props.getUpstreamBounceWorkers()));
+        // The files that clusters send as their response, which the container only reads.
+        for (String volume : props.getUpstreamBounceVolumes()) {
+            String[] paths = volume.split(":", 2);
+            String hostPath = new File(paths[0]).getAbsolutePath();
+            command.add("--volume");
+            command.add(hostPath + ":" + (paths.length > 1 ? paths[1] : hostPath) + ":ro");
+        }
+        command.add("--detach");
+        command.add(props.getUpstreamBounceImage());
+        return command.toArray(new String[0]);
+    }
+
+    private static void waitForUpstreamToStart(FrameworkProperties props) throws InterruptedException {
         for (int i = 0; i < 25; i++) {
-            if (upstreamRunning(upstreamServicePort)) {
+            if (upstreamRunning(props)) {
                 return;
             }
             Thread.sleep(200);
         }
         System.out.println("Timed out waiting on upstream container to start.");
-        ContainerUtil.logContainerOutput(upstreamName);
+        ContainerUtil.logContainerOutput(props.getUpstreamName());
     }
 
-    private static boolean upstreamRunning(String port) {
-        try {
-            URL url = new URL("http://" + getUpstreamHost(System.getenv("DOCKER_HOST")) + ":" + port + "/health");
-            URLConnection uc = url.openConnection();
-            uc.connect();
-            String status = uc.getHeaderField(0);
-            return status.contains("200");
+    /**
+     * The bounce container is up when it is running and answers its health check.  Once it has answered, the
+     * container registry remembers that until the container changes, so later test classes do not call it again.
+     */
+    static boolean upstreamRunning(FrameworkProperties props) {
+        return ContainerRegistry.get().isHealthy(props.getUpstreamName(),
+                () -> upstreamHealthy(props.getUpstreamServicePort()));
+    }
 
+    private static boolean upstreamHealthy(String port) {
+        HttpGet httpGet = new HttpGet("http://" + getUpstreamHost(System.getenv("DOCKER_HOST")) + ":" + port + "/health");
+        httpGet.setConfig(RequestConfig.custom().setConnectTimeout(1000).setSocketTimeout(1000).build());
+        try (CloseableHttpResponse res = getUpstreamClient().execute(httpGet)) {
+            EntityUtils.consume(res.getEntity());
+            return res.getStatusLine().getStatusCode() == 200;
         } catch (Exception e) {
             return false;
         }
     }
 
     public static void initializeUpstreamInstances(AppServiceCluster[] clusters, FrameworkProperties frameworkProperties) {
-        Arrays.stream(clusters).forEach(cluster ->
-                UpstreamUtil.addUpstream(0, cluster, frameworkProperties));
+        if (frameworkProperties.preserveUpstreamForPerformance()) {
+            syncUpstreams(0, clusters, frameworkProperties);
+        } else {
+            addUpstreams(0, clusters, frameworkProperties);
+        }
+    }
+
+    /**
+     * Brings the instances running in the upstream bounce container in line with the clusters, without touching the
+     * ones that are already running as defined.  An instance on a cluster's port that was started from a different
+     * definition is stopped and started again.  Instances on other ports are left running, since another test class
+     * may use them.  If the bounce image is older and can not list its instances, every instance is reset and started
+     * again.
+     *
+     * @param instance The instance number of the clusters.
+     * @param clusters The clusters that should be running.
+     * @param props    The framework properties.
+     * @return The number of clusters that were started.
+     */
+    public static int syncUpstreams(int instance, AppServiceCluster[] clusters, FrameworkProperties props) {
+        Map<String, JsonNode> runningByKey = listUpstreams(props);
+        if (runningByKey == null) {
+            resetUpstreams(props.getUpstreamServicePort());
+            return addUpstreams(instance, clusters, props).length;
+        }
+        List<AppServiceCluster> changedClusters = new ArrayList<>();
+        for (AppServiceCluster cluster : clusters) {
+            boolean shared = isShared(cluster, props);
+            JsonNode running = runningByKey.get(instanceKey(cluster.getPort(), cluster.getClusterName(), shared));
+            if (running != null && sameDefinition(buildRegistration(instance, cluster, props), running)) {
+                continue;
+            }
+            if (running != null) {
+                stopUpstream(cluster.getPort(), shared ? cluster.getClusterName() : null, props);
+            }
+            changedClusters.add(cluster);
+        }
+        addUpstreams(instance, changedClusters.toArray(new AppServiceCluster[0]), props);
+        return changedClusters.size();
+    }
+
+    /**
+     * @return The definitions of the running instances by <code>instanceKey</code>, or null if the bounce image can
+     * not list them.
+     */
+    private static Map<String, JsonNode> listUpstreams(FrameworkProperties props) {
+        if (props.useJvmUpstream()) {
+            return byInstanceKey(JsonUtil.toTree(UpstreamServer.getShared().listInstances()));
+        }
+        HttpGet httpGet = new HttpGet("http://" + getUpstreamHost(System.getenv("DOCKER_HOST")) + ":" + props.getUpstreamServicePort() + "/instances");
+        try (CloseableHttpResponse res = getUpstreamClient().execute(httpGet)) {
+            if (res.getStatusLine().getStatusCode() != 200) {
+                EntityUtils.consume(res.getEntity());
+                return null;
+            }
+            return byInstanceKey(JsonUtil.readerFor(JsonNode.class).readTree(res.getEntity().getContent()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Map<String, JsonNode> byInstanceKey(JsonNode definitions) {
+        Map<String, JsonNode> runningByKey = new HashMap<>();
+        for (JsonNode definition : definitions) {
+            runningByKey.put(instanceKey(definition.path("port").asInt(), definition.path("clusterName").asText(),
+                    definition.path("sharedListener").asBoolean()), definition);
+        }
+        return runningByKey;
+    }
+
+    /**
+     * An instance is known by its port, or by its port and cluster name when it is served by a shared listener.
+     */
+    private static String instanceKey(int port, String clusterName, boolean shared) {
+        return shared ? port + "/" + clusterName.toLowerCase() : String.valueOf(port);
+    }
+
+    private static boolean isShared(AppServiceCluster cluster, FrameworkProperties props) {
+        return props.useSharedUpstreamListener() && !cluster.isUseHttps();
+    }
+
+    /**
+     * Stops the instance on the port, or only the named cluster if the port is a shared listener.
+     */
+    private static void stopUpstream(int port, String clusterName, FrameworkProperties props) {
+        if (props.useJvmUpstream()) {
+            UpstreamServer.getShared().stop(port, clusterName);
+            return;
+        }
+        Map<String, Object> stop = new LinkedHashMap<>();
+        stop.put("port", port);
+        if (clusterName != null) {
+            stop.put("clusterName", clusterName);
+        }
+        StringEntity json = buildJsonBody(stop);
+        try (CloseableHttpResponse res = getUpstreamClient().execute(buildRequest(json, props.getUpstreamServicePort(), "/stopServer"))) {
+            EntityUtils.consume(res.getEntity());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the journal of the requests an instance has received, from the upstream bounce container or the JVM
+     * upstream server.
+     *
+     * @param port        The port the instance listens on.
+     * @param clusterName The cluster, which picks the instance on a shared listener.
+     * @param props       The framework properties.
+     * @return How many requests the instance received and the latest of them.
+     */
+    public static ReceivedRequests readJournal(int port, String clusterName, FrameworkProperties props) {
+        if (props.useJvmUpstream()) {
+            ReceivedRequests journal = UpstreamServer.getShared().readJournal(port, clusterName);
+            if (journal == null) {
+                throw noJournal(port, clusterName);
+            }
+            return journal;
+        }
+        try (CloseableHttpResponse res = getUpstreamClient().execute(new HttpGet(buildJournalUrl(port, clusterName, props)))) {
+            if (res.getStatusLine().getStatusCode() != 200) {
+                EntityUtils.consume(res.getEntity());
+                throw noJournal(port, clusterName);
+            }
+            return JsonUtil.readerFor(ReceivedRequests.class).readValue(res.getEntity().getContent());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Forgets the requests an instance has received, so that the next read of its journal only has the requests
+     * received after this.
+     */
+    public static void clearJournal(int port, String clusterName, FrameworkProperties props) {
+        if (props.useJvmUpstream()) {
+            if (!UpstreamServer.getShared().clearJournal(port, clusterName)) {
+                throw noJournal(port, clusterName);
+            }
+            return;
+        }
+        try (CloseableHttpResponse res = getUpstreamClient().execute(new HttpDelete(buildJournalUrl(port, clusterName, props)))) {
+            EntityUtils.consume(res.getEntity());
+            if (res.getStatusLine().getStatusCode() != 200) {
+                throw noJournal(port, clusterName);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String buildJournalUrl(int port, String clusterName, FrameworkProperties props) throws UnsupportedEncodingException {
+        return "http://" + getUpstreamHost(System.getenv("DOCKER_HOST")) + ":" + props.getUpstreamServicePort() +
+                "/journal?port=" + port + "&clusterName=" + URLEncoder.encode(clusterName, "UTF-8");
+    }
+
+    private static IllegalStateException noJournal(int port, String clusterName) {
+        return new IllegalStateException("There is no upstream instance of " + clusterName + " on port " + port +
+                " with a journal.  It may not have been started, or the upstream bounce image may be too old to keep one.");
+    }
+
+    /**
+     * Compares every field of the registration with the running definition.  Fields that the bounce container added
+     * to its definition are ignored.
+     */
+    static boolean sameDefinition(Map<String, Object> registration, JsonNode running) {
+        Iterator<Map.Entry<String, JsonNode>> fields = JsonUtil.toTree(registration).fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode runningValue = running.has(field.getKey()) ? running.get(field.getKey()) : NullNode.getInstance();
+            if (!field.getValue().equals(UpstreamUtil::compareValues, runningValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Numbers are compared by value, since node writes a long or a whole double back as it would an int.
+     */
+    private static int compareValues(JsonNode first, JsonNode second) {
+        if (first.isNumber() && second.isNumber()) {
+            return first.decimalValue().compareTo(second.decimalValue());
+        }
+        return first.equals(second) ? 0 : 1;
     }
 
     public static void resetUpstreams(String upstreamServicePort) {
-        try {
-            CloseableHttpClient client = HttpClients.createDefault();
-            HttpPost httpPost = new HttpPost("http://" + getUpstreamHost(System.getenv("DOCKER_HOST")) + ":" + upstreamServicePort + "/reset");
-            client.execute(httpPost);
-            client.close();
+        HttpPost httpPost = new HttpPost("http://" + getUpstreamHost(System.getenv("DOCKER_HOST")) + ":" + upstreamServicePort + "/reset");
+        try (CloseableHttpResponse res = getUpstreamClient().execute(httpPost)) {
+            EntityUtils.consume(res.getEntity());
         } catch (Exception e) {
             e.printStackTrace();
         }
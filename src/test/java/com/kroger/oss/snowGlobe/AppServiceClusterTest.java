@@ -18,9 +18,13 @@
 
 package com.kroger.oss.snowGlobe;
 
+import com.kroger.oss.snowGlobe.upstream.UpstreamServer;
+import com.kroger.oss.snowGlobe.util.UpstreamUtil;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import static org.hamcrest.collection.IsIn.in;
@@ -110,4 +114,65 @@ public class AppServiceClusterTest {
         assertThat("USE_HTTPS=http", is(in(environmentList)));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void shouldCloneTheResponseShaping() {
+        AppServiceCluster cluster = AppServiceCluster.makeHttpWebService("clusterName")
+                .withResponseDelay(100)
+                .withResponseSize(2048)
+                .withResponseFile("/data/payload.bin")
+                .withChunkedResponse()
+                .withBandwidthLimit(512);
+        AppServiceCluster clone = cluster.clone();
+        assertThat(clone.getResponseDelayMs(), is(100));
+        assertThat(clone.getResponseSize(), is(2048));
+        assertThat(clone.getResponseFile(), is("/data/payload.bin"));
+        assertThat(clone.isChunkedResponse(), is(true));
+        assertThat(clone.getBandwidthBytesPerSecond(), is(512L));
+    }
+
+    @Test
+    public void shouldCloneTheFaults() {
+        UpstreamFault fault = UpstreamFault.truncateBody(10).onPaths("/cart", "/item").withProbability(0.5);
+        AppServiceCluster cluster = AppServiceCluster.makeHttpWebService("clusterName").withFault(fault);
+        AppServiceCluster clone = cluster.clone();
+        cluster.withFault(UpstreamFault.resetConnection());
+        assertThat(clone.getFaults().size(), is(1));
+        assertThat(clone.getFaults().get(0).getPaths(), is("/cart|/item"));
+        assertThat(clone.getFaults().get(0).getProbability(), is(0.5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectAFaultProbabilityAboveOne() {
+        UpstreamFault.resetConnection().withProbability(1.5);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotReadTheJournalOfAClusterThatIsNotRunning() {
+        AppServiceCluster.makeHttpWebService("clusterName").expectHitCount(0);
+    }
+
+    @Test
+    public void shouldCountTheRequestsReceivedByTheRunningInstance() throws Exception {
+        FrameworkProperties frameworkProperties = new FrameworkProperties().withProperty("upstream.server", "jvm");
+        AppServiceCluster cluster = AppServiceCluster.makeHttpWebService("Cart_Cluster").withExpectedPaths("/cart");
+        try {
+            int port = UpstreamUtil.addUpstreams(0, new AppServiceCluster[]{cluster}, frameworkProperties)[0];
+            cluster.bindToRunningInstance(port, frameworkProperties);
+            for (int i = 0; i < 2; i++) {
+                try (Socket socket = new Socket("127.0.0.1", port)) {
+                    socket.getOutputStream().write("GET /cart HTTP/1.0\r\nHost: Cart_Cluster\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    while (socket.getInputStream().read() != -1) {
+                        // Read the whole response.
+                    }
+                }
+            }
+
+            cluster.expectHitCount(2);
+            assertThat(cluster.getReceivedRequests().get(1).getPath(), is("/cart"));
+            cluster.clearReceivedRequests().expectHitCount(0);
+        } finally {
+            UpstreamServer.getShared().close();
+        }
+    }
+
+}
@@ -19,8 +19,14 @@
 package com.kroger.oss.snowGlobe;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,66 +38,68 @@ import static org.junit.Assert.*;
 
 public class FrameworkPropertiesTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     FrameworkProperties frameworkProperties;
 
     @Before
     public void init() {
-        frameworkProperties = new FrameworkProperties();
-        frameworkProperties.loadFile("snow-globe.yml");
+        frameworkProperties = new FrameworkProperties("snow-globe.yml");
     }
 
     @Test
     public void shouldReturnCorrectFakeUpstreamImage() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         assertEquals("bogus.com/nginx/upstream-bounce-service:999", frameworkProperties.getUpstreamBounceImage());
     }
 
     @Test
     public void shouldLogContainerOutput() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         assertTrue(frameworkProperties.logContainerOutput());
     }
 
     @Test
     public void shouldNotPreserveTempFiles() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         assertFalse(frameworkProperties.preserveTempFiles());
     }
 
     @Test
     public void shouldDefineUpstreamZones() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         assertTrue(frameworkProperties.defineUpstreamZones());
     }
 
     @Test
     public void shouldGetNginxContainer() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         assertEquals("bogus.com/library/nginx:999", frameworkProperties.getNginxImage());
     }
 
     @Test
     public void shouldGetDefaultUpstreamFilePath() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         assertEquals("/etc/nginx/upstreams.conf", frameworkProperties.getUpstreamLocation());
     }
 
     @Test
     public void shouldGetUpstreamFilePathForEnvironment() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         assertEquals("/etc/nginx/upstreams.conf", frameworkProperties.getUpstreamLocation());
     }
 
     @Test
     public void shouldGetDefaultNginxVolumes() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         List<String> vals = Stream.of("src/test/resources/nginx/nginx.conf:/etc/nginx/nginx.conf", "src/test/resources/nginx/dev/*:/etc/nginx/dev/").collect(Collectors.toList());
         assertTrue(frameworkProperties.getNginxVolumes().containsAll(vals));
     }
 
     @Test
     public void shouldGetNginxUrlPortMappings() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         Map<String, Object> sMap = new HashMap<>();
         sMap.put("pattern", "https:.*");
         sMap.put("port", 443);
@@ -107,32 +115,32 @@ public class FrameworkPropertiesTest {
 
     @Test
     public void shouldGetNginxConfFilesToScan() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         assertTrue(frameworkProperties.getFilesToScan().contains("src/test/resources/nginx/nginx.conf"));
 
     }
 
     @Test
     public void shouldGetSourceDirectory() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         assertEquals("src/test/resources/nginx/", frameworkProperties.getSourceDirectory());
     }
 
     @Test
     public void shouldGetDeployedDirectory() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         assertEquals("/etc/nginx/", frameworkProperties.getDeployedDirectory());
     }
 
     @Test
     public void shouldGetDefaultStartCommand() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         assertEquals("nginx -g 'daemon off;'", frameworkProperties.getStartCommand());
     }
 
     @Test
     public void shouldGetStartCommandForEnvironment() {
-        frameworkProperties.loadFile("src/test/resources/bogus-snow-globe-1.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
         assertEquals("nginx -g 'daemon off;'", frameworkProperties.getStartCommand());
     }
 
@@ -146,8 +154,66 @@ public class FrameworkPropertiesTest {
         FrameworkProperties.setConfigFile(null);
     }
 
+    @Test
+    public void shouldGetDefaultHttpPoolSettings() {
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
+        assertEquals(20, frameworkProperties.getHttpMaxConnections());
+        assertEquals(30000, frameworkProperties.getHttpKeepAliveMs());
+    }
+
     @Test
     public void shouldBeAbleToGetDefaultUpsteamName() {
         assertThat(frameworkProperties.getUpstreamName(), is("upstream"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldShareParsedPropertiesForTheSameFile() {
+        FrameworkProperties first = FrameworkProperties.load("src/test/resources/bogus-snow-globe-1.yml");
+        FrameworkProperties second = FrameworkProperties.load("src/test/resources/bogus-snow-globe-1.yml");
+        assertSame(first, second);
+        assertTrue(second.defineUpstreamZones());
+    }
+
+    @Test
+    public void shouldNotChangeSharedPropertiesWhenACopyIsChanged() {
+        FrameworkProperties shared = FrameworkProperties.load("src/test/resources/bogus-snow-globe-1.yml");
+        FrameworkProperties copy = shared.withProperty("upstream.aliasAndPort", "changed:30010");
+        assertThat(copy.getUpstreamName(), is("changed"));
+        assertThat(shared.getUpstreamName(), is("upstream"));
+        assertThat(FrameworkProperties.load("src/test/resources/bogus-snow-globe-1.yml").getUpstreamName(), is("upstream"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void shouldNotAllowThePropertiesToBeChanged() {
+        FrameworkProperties.load("src/test/resources/bogus-snow-globe-1.yml").getProperties().put("upstream.aliasAndPort", "changed:30010");
+    }
+
+    @Test
+    public void shouldReadEveryProperty() {
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
+        assertThat(frameworkProperties.getProperties().get("nginx.define.upstream.zones"), is(true));
+    }
+
+    @Test
+    public void shouldKeepCopiesSeparateFromEachOther() {
+        frameworkProperties = new FrameworkProperties("src/test/resources/bogus-snow-globe-1.yml");
+        FrameworkProperties copy = frameworkProperties.withProperty("upstream.aliasAndPort", "changed:30010");
+        assertThat(copy.getUpstreamName(), is("changed"));
+        assertThat(frameworkProperties.getUpstreamName(), is("upstream"));
+    }
+
+    @Test
+    public void shouldReloadPropertiesWhenTheFileChanges() throws IOException {
+        File configFile = temporaryFolder.newFile("snow-globe.yml");
+        Files.write(configFile.toPath(), "upstream.aliasAndPort: first:30010\n".getBytes(StandardCharsets.UTF_8));
+        configFile.setLastModified(1000000L);
+        FrameworkProperties first = FrameworkProperties.load(configFile.getPath());
+        assertThat(first.getUpstreamName(), is("first"));
+
+        Files.write(configFile.toPath(), "upstream.aliasAndPort: second:30010\n".getBytes(StandardCharsets.UTF_8));
+        configFile.setLastModified(2000000L);
+        FrameworkProperties second = FrameworkProperties.load(configFile.getPath());
+        assertNotSame(first, second);
+        assertThat(second.getUpstreamName(), is("second"));
+    }
+}
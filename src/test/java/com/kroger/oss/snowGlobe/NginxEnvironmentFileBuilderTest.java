@@ -19,19 +19,33 @@
 package com.kroger.oss.snowGlobe;
 
 import com.kroger.oss.snowGlobe.environment.UpstreamAppInfo;
+import com.kroger.oss.snowGlobe.environment.ConfigAnalysisCache;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 public class NginxEnvironmentFileBuilderTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private NginxEnvironmentFileBuilder fileBuilder;
 
     @Before
@@ -43,8 +57,8 @@ public class NginxEnvironmentFileBuilderTest {
     public void shouldBeAbleToAddUpstreamEntry() {
         final String cluster1 = "cluster1";
         final String cluster2 = "cluster2";
-        fileBuilder.addEmptyCluster("http://" + cluster1);
-        fileBuilder.addEmptyCluster("http://" + cluster2);
+        fileBuilder.addUpstreamServer(cluster1);
+        fileBuilder.addUpstreamServer(cluster2);
         String clusterFileContents = fileBuilder.buildClusterFileContents();
 
         String expectedContents = fileBuilder.buildUpstreamServerEntry(cluster1, new UpstreamAppInfo()) +
@@ -53,78 +67,6 @@ public class NginxEnvironmentFileBuilderTest {
         assertThat(expectedContents, is(clusterFileContents));
     }
 
-    @Test
-    public void shouldHandleUpstreamLinesWithHttps() {
-        String cluster1 = "cluster1";
-        final String upstreamLine = "proxy_pass https://" + cluster1;
-        fileBuilder.addEmptyCluster(upstreamLine);
-        assertThat(fileBuilder.upstreamServers, hasKey(cluster1));
-    }
-
-    @Test
-    public void shouldHandleUpstreamLinesWithHttp() {
-        String cluster1 = "cluster1";
-        final String upstreamLine = "proxy_pass http://" + cluster1;
-        fileBuilder.addEmptyCluster(upstreamLine);
-        assertThat(fileBuilder.upstreamServers, hasKey(cluster1));
-    }
-
-    @Test
-    public void shouldHandleUpstreamLinesWithTrailingSpace() {
-        String cluster1 = "cluster1";
-        final String upstreamLine = "proxy_pass http://" + cluster1 + " ;";
-        fileBuilder.addEmptyCluster(upstreamLine);
-        assertThat(fileBuilder.upstreamServers, hasKey(cluster1));
-    }
-
-    @Test
-    public void shouldHandleUpstreamLinesWithPath() {
-        String cluster1 = "cluster1";
-        final String upstreamLine = "proxy_pass http://" + cluster1 + "/path/to/other/thing";
-        fileBuilder.addEmptyCluster(upstreamLine);
-        assertThat(fileBuilder.upstreamServers, hasKey(cluster1));
-    }
-
-    @Test
-    public void shouldHandleUpstreamLinesWithDollarSignAtEnd() {
-        String cluster1 = "cluster1";
-        final String upstreamLine = "proxy_pass http://" + cluster1 + "$";
-        fileBuilder.addEmptyCluster(upstreamLine);
-        assertThat(fileBuilder.upstreamServers, not(hasKey(cluster1)));
-    }
-
-    @Test
-    public void shouldHandleUpstreamLinesWithDollarSignAtBeginning() {
-        String cluster1 = "$cluster1";
-        final String upstreamLine = "proxy_pass http://" + cluster1;
-        fileBuilder.addEmptyCluster(upstreamLine);
-        assertThat(fileBuilder.upstreamServers, not(hasKey(cluster1)));
-    }
-
-    @Test
-    public void shouldHandleUpstreamLinesWithDollarSignInMiddle() {
-        String cluster1 = "cluster1$env";
-        final String upstreamLine = "proxy_pass http://" + cluster1;
-        fileBuilder.addEmptyCluster(upstreamLine);
-        assertThat(fileBuilder.upstreamServers, not(hasKey(cluster1)));
-    }
-
-    @Test
-    public void shouldHandleUpstreamLinesWithDollarSignAfterClusterName() {
-        String cluster1 = "cluster1";
-        final String upstreamLine = "proxy_pass http://" + cluster1 + "/q=$1";
-        fileBuilder.addEmptyCluster(upstreamLine);
-        assertThat(fileBuilder.upstreamServers, hasKey(cluster1));
-    }
-
-    @Test
-    public void shouldHandleUpstreamLinesWithSemiColon() {
-        String cluster1 = "cluster1";
-        final String upstreamLine = "proxy_pass http://" + cluster1 + ";";
-        fileBuilder.addEmptyCluster(upstreamLine);
-        assertThat(fileBuilder.upstreamServers, hasKey(cluster1));
-    }
-
     @Test
     public void shouldBeAbleToAddUpstreamFromAppServiceCluster() {
         String cluster = "cluster1";
@@ -136,7 +78,7 @@ public class NginxEnvironmentFileBuilderTest {
 
     @Test
     public void shouldBuildUpstreamEntryWithZone() {
-        fileBuilder.getPropertiesForTest().setPropertyForTesting("nginx.define.upstream.zones", "true");
+        fileBuilder.frameworkProperties = fileBuilder.frameworkProperties.withProperty("nginx.define.upstream.zones", true);
         String serverName = "server";
         String containerName = "upstream";
         int containerPort = 0;
@@ -176,4 +118,185 @@ public class NginxEnvironmentFileBuilderTest {
                 "src/test/resources/wildCardTests/test.html"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void shouldReadClustersFromIncludedFiles() throws IOException {
+        File mainConf = writeConfigTree();
+
+        NginxEnvironmentFileBuilder builder = builderForTree();
+        builder.readEnvConfig(mainConf.getAbsolutePath());
+
+        assertThat(builder.upstreamServers.keySet(), containsInAnyOrder("Cart_Cluster", "Item_Cluster"));
+    }
+
+    @Test
+    public void shouldComputeTheSameHashFromCachedAnalyses() throws IOException {
+        File mainConf = writeConfigTree();
+        NginxEnvironmentFileBuilder first = builderForTree();
+        first.readEnvConfig(mainConf.getAbsolutePath());
+        NginxEnvironmentFileBuilder second = builderForTree();
+        second.readEnvConfig(mainConf.getAbsolutePath());
+
+        assertThat(second.computeConfigurationHash(), is(first.computeConfigurationHash()));
+    }
+
+    @Test
+    public void shouldComputeADifferentHashWhenAnIncludedFileChanges() throws IOException {
+        File mainConf = writeConfigTree();
+        NginxEnvironmentFileBuilder first = builderForTree();
+        first.readEnvConfig(mainConf.getAbsolutePath());
+
+        Files.write(new File(temporaryFolder.getRoot(), "dev/item.conf").toPath(),
+                "location /item { proxy_pass http://Item_Cluster/v2; }\n".getBytes(StandardCharsets.UTF_8));
+        NginxEnvironmentFileBuilder second = builderForTree();
+        second.readEnvConfig(mainConf.getAbsolutePath());
+
+        assertThat(second.computeConfigurationHash(), not(first.computeConfigurationHash()));
+    }
+
+    @Test
+    public void shouldComputeTheSameHashNoMatterHowManyThreadsScan() throws Exception {
+        temporaryFolder.newFolder("conf.d");
+        File mainConf = temporaryFolder.newFile("nginx.conf");
+        Files.write(mainConf.toPath(), "http {\n  include /etc/nginx/conf.d/*.conf;\n}\n".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 200; i++) {
+            Files.write(new File(temporaryFolder.getRoot(), "conf.d/tenant" + i + ".conf").toPath(),
+                    ("location /tenant" + i + " { proxy_pass http://Tenant_" + i + "; }\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        String singleThreadHash = scanIn(new ForkJoinPool(1), mainConf);
+        String parallelHash = scanIn(new ForkJoinPool(8), mainConf);
+
+        assertThat(parallelHash, is(singleThreadHash));
+    }
+
+    @Test
+    public void shouldFindEveryClusterWhenScanningInParallel() throws Exception {
+        temporaryFolder.newFolder("conf.d");
+        File mainConf = temporaryFolder.newFile("nginx.conf");
+        Files.write(mainConf.toPath(), "include /etc/nginx/conf.d/*.conf;\n".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 50; i++) {
+            Files.write(new File(temporaryFolder.getRoot(), "conf.d/tenant" + i + ".conf").toPath(),
+                    ("proxy_pass http://Tenant_" + i + ";\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        NginxEnvironmentFileBuilder builder = builderForTree();
+        new ForkJoinPool(8).submit(() -> builder.readEnvConfig(mainConf.getAbsolutePath())).get();
+
+        assertThat(builder.upstreamServers.size(), is(50));
+        assertThat(builder.upstreamServers, hasKey("Tenant_49"));
+    }
+
+    @Test
+    public void shouldFailWhenTheConfigurationIncludesItself() throws IOException {
+        File mainConf = temporaryFolder.newFile("nginx.conf");
+        Files.write(mainConf.toPath(), "include /etc/nginx/nginx.conf;\n".getBytes(StandardCharsets.UTF_8));
+
+        try {
+            builderForTree().readEnvConfig(mainConf.getAbsolutePath());
+            fail("The configuration includes itself.");
+        } catch (RuntimeException expected) {
+            assertThat(expected.getMessage(), containsString("includes itself: " + mainConf.getAbsolutePath()));
+        }
+    }
+
+    @Test
+    public void shouldServeEveryHttpClusterOnOnePortWithASharedListener() {
+        FrameworkProperties properties = new FrameworkProperties().withProperty("upstream.sharedListener", true);
+        NginxEnvironmentFileBuilder builder = new NginxEnvironmentFileBuilder(properties);
+        AppServiceCluster cart = AppServiceCluster.makeHttpWebService("Cart_Cluster");
+        AppServiceCluster item = AppServiceCluster.makeHttpWebService("Item_Cluster");
+        AppServiceCluster secure = AppServiceCluster.makeHttpsWebService("Secure_Cluster");
+        AppServiceCluster[] clusters = {cart, item, secure};
+        builder.addUpstreamServer("Config_Cluster");
+        builder.registerUpstreams(clusters);
+
+        builder.computeUpstreamPorts();
+        builder.setUpstreamPorts(clusters);
+
+        assertThat(cart.getPort(), is(10000));
+        assertThat(item.getPort(), is(10000));
+        assertThat(builder.upstreamServers.get("Config_Cluster").port(), is(10000));
+        assertThat(secure.getPort(), is(10001));
+    }
+
+    @Test
+    public void shouldStreamTheSameContentsItHashes() throws IOException {
+        fileBuilder.addUpstreamServer("Item_Cluster");
+        fileBuilder.addUpstreamServer("Cart_Cluster");
+        fileBuilder.computeUpstreamPorts();
+        String unwrittenHash = fileBuilder.computeConfigurationHash();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        fileBuilder.writeClusterFile(out);
+
+        assertThat(out.toString("UTF-8"), is(fileBuilder.buildClusterFileContents()));
+        assertThat(out.toString("UTF-8"), startsWith("\n  upstream Cart_Cluster { \n    server upstream:10000"));
+        assertThat(fileBuilder.computeConfigurationHash(), is(unwrittenHash));
+    }
+
+    @Test
+    public void shouldWriteTensOfThousandsOfUpstreamsInOnePass() throws IOException {
+        int count = 40000;
+        NginxEnvironmentFileBuilder builder = new NginxEnvironmentFileBuilder(new FrameworkProperties());
+        for (int i = 0; i < count; i++) {
+            builder.addUpstreamServer("Service_Cluster_" + i);
+        }
+        builder.computeUpstreamPorts();
+        long expectedBytes = builder.upstreamServers.entrySet().stream()
+                .mapToLong(entry -> builder.buildUpstreamServerEntry(entry.getKey(), entry.getValue()).length())
+                .sum();
+        CountingOutputStream out = new CountingOutputStream();
+
+        builder.writeClusterFile(out);
+        builder.computeConfigurationHash();
+
+        // Every upstream is written exactly once, in blocks of several kilobytes rather than once per upstream, and the
+        // hash reuses what was written instead of building the file again.
+        assertThat(out.count, is(expectedBytes));
+        assertThat(out.writes, lessThanOrEqualTo(expectedBytes / 4096 + 2));
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count = 0;
+        private long writes = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+            writes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+            writes++;
+        }
+    }
+
+    private String scanIn(ForkJoinPool pool, File mainConf) throws Exception {
+        NginxEnvironmentFileBuilder builder = builderForTree();
+        try {
+            pool.submit(() -> builder.readEnvConfig(mainConf.getAbsolutePath())).get();
+        } finally {
+            pool.shutdown();
+        }
+        return builder.computeConfigurationHash();
+    }
+
+    private File writeConfigTree() throws IOException {
+        temporaryFolder.newFolder("dev");
+        File mainConf = temporaryFolder.newFile("nginx.conf");
+        Files.write(mainConf.toPath(), ("http {\n  include /etc/nginx/dev/*.conf;\n" +
+                "  location /cart { proxy_pass http://Cart_Cluster; }\n}\n").getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(temporaryFolder.getRoot(), "dev/item.conf").toPath(),
+                "location /item { proxy_pass http://Item_Cluster/v1; }\n".getBytes(StandardCharsets.UTF_8));
+        return mainConf;
+    }
+
+    private NginxEnvironmentFileBuilder builderForTree() {
+        FrameworkProperties properties = new FrameworkProperties()
+                .withProperty("nginx.source.base.directory", temporaryFolder.getRoot().getAbsolutePath() + "/")
+                .withProperty("nginx.deploy.base.directory", "/etc/nginx/");
+        return new NginxEnvironmentFileBuilder(properties, new ConfigAnalysisCache(new File(temporaryFolder.getRoot(), "analysis.json")));
+    }
+}
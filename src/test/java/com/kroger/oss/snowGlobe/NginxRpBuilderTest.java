@@ -29,6 +29,7 @@ import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.contains;
 
@@ -47,6 +48,26 @@ public class NginxRpBuilderTest {
         assertThat(argsMap, hasKey("command"));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldResolveTheUpstreamToTheDockerHostWhenItRunsInTheJvm() {
+        NginxRpBuilder nginxRpBuilder = new NginxRpBuilder("snow-globe.yml", null);
+        nginxRpBuilder.frameworkProperties = new FrameworkProperties().withProperty("upstream.server", "jvm");
+        Map<String, Object> argsMap = (Map<String, Object>) nginxRpBuilder.buildComposeMap().get(nginxRpBuilder.buildRpContainerId());
+        assertThat((List<String>) argsMap.get("extra_hosts"), hasItem("upstream:host-gateway"));
+    }
+
+    @Test
+    public void shouldGiveTheDefinedClustersThePortsOfTheirInstances() {
+        AppServiceCluster cart = AppServiceCluster.makeHttpWebService("Cart_Cluster");
+        NginxRpBuilder nginxRpBuilder = new NginxRpBuilder("snow-globe.yml", new AppServiceCluster[]{cart});
+        nginxRpBuilder.clusters[0].assignPort(10003);
+
+        nginxRpBuilder.bindClustersToInstances();
+
+        assertThat(cart.getPort(), is(10003));
+    }
+
     @Test
     public void shouldFilterVolumeMountsThatDontExist() {
         List<String> volumeMounts = new ArrayList<>();
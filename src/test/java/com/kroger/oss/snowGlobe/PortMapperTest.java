@@ -21,10 +21,17 @@ package com.kroger.oss.snowGlobe;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.IntStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 
 public class PortMapperTest {
 
@@ -34,13 +41,13 @@ public class PortMapperTest {
     @Before
     public void init() {
         portMapper = new PortMapper();
-        frameworkProperties = new FrameworkProperties();
-        frameworkProperties.loadFile("src/test/resources/test-snow-globe.yml");
+        frameworkProperties = new FrameworkProperties("src/test/resources/test-snow-globe.yml");
     }
 
     @Test
     public void shouldConsistentlyAssignCorrectPortToSecureAndInsecureUrls() {
         portMapper.initMapping(frameworkProperties);
+        portMapper.useExistingPorts(dockerAssignedPorts());
         int subdomainPort = portMapper.getMappedPortForUrl("https://sub.secureurl.com");
         int securePort = portMapper.getMappedPortForUrl("https://secureurl.com");
         int inSecurePort = portMapper.getMappedPortForUrl("http://insecureurl.com");
@@ -62,4 +69,77 @@ public class PortMapperTest {
     public void shouldThrowExceptionOnUnitializedPortMappings() {
         portMapper.getMappedPortForUrl("http://url.com");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldUseTheFirstMatchingPatternInYamlOrder() {
+        portMapper.initMapping(frameworkProperties);
+        portMapper.useExistingPorts(dockerAssignedPorts());
+
+        assertEquals(20443, (int) portMapper.getMappedPortForUrl("https://sub.kroger.com/path"));
+        assertEquals(20001, (int) portMapper.getMappedPortForUrl("https://www.kroger.com/path"));
+        // The http pattern is defined before the lower order domain, so it always wins.
+        assertEquals(20002, (int) portMapper.getMappedPortForUrl("http://lower.kroger.com/path"));
+    }
+
+    @Test
+    public void shouldUpdateRememberedUrlsWhenPortsChange() {
+        portMapper.initMapping(frameworkProperties);
+        Map<Integer, Integer> existingPorts = new HashMap<>();
+        existingPorts.put(443, 20001);
+        portMapper.useExistingPorts(existingPorts);
+        assertEquals(20001, (int) portMapper.getMappedPortForUrl("https://www.kroger.com"));
+
+        Map<Integer, Integer> newPorts = new HashMap<>();
+        newPorts.put(443, 30001);
+        portMapper.useExistingPorts(newPorts);
+        assertEquals(30001, (int) portMapper.getMappedPortForUrl("https://www.kroger.com"));
+    }
+
+    @Test
+    public void shouldReturnTheSamePortObjectForRepeatedLookups() {
+        portMapper.initMapping(frameworkProperties);
+        portMapper.useExistingPorts(dockerAssignedPorts());
+        assertSame(portMapper.getMappedPortForUrl("https://www.kroger.com"), portMapper.getMappedPortForUrl("https://www.kroger.com"));
+        IntStream.rangeClosed(1, PortMapper.MAX_REMEMBERED_URLS + 10)
+                .forEach(i -> portMapper.getMappedPortForUrl("https://" + i + ".com"));
+        assertSame(portMapper.getMappedPortForUrl("https://1.com"), portMapper.getMappedPortForUrl("https://www.kroger.com"));
+    }
+
+    @Test
+    public void shouldAllowSeveralPatternsForTheSameNginxPort() {
+        List<Map<String, Object>> mappings = new ArrayList<>();
+        mappings.add(mapping("secure", "https:.*", 443));
+        mappings.add(mapping("alsoSecure", "ssl:.*", 443));
+        frameworkProperties = frameworkProperties.withProperty("nginx.url.port.mapping", mappings);
+        portMapper.initMapping(frameworkProperties);
+        portMapper.useExistingPorts(dockerAssignedPorts());
+
+        assertEquals(20001, (int) portMapper.getMappedPortForUrl("https://kroger.com"));
+        assertEquals(20001, (int) portMapper.getMappedPortForUrl("ssl://kroger.com"));
+        assertEquals(Collections.singletonList("443"), portMapper.getComposePortMapping());
+    }
+
+    @Test
+    public void shouldOnlyPublishNginxPortsSoDockerPicksTheHostPorts() {
+        portMapper.initMapping(frameworkProperties);
+        assertEquals(Arrays.asList("10443", "443", "80", "10080"), portMapper.getComposePortMapping());
+    }
+
+    private Map<Integer, Integer> dockerAssignedPorts() {
+        Map<Integer, Integer> existingPorts = new HashMap<>();
+        existingPorts.put(10443, 20443);
+        existingPorts.put(443, 20001);
+        existingPorts.put(80, 20002);
+        existingPorts.put(10080, 20003);
+        return existingPorts;
+    }
+
+    private Map<String, Object> mapping(String name, String pattern, int port) {
+        Map<String, Object> inner = new HashMap<>();
+        inner.put("pattern", pattern);
+        inner.put("port", port);
+        Map<String, Object> outer = new HashMap<>();
+        outer.put(name, inner);
+        return outer;
+    }
+}
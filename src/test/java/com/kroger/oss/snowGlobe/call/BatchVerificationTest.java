@@ -0,0 +1,95 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.call;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class BatchVerificationTest {
+
+    @Mock TestRequest firstRequest;
+    @Mock TestRequest secondRequest;
+    @Mock TestRequest thirdRequest;
+    @Mock ResponseVerification firstResponse;
+    @Mock ResponseVerification thirdResponse;
+
+    @Before
+    public void setup() {
+        initMocks(this);
+        when(firstRequest.getMethod()).thenReturn("GET");
+        when(firstRequest.getPrettyUrl()).thenReturn("http://first.com");
+        when(secondRequest.getMethod()).thenReturn("GET");
+        when(secondRequest.getPrettyUrl()).thenReturn("http://second.com");
+        when(thirdRequest.getMethod()).thenReturn("GET");
+        when(thirdRequest.getPrettyUrl()).thenReturn("http://third.com");
+    }
+
+    private BatchVerification buildBatch() {
+        return new BatchVerification(Arrays.asList(
+                new BatchVerification.Result(firstRequest, firstResponse, null),
+                new BatchVerification.Result(secondRequest, null, new RuntimeException("connection refused")),
+                new BatchVerification.Result(thirdRequest, thirdResponse, null)));
+    }
+
+    @Test
+    public void shouldSeparateResponsesAndFailures() {
+        BatchVerification batch = buildBatch();
+        assertThat(batch.size(), is(3));
+        assertThat(batch.getResponses(), is(Arrays.asList(firstResponse, thirdResponse)));
+        assertThat(batch.getFailures().size(), is(1));
+    }
+
+    @Test
+    public void shouldCheckEveryResponseBeforeFailing() {
+        doThrow(new AssertionError("wrong cluster")).when(firstResponse).andExpectClusterName("Item_Cluster");
+        AtomicInteger checked = new AtomicInteger();
+        try {
+            buildBatch().andExpectEach(response -> {
+                checked.incrementAndGet();
+                response.andExpectClusterName("Item_Cluster");
+            });
+            fail("The batch should have failed.");
+        } catch (AssertionError e) {
+            assertThat(checked.get(), is(2));
+            assertThat(e.getMessage(), containsString("2 of 3 requests failed"));
+            assertThat(e.getMessage(), containsString("http://first.com: wrong cluster"));
+            assertThat(e.getMessage(), containsString("http://second.com: connection refused"));
+            assertThat(e.getSuppressed().length, is(2));
+        }
+    }
+
+    @Test
+    public void shouldPassWhenEveryRequestSucceeds() {
+        new BatchVerification(Arrays.asList(new BatchVerification.Result(firstRequest, firstResponse, null)))
+                .expectNoFailures()
+                .andExpectEach((request, response) -> assertThat(request, is(firstRequest)));
+    }
+}
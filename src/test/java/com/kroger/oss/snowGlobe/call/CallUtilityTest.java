@@ -18,10 +18,14 @@
 
 package com.kroger.oss.snowGlobe.call;
 
+import com.kroger.oss.snowGlobe.FrameworkProperties;
+import com.kroger.oss.snowGlobe.NginxRpBuilder;
+import com.sun.net.httpserver.HttpServer;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.junit.Before;
 import org.junit.Test;
@@ -29,10 +33,14 @@ import org.junit.Test;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -81,17 +89,71 @@ public class CallUtilityTest {
         String expectedResponse = "expected response";
         when(entity.getContent()).thenReturn(new ByteArrayInputStream(expectedResponse.getBytes(StandardCharsets.UTF_8)));
 
-        String actualResponse = CallUtility.getResponseBody(entity);
+        String actualResponse = CallUtility.captureBody(entity, 1024).asString();
 
         assertThat(expectedResponse, is(actualResponse));
     }
 
+    @Test
+    public void shouldKeepLineBreaksAndCharsetOfResponseBody() {
+        ByteArrayEntity entity = new ByteArrayEntity("caf\u00e9\r\nline\n".getBytes(StandardCharsets.ISO_8859_1),
+                ContentType.create("text/plain", StandardCharsets.ISO_8859_1));
+
+        assertThat(CallUtility.captureBody(entity, 1024).asString(), is("caf\u00e9\r\nline\n"));
+    }
+
+    @Test
+    public void shouldCaptureMissingResponseBodyAsEmpty() {
+        assertThat(CallUtility.captureBody(null, 1024).length(), is(0L));
+    }
+
     @Test(expected = RuntimeException.class)
-    public void shouldGetResponseBodyWithError() {
-        HttpEntity entity = null;
-        CallUtility.getResponseBody(entity);
+    public void shouldGetResponseBodyWithError() throws IOException {
+        HttpEntity entity = mock(HttpEntity.class);
+        when(entity.getContent()).thenThrow(new IOException("Expected Error"));
+        CallUtility.captureBody(entity, 1024);
     }
 
+    @Test
+    public void shouldCollectEveryFailureInBatch() {
+        TestRequest first = mock(TestRequest.class);
+        TestRequest second = mock(TestRequest.class);
+        when(first.getMethod()).thenReturn("PATCH");
+        when(second.getMethod()).thenReturn("TRACE");
+
+        BatchVerification batch = CallUtility.makeAll(Arrays.asList(first, second));
 
+        assertThat(batch.size(), is(2));
+        assertThat(batch.getResponses().size(), is(0));
+        assertThat(batch.getFailures().size(), is(2));
+    }
 
-}
\ No newline at end of file
+    @Test
+    public void shouldTimeEachPhaseOfTheCall() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] echo = "{\"cluster\":\"Item_Cluster\",\"instance\":0,\"request\":{\"path\":\"/item\"}}".getBytes();
+            exchange.sendResponseHeaders(200, echo.length);
+            exchange.getResponseBody().write(echo);
+            exchange.close();
+        });
+        server.start();
+        HttpClientPool pool = new HttpClientPool(new FrameworkProperties());
+        NginxRpBuilder reverseProxy = mock(NginxRpBuilder.class);
+        when(reverseProxy.getPortForUrl(anyString())).thenReturn(server.getAddress().getPort());
+        when(reverseProxy.getHttpClientPool()).thenReturn(pool);
+        try {
+            ResponseVerification first = CallUtility.make(TestRequest.getRequest("http://www.nginx-test.com/item").to(reverseProxy));
+            ResponseVerification second = CallUtility.make(TestRequest.getRequest("http://www.nginx-test.com/item").to(reverseProxy));
+
+            first.andExpectClusterName("Item_Cluster").andExpectRoundTripBelow(Duration.ofSeconds(5));
+            assertThat(first.getTimings().isConnectionReused(), is(false));
+            assertThat(first.getTimings().getTimeToFirstByte().isZero(), is(false));
+            assertThat(first.getTimings().getRoundTrip().compareTo(first.getTimings().getTimeToFirstByte()) >= 0, is(true));
+            assertThat(second.getTimings().isConnectionReused(), is(true));
+        } finally {
+            pool.close();
+            server.stop(0);
+        }
+    }
+}
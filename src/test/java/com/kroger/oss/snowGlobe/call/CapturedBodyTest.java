@@ -0,0 +1,110 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.call;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class CapturedBodyTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldKeepLineBreaksOfSmallBodiesInMemory() throws IOException {
+        CapturedBody body = capture("line one\r\nline two\n".getBytes(StandardCharsets.UTF_8), 1024);
+        assertThat(body.isSpilledToDisk(), is(false));
+        assertThat(body.length(), is(19L));
+        assertThat(body.asString(), is("line one\r\nline two\n"));
+    }
+
+    @Test
+    public void shouldSpillLargeBodiesToDisk() throws IOException {
+        byte[] content = randomBytes(100000);
+        CapturedBody body = capture(content, 4096);
+        assertThat(body.isSpilledToDisk(), is(true));
+        assertThat(body.length(), is(100000L));
+        try (InputStream in = body.openStream()) {
+            byte[] read = new byte[100001];
+            int total = 0;
+            int count;
+            while ((count = in.read(read, total, read.length - total)) > 0) {
+                total += count;
+            }
+            assertThat(total, is(100000));
+            assertThat(Arrays.equals(Arrays.copyOf(read, total), content), is(true));
+        }
+    }
+
+    @Test
+    public void shouldDecodeWithTheResponseCharset() throws IOException {
+        byte[] latin = "caf\u00e9".getBytes(StandardCharsets.ISO_8859_1);
+        CapturedBody body = CapturedBody.capture(new ByteArrayInputStream(latin), StandardCharsets.ISO_8859_1, 1024);
+        assertThat(body.asString(), is("caf\u00e9"));
+    }
+
+    @Test
+    public void shouldDefaultToUtf8() throws IOException {
+        CapturedBody body = capture("caf\u00e9".getBytes(StandardCharsets.UTF_8), 1024);
+        assertThat(body.getCharset(), is(StandardCharsets.UTF_8));
+        assertThat(body.asString(), is("caf\u00e9"));
+    }
+
+    @Test
+    public void shouldMatchTheExactFileContents() throws IOException {
+        byte[] content = randomBytes(50000);
+        File expected = temporaryFolder.newFile("expected.bin");
+        Files.write(expected.toPath(), content);
+        assertThat(capture(content, 1024).matchesFile(expected.toPath()), is(true));
+        assertThat(capture(content, 100000).matchesFile(expected.toPath()), is(true));
+    }
+
+    @Test
+    public void shouldNotMatchFileThatDiffersOnlyByLineBreaks() throws IOException {
+        File expected = temporaryFolder.newFile("expected.html");
+        Files.write(expected.toPath(), "<html>\n</html>\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(CapturedBody.of("<html></html>").matchesFile(expected.toPath()), is(false));
+        assertThat(CapturedBody.of("<html>\n</html>\r").matchesFile(expected.toPath()), is(false));
+        assertThat(CapturedBody.of("<html>\n</html>\n").matchesFile(expected.toPath()), is(true));
+    }
+
+    private CapturedBody capture(byte[] content, int maxInMemoryBytes) throws IOException {
+        return CapturedBody.capture(new ByteArrayInputStream(content), null, maxInMemoryBytes);
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+}
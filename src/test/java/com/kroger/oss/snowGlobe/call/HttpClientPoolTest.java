@@ -0,0 +1,66 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.call;
+
+import com.kroger.oss.snowGlobe.FrameworkProperties;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.Is.is;
+
+public class HttpClientPoolTest {
+
+    FrameworkProperties frameworkProperties;
+    HttpClientPool pool;
+
+    @Before
+    public void setup() {
+        frameworkProperties = new FrameworkProperties();
+        pool = new HttpClientPool(frameworkProperties);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void shouldReuseTheSameClientForEachCall() {
+        assertThat(pool.getClient(), is(sameInstance(pool.getClient())));
+    }
+
+    @Test
+    public void shouldSizeThePoolFromTheProperties() {
+        PoolingHttpClientConnectionManager manager = pool.buildConnectionManager();
+        assertThat(manager.getMaxTotal(), is(frameworkProperties.getHttpMaxConnections()));
+        assertThat(manager.getDefaultMaxPerRoute(), is(frameworkProperties.getHttpMaxConnections()));
+        manager.shutdown();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotHandOutClientAfterClose() {
+        pool.close();
+        assertThat(pool.isClosed(), is(true));
+        pool.getClient();
+    }
+}
@@ -20,7 +20,9 @@ package com.kroger.oss.snowGlobe.call;
 
 import org.junit.Test;
 
+import static org.hamcrest.Matchers.hasEntry;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
 
@@ -41,4 +43,40 @@ public class ResponseBodyTest {
         assertThat(rawResponse, is(body.getRawResponse()));
         assertThat(body.getRequest(), is(notNullValue()));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldReadTheUpstreamEchoWhenAsked() {
+        ResponseBody body = ResponseBody.fromUpstreamResponse("{\"cluster\":\"cluster1\",\"instance\":2,\"extra\":[1,{}]," +
+                "\"request\":{\"path\":\"/app\",\"headers\":{\"host\":\"www.kroger.com\"}}}");
+        assertThat(body.getCluster(), is("cluster1"));
+        assertThat(body.getInstance(), is(2));
+        assertThat(body.getRawResponse(), is(nullValue()));
+        assertThat(body.getRequest().getPath(), is("/app"));
+        assertThat(body.getRequest().getHeaders(), hasEntry("host", "www.kroger.com"));
+    }
+
+    @Test
+    public void shouldReadTheFieldsOfTheEchoAfterNestedObjects() {
+        ResponseBody body = ResponseBody.fromUpstreamResponse("{\"cluster\":\"cluster1\",\"instance\":2," +
+                "\"request\":{\"baseUrl\":\"\",\"headers\":{\"host\":\"cluster1\"},\"params\":{},\"path\":\"/app\"," +
+                "\"query\":{\"a\":\"b\"},\"secure\":false}}");
+        assertThat(body.getRequest().getPath(), is("/app"));
+        assertThat(body.getRequest().getQuery(), hasEntry("a", "b"));
+        assertThat(body.getRequest().isSecure(), is(false));
+    }
+
+    @Test
+    public void shouldTreatNonJsonAsDirectResponseFromRP() {
+        ResponseBody body = ResponseBody.fromUpstreamResponse("<html>Moved</html>");
+        assertThat(body.getRawResponse(), is("<html>Moved</html>"));
+        assertThat(body.getCluster(), is(nullValue()));
+        assertThat(body.getRequest(), is(notNullValue()));
+    }
+
+    @Test
+    public void shouldTreatJsonWithoutRequestAsDirectResponseFromRP() {
+        ResponseBody body = ResponseBody.fromUpstreamResponse("{\"status\":\"ok\"}");
+        assertThat(body.getRawResponse(), is("{\"status\":\"ok\"}"));
+        assertThat(body.getRequest().getPath(), is(nullValue()));
+    }
+}
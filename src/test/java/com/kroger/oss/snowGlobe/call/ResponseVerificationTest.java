@@ -22,10 +22,12 @@ import org.apache.http.Header;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.BasicHttpContext;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -173,4 +175,48 @@ public class ResponseVerificationTest {
 
         buildVerification().andExpectResponseHeaderMatches(key, "[0-9]+");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldVerifyTimings() {
+        RequestTimings timings = RequestTimings.start(new BasicHttpContext());
+        timings.firstByteReceived();
+        timings.bodyRead(0);
+
+        ResponseVerification verification = new ResponseVerification(serviceResponseBody, response, healthCheckResponse, body, testRequest, timings);
+
+        assertThat(verification.getTimings(), is(timings));
+        verification.expectTimeToFirstByteBelow(Duration.ofSeconds(1))
+                .andExpectTimeToFirstByteBelow(Duration.ofSeconds(1))
+                .expectRoundTripBelow(Duration.ofSeconds(1))
+                .andExpectRoundTripBelow(Duration.ofSeconds(1));
+    }
+
+    @Test(expected = AssertionError.class)
+    public void shouldFailWhenRoundTripIsTooSlow() {
+        RequestTimings timings = RequestTimings.start(new BasicHttpContext());
+        timings.bodyRead(0);
+        new ResponseVerification(serviceResponseBody, response, healthCheckResponse, body, testRequest, timings)
+                .andExpectRoundTripBelow(Duration.ZERO);
+    }
+
+    @Test
+    public void shouldMatchFileContentsByteForByte() {
+        CapturedBody exactBody = CapturedBody.of("<html>\n<head>Head</head>\n<body>shoulders, knees and toes</body>\n</html>\n");
+        new ResponseVerification(serviceResponseBody, response, healthCheckResponse, exactBody, testRequest, RequestTimings.none())
+                .andExpectResponseBodyMatchesFileContents("src/test/resources/static/expected-body.html");
+    }
+
+    @Test(expected = AssertionError.class)
+    public void shouldFailWhenBodyDiffersFromFileByLineBreaks() {
+        CapturedBody strippedBody = CapturedBody.of("<html><head>Head</head><body>shoulders, knees and toes</body></html>");
+        new ResponseVerification(serviceResponseBody, response, healthCheckResponse, strippedBody, testRequest, RequestTimings.none())
+                .andExpectResponseBodyMatchesFileContents("src/test/resources/static/expected-body.html");
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void shouldIgnoreLineBreaksForDeprecatedFileComparison() {
+        when(serviceResponseBody.getRawResponse()).thenReturn("<html><head>Head</head>\r\n<body>shoulders, knees and toes</body></html>");
+        buildVerification().andResponseBodyMatchesFileContents("src/test/resources/static/expected-body.html");
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.environment;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class ConfigAnalysisCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File cacheFile;
+    private File confFile;
+
+    @Before
+    public void setup() throws IOException {
+        cacheFile = new File(temporaryFolder.getRoot(), "build/analysis.json");
+        confFile = temporaryFolder.newFile("site.conf");
+        writeStable(confFile, "location /cart {\n  proxy_pass http://Cart_Cluster/cart;\n}\ninclude /etc/nginx/dev/*.conf;\n");
+    }
+
+    @Test
+    public void shouldFindClustersAndIncludesInOrder() {
+        ConfigFileAnalysis analysis = new ConfigAnalysisCache(cacheFile).analyze(confFile, "proxy_pass");
+
+        assertThat(analysis.getClusters(), contains("Cart_Cluster"));
+        assertThat(analysis.getIncludes(), contains("/etc/nginx/dev/*.conf"));
+    }
+
+    @Test
+    public void shouldIgnoreCommentedAndMatchMultiLineDirectives() throws IOException {
+        writeStable(confFile, "# proxy_pass http://Old_Cluster;\nproxy_pass_header Server;\n" +
+                "location /item { proxy_pass\n    http://Item_Cluster/item; include \"/etc/nginx/item.conf\"; }\n");
+
+        ConfigFileAnalysis analysis = new ConfigAnalysisCache(cacheFile).analyze(confFile, "proxy_pass");
+
+        assertThat(analysis.getClusters(), contains("Item_Cluster"));
+        assertThat(analysis.getIncludes(), contains("/etc/nginx/item.conf"));
+    }
+
+    @Test
+    public void shouldNotReadAnUnchangedFileAgain() {
+        ConfigAnalysisCache cache = new ConfigAnalysisCache(cacheFile);
+
+        ConfigFileAnalysis first = cache.analyze(confFile, "proxy_pass");
+
+        assertThat(cache.analyze(confFile, "proxy_pass"), sameInstance(first));
+    }
+
+    @Test
+    public void shouldReadAChangedFileAgain() throws IOException {
+        ConfigAnalysisCache cache = new ConfigAnalysisCache(cacheFile);
+        ConfigFileAnalysis first = cache.analyze(confFile, "proxy_pass");
+
+        writeStable(confFile, "proxy_pass http://Item_Cluster;\n");
+        ConfigFileAnalysis second = cache.analyze(confFile, "proxy_pass");
+
+        assertThat(second.getClusters(), contains("Item_Cluster"));
+        assertThat(second.getDigest(), not(first.getDigest()));
+    }
+
+    @Test
+    public void shouldNotTrustAFileThatJustChanged() throws IOException {
+        Files.write(confFile.toPath(), "proxy_pass http://Item_Cluster;\n".getBytes(StandardCharsets.UTF_8));
+        ConfigAnalysisCache cache = new ConfigAnalysisCache(cacheFile);
+
+        ConfigFileAnalysis first = cache.analyze(confFile, "proxy_pass");
+
+        assertThat(cache.analyze(confFile, "proxy_pass"), not(sameInstance(first)));
+    }
+
+    @Test
+    public void shouldStartTheNextRunWithTheSavedAnalyses() {
+        ConfigAnalysisCache cache = new ConfigAnalysisCache(cacheFile);
+        ConfigFileAnalysis first = cache.analyze(confFile, "proxy_pass");
+        cache.save();
+
+        ConfigFileAnalysis loaded = new ConfigAnalysisCache(cacheFile).analyze(confFile, "proxy_pass");
+
+        assertThat(loaded.getAnalyzedAt(), is(first.getAnalyzedAt()));
+        assertThat(loaded.getDigest(), is(first.getDigest()));
+        assertThat(loaded.getClusters(), contains("Cart_Cluster"));
+    }
+
+    @Test
+    public void shouldIgnoreACacheThatCanNotBeRead() throws IOException {
+        cacheFile.getParentFile().mkdirs();
+        Files.write(cacheFile.toPath(), "{\"version\":2,\"files\":[{\"path\":".getBytes(StandardCharsets.UTF_8));
+
+        ConfigFileAnalysis analysis = new ConfigAnalysisCache(cacheFile).analyze(confFile, "proxy_pass");
+
+        assertThat(analysis.getClusters(), contains("Cart_Cluster"));
+    }
+
+    /**
+     * Writes the file and moves its modification time into the past, as if it had not been touched for a while.
+     */
+    private static void writeStable(File file, String contents) throws IOException {
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(System.currentTimeMillis() - 60000 - contents.length() * 1000L);
+    }
+}
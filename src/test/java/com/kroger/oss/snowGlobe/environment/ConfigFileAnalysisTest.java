@@ -0,0 +1,79 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.environment;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class ConfigFileAnalysisTest {
+
+    @Test
+    public void shouldHandleUpstreamLinesWithHttps() {
+        assertThat(ConfigFileAnalysis.clusterNameOf("proxy_pass https://cluster1"), is("cluster1"));
+    }
+
+    @Test
+    public void shouldHandleUpstreamLinesWithHttp() {
+        assertThat(ConfigFileAnalysis.clusterNameOf("proxy_pass http://cluster1"), is("cluster1"));
+    }
+
+    @Test
+    public void shouldHandleUpstreamLinesWithTrailingSpace() {
+        assertThat(ConfigFileAnalysis.clusterNameOf("proxy_pass http://cluster1 ;"), is("cluster1"));
+    }
+
+    @Test
+    public void shouldHandleUpstreamLinesWithPath() {
+        assertThat(ConfigFileAnalysis.clusterNameOf("proxy_pass http://cluster1/path/to/other/thing"), is("cluster1"));
+    }
+
+    @Test
+    public void shouldHandleUpstreamLinesWithDollarSignAtEnd() {
+        assertThat(ConfigFileAnalysis.clusterNameOf("proxy_pass http://cluster1$"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldHandleUpstreamLinesWithDollarSignAtBeginning() {
+        assertThat(ConfigFileAnalysis.clusterNameOf("proxy_pass http://$cluster1"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldHandleUpstreamLinesWithDollarSignInMiddle() {
+        assertThat(ConfigFileAnalysis.clusterNameOf("proxy_pass http://cluster1$env"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldHandleUpstreamLinesWithDollarSignAfterClusterName() {
+        assertThat(ConfigFileAnalysis.clusterNameOf("proxy_pass http://cluster1/q=$1"), is("cluster1"));
+    }
+
+    @Test
+    public void shouldHandleUpstreamLinesWithSemiColon() {
+        assertThat(ConfigFileAnalysis.clusterNameOf("proxy_pass http://cluster1;"), is("cluster1"));
+    }
+
+    @Test
+    public void shouldHandleUpstreamLinesWithoutAScheme() {
+        assertThat(ConfigFileAnalysis.clusterNameOf("proxy_pass cluster1;"), is(nullValue()));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.environment;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class NginxConfigLexerTest {
+
+    @Test
+    public void shouldReadDirectivesWithTheirBlocks() {
+        List<String> directives = lex("http {\n  server {\n    listen 443 ssl;\n    location /cart {\n" +
+                "      proxy_pass http://Cart_Cluster;\n    }\n  }\n}\n");
+
+        assertThat(directives, contains("[] http {", "[http] server {", "[http, server] listen 443 ssl",
+                "[http, server] location /cart {", "[http, server, location] proxy_pass http://Cart_Cluster"));
+    }
+
+    @Test
+    public void shouldSkipComments() {
+        List<String> directives = lex("# proxy_pass http://Commented_Cluster;\nlisten 80; # proxy_pass http://Trailing;\n");
+
+        assertThat(directives, contains("[] listen 80"));
+    }
+
+    @Test
+    public void shouldReadDirectivesThatSpanLines() {
+        List<String> directives = lex("proxy_pass\n    http://Multi_Line_Cluster\n    ;\n");
+
+        assertThat(directives, contains("[] proxy_pass http://Multi_Line_Cluster"));
+    }
+
+    @Test
+    public void shouldReadSeveralDirectivesOnOneLine() {
+        List<String> directives = lex("location /a { proxy_pass http://A; } location /b { proxy_pass http://B; }");
+
+        assertThat(directives, contains("[] location /a {", "[location] proxy_pass http://A",
+                "[] location /b {", "[location] proxy_pass http://B"));
+    }
+
+    @Test
+    public void shouldReadQuotedWordsAndEscapes() {
+        List<String> directives = lex("add_header X-Test \"a; b {c} # d\";\nreturn 200 'it\\'s';\nlocation ~ \\.php$ {}\n");
+
+        assertThat(directives, contains("[] add_header X-Test a; b {c} # d", "[] return 200 it's", "[] location ~ \\.php$ {"));
+    }
+
+    @Test
+    public void shouldKeepVariablesWithBracesInOneWord() {
+        List<String> directives = lex("set $target ${scheme}://Cluster_${env};\n");
+
+        assertThat(directives, contains("[] set $target ${scheme}://Cluster_${env}"));
+    }
+
+    @Test
+    public void shouldReportTheLineADirectiveStartsOn() {
+        List<Integer> lines = new ArrayList<>();
+        NginxConfigLexer.lex(buffer("\n\n# comment\nlisten\n  80;\nserver_name \"a\nb\";\nroot /;"),
+                directive -> lines.add(directive.getLine()));
+
+        assertThat(lines, contains(4, 6, 8));
+    }
+
+    @Test
+    public void shouldCompareNamesWithoutDecoding() {
+        List<Boolean> matches = new ArrayList<>();
+        NginxConfigLexer.lex(buffer("proxy_pass http://A; proxy_pass_header X; \"proxy_pass\" http://B;"), directive -> {
+            matches.add(directive.is("proxy_pass"));
+        });
+
+        assertThat(matches, contains(true, false, true));
+    }
+
+    @Test
+    public void shouldReadOnlyBetweenPositionAndLimit() {
+        ByteBuffer buffer = buffer("listen 80; listen 443;");
+        buffer.position(11);
+        List<String> directives = new ArrayList<>();
+        NginxConfigLexer.lex(buffer, directive -> directives.add(directive.getArg(0)));
+
+        assertThat(directives, contains("443"));
+        assertThat(buffer.position(), is(11));
+        assertFalse(directives.isEmpty());
+        assertTrue(buffer.hasRemaining());
+    }
+
+    private static List<String> lex(String config) {
+        List<String> directives = new ArrayList<>();
+        NginxConfigLexer.lex(buffer(config), directive -> {
+            StringBuilder text = new StringBuilder(directive.getBlocks().toString()).append(' ').append(directive.getName());
+            for (int i = 0; i < directive.getArgCount(); i++) {
+                text.append(' ').append(directive.getArg(i));
+            }
+            directives.add(directive.opensBlock() ? text.append(" {").toString() : text.toString());
+        });
+        return directives;
+    }
+
+    private static ByteBuffer buffer(String config) {
+        return ByteBuffer.wrap(config.getBytes(StandardCharsets.UTF_8));
+    }
+}
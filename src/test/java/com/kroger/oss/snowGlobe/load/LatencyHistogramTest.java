@@ -0,0 +1,78 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.load;
+
+import org.junit.Test;
+
+import java.util.stream.LongStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void shouldKeepSmallValuesExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LongStream.rangeClosed(1, 100).forEach(histogram::record);
+        assertThat(histogram.getTotalCount(), is(100L));
+        assertThat(histogram.getValueAtPercentile(50), is(50L));
+        assertThat(histogram.getValueAtPercentile(99), is(99L));
+        assertThat(histogram.getValueAtPercentile(100), is(100L));
+        assertThat(histogram.getMinNanos(), is(1L));
+        assertThat(histogram.getMeanNanos(), is(50.5));
+    }
+
+    @Test
+    public void shouldKeepLargeValuesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LongStream.rangeClosed(1, 10_000).forEach(i -> histogram.record(i * 1_000_000L));
+        long p99 = histogram.getValueAtPercentile(99);
+        assertThat(p99, greaterThanOrEqualTo(9_900_000_000L));
+        assertThat((double) p99, closeTo(9_900_000_000.0, 9_900_000_000.0 / 64));
+        assertThat(histogram.getValueAtPercentile(100), is(10_000_000_000L));
+    }
+
+    @Test
+    public void shouldPlaceEveryValueInsideItsBucket() {
+        LongStream.of(0, 127, 128, 129, 1000, 65_535, 1L << 40, Long.MAX_VALUE / 3).forEach(value -> {
+            int index = LatencyHistogram.indexFor(value);
+            assertThat(LatencyHistogram.highestValueInBucket(index), greaterThanOrEqualTo(value));
+            if (index > 0) {
+                assertThat(LatencyHistogram.highestValueInBucket(index - 1), lessThanOrEqualTo(value - 1));
+            }
+        });
+    }
+
+    @Test
+    public void shouldMergeHistograms() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        LongStream.rangeClosed(1, 50).forEach(first::record);
+        LongStream.rangeClosed(51, 100).forEach(second::record);
+        first.merge(second);
+        assertThat(first.getTotalCount(), is(100L));
+        assertThat(first.getValueAtPercentile(50), is(50L));
+        assertThat(first.getMaxNanos(), is(100L));
+        assertThat(first.getMinNanos(), is(1L));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.load;
+
+import com.kroger.oss.snowGlobe.FrameworkProperties;
+import com.kroger.oss.snowGlobe.NginxRpBuilder;
+import com.kroger.oss.snowGlobe.call.HttpClientPool;
+import com.kroger.oss.snowGlobe.call.TestRequest;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.kroger.oss.snowGlobe.call.TestRequest.getRequest;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LoadDriverTest {
+
+    HttpServer server;
+    HttpClientPool pool;
+    NginxRpBuilder reverseProxy;
+    AtomicInteger slowCalls = new AtomicInteger();
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ok", exchange -> respond(exchange, 200));
+        server.createContext("/broken", exchange -> respond(exchange, 503));
+        server.createContext("/slow", exchange -> {
+            slowCalls.incrementAndGet();
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200);
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        pool = new HttpClientPool(new FrameworkProperties());
+        reverseProxy = mock(NginxRpBuilder.class);
+        when(reverseProxy.getPortForUrl(anyString())).thenReturn(server.getAddress().getPort());
+        when(reverseProxy.getHttpClientPool()).thenReturn(pool);
+    }
+
+    private static void respond(com.sun.net.httpserver.HttpExchange exchange, int code) throws IOException {
+        byte[] body = "{}".getBytes();
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        pool.close();
+    }
+
+    @Test
+    public void shouldRunTheNumberOfIterations() {
+        TestRequest request = getRequest("http://www.nginx-test.com/ok").to(reverseProxy);
+        LoadVerification result = LoadDriver.closedLoop(request)
+                .withWorkers(4)
+                .forIterations(200)
+                .run();
+        assertThat(result.getRequestCount(), is(200L));
+        assertThat(result.getResponseCodeCounts().get(200), is(200L));
+        result.expectErrorRateBelow(0.001)
+                .andExpectP99Below(Duration.ofSeconds(5))
+                .andExpectThroughputAbove(1);
+    }
+
+    @Test
+    public void shouldCountServerErrors() {
+        LoadVerification result = LoadDriver.closedLoop(
+                getRequest("http://www.nginx-test.com/ok").to(reverseProxy),
+                getRequest("http://www.nginx-test.com/broken").to(reverseProxy))
+                .forIterations(10)
+                .run();
+        assertThat(result.getErrorCount(), is(5L));
+        assertThat(result.getErrorRate(), is(0.5));
+    }
+
+    @Test
+    public void shouldRunForDuration() {
+        LoadVerification result = LoadDriver.closedLoop(getRequest("http://www.nginx-test.com/ok").to(reverseProxy))
+                .withWorkers(2)
+                .forDuration(Duration.ofMillis(200))
+                .run();
+        assertThat(result.getRequestCount(), greaterThan(0L));
+        assertThat(result.getElapsed().toMillis() >= 200, is(true));
+    }
+
+    @Test
+    public void shouldCountEveryTimedOutCallWithoutRetrying() {
+        LoadVerification result = LoadDriver.closedLoop(getRequest("http://www.nginx-test.com/slow").to(reverseProxy))
+                .withReadTimeout(Duration.ofMillis(100))
+                .forIterations(3)
+                .run();
+        assertThat(result.getErrorCount(), is(3L));
+        assertThat(slowCalls.get(), is(3));
+    }
+
+    @Test
+    public void shouldGiveEveryWorkerItsOwnConnection() {
+        LoadVerification result = LoadDriver.closedLoop(getRequest("http://www.nginx-test.com/ok").to(reverseProxy))
+                .withWorkers(32)
+                .forIterations(640)
+                .run();
+        assertThat(result.getErrorCount(), is(0L));
+        assertThat(result.getResponseCodeCounts().get(200), is(640L));
+    }
+
+    @Test(expected = AssertionError.class)
+    public void shouldFailWhenErrorRateIsAtTheLimit() {
+        LoadDriver.closedLoop(
+                getRequest("http://www.nginx-test.com/ok").to(reverseProxy),
+                getRequest("http://www.nginx-test.com/broken").to(reverseProxy))
+                .forIterations(10)
+                .run()
+                .expectErrorRateBelow(0.5);
+    }
+
+    @Test(expected = AssertionError.class)
+    public void shouldFailWhenErrorRateIsTooHigh() {
+        LoadDriver.closedLoop(getRequest("http://www.nginx-test.com/broken").to(reverseProxy))
+                .forIterations(3)
+                .run()
+                .expectErrorRateBelow(0.1);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kroger.oss.snowGlobe.load;
+
+import com.kroger.oss.snowGlobe.FrameworkProperties;
+import com.kroger.oss.snowGlobe.NginxRpBuilder;
+import com.kroger.oss.snowGlobe.call.HttpClientPool;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.kroger.oss.snowGlobe.call.TestRequest.getRequest;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OpenLoopDriverTest {
+
+    HttpServer server;
+    HttpClientPool pool;
+    NginxRpBuilder reverseProxy;
+    AtomicInteger stallCalls = new AtomicInteger();
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ok", exchange -> respond(exchange, 200));
+        server.createContext("/stall", exchange -> {
+            if (stallCalls.incrementAndGet() == 5) {
+                sleep(150);
+            }
+            respond(exchange, 200);
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        pool = new HttpClientPool(new FrameworkProperties());
+        reverseProxy = mock(NginxRpBuilder.class);
+        when(reverseProxy.getPortForUrl(anyString())).thenReturn(server.getAddress().getPort());
+        when(reverseProxy.getHttpClientPool()).thenReturn(pool);
+    }
+
+    private static void respond(HttpExchange exchange, int code) throws IOException {
+        byte[] body = "{}".getBytes();
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        pool.close();
+    }
+
+    @Test
+    public void shouldScheduleConstantRate() {
+        OpenLoopDriver driver = OpenLoopDriver.openLoop(getRequest("http://www.nginx-test.com/ok"))
+                .atRate(1000)
+                .forDuration(Duration.ofSeconds(2));
+        assertThat(driver.totalRequests(), is(2000L));
+        assertThat(driver.intendedOffsetNanos(0), is(0L));
+        assertThat(driver.intendedOffsetNanos(500), is(500_000_000L));
+    }
+
+    @Test
+    public void shouldScheduleRampingRate() {
+        OpenLoopDriver driver = OpenLoopDriver.openLoop(getRequest("http://www.nginx-test.com/ok"))
+                .atRate(100)
+                .rampingTo(300)
+                .forDuration(Duration.ofSeconds(10));
+        assertThat(driver.totalRequests(), is(2000L));
+        // The last request is scheduled at the end of the run.
+        assertThat(Math.abs(driver.intendedOffsetNanos(2000) - 10_000_000_000L) < 1_000_000L, is(true));
+        // The gaps between requests shrink as the rate ramps up.
+        long firstGap = driver.intendedOffsetNanos(1) - driver.intendedOffsetNanos(0);
+        long lastGap = driver.intendedOffsetNanos(1999) - driver.intendedOffsetNanos(1998);
+        assertThat(firstGap, greaterThan(lastGap * 2));
+    }
+
+    @Test
+    public void shouldSendEveryScheduledRequest() {
+        LoadVerification result = OpenLoopDriver.openLoop(getRequest("http://www.nginx-test.com/ok").to(reverseProxy))
+                .atRate(200)
+                .withConnections(4)
+                .forDuration(Duration.ofMillis(250))
+                .run();
+        assertThat(result.getRequestCount(), is(50L));
+        assertThat(result.getResponseCodeCounts().get(200), is(50L));
+        assertThat(result.getElapsed().toMillis(), greaterThanOrEqualTo(240L));
+        result.expectErrorRateBelow(0.001);
+    }
+
+    @Test
+    public void shouldGiveEveryConnectionItsOwnPooledConnection() {
+        LoadVerification result = OpenLoopDriver.openLoop(getRequest("http://www.nginx-test.com/ok").to(reverseProxy))
+                .atRate(640)
+                .withConnections(32)
+                .forDuration(Duration.ofMillis(250))
+                .run();
+        assertThat(result.getRequestCount(), is(160L));
+        assertThat(result.getErrorCount(), is(0L));
+    }
+
+    @Test
+    public void shouldCountTimedOutCallsAsErrors() {
+        LoadVerification result = OpenLoopDriver.openLoop(getRequest("http://www.nginx-test.com/stall").to(reverseProxy))
+                .atRate(100)
+                .withConnections(1)
+                .withReadTimeout(Duration.ofMillis(100))
+                .forDuration(Duration.ofMillis(100))
+                .run();
+        // The fifth call stalls for longer than the read timeout and is not retried.
+        assertThat(result.getErrorCount(), is(1L));
+        assertThat(stallCalls.get(), is(10));
+    }
+
+    @Test
+    public void shouldChargeStallsToTheRequestsThatWaited() {
+        LoadVerification result = OpenLoopDriver.openLoop(getRequest("http://www.nginx-test.com/stall").to(reverseProxy))
+                .atRate(100)
+                .withConnections(1)
+                .forDuration(Duration.ofMillis(500))
+                .run();
+        // Only one call was slow, but the requests scheduled behind it were all late.
+        assertThat(result.getServiceTimes().getValueAtPercentile(90), lessThan(50_000_000L));
+        assertThat(result.getLatencies().getValueAtPercentile(90), greaterThanOrEqualTo(50_000_000L));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class UpstreamRequestTest {
+
+    @Test
+    public void should_wait_for_the_whole_body() {
+        ByteBuffer buffer = ascii("POST /cart HTTP/1.1\r\nContent-Length: 10\r\n\r\nhello");
+
+        assertThat(UpstreamRequest.read(buffer), is(nullValue()));
+        assertThat(buffer.position(), is(0));
+    }
+
+    @Test
+    public void should_read_pipelined_requests_one_at_a_time() {
+        ByteBuffer buffer = ascii("POST /cart?id=1 HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3;ext=1\r\nabc\r\n2\r\nde\r\n0\r\nX-Trailer: yes\r\n\r\n" +
+                "GET /item HTTP/1.0\r\nconnection: Keep-Alive\r\n\r\n");
+
+        UpstreamRequest first = UpstreamRequest.read(buffer);
+        UpstreamRequest second = UpstreamRequest.read(buffer);
+
+        assertThat(new String(first.getBody(), StandardCharsets.US_ASCII), is("abcde"));
+        assertThat(first.getPath(), is("/cart"));
+        assertThat(first.getQueryString(), is("id=1"));
+        assertThat(first.isKeepAlive(), is(true));
+        assertThat(second.getMethod(), is("GET"));
+        assertThat(second.isKeepAlive(), is(true));
+        assertThat(buffer.hasRemaining(), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_reject_what_is_not_http() {
+        UpstreamRequest.read(ascii("SSH-2.0-OpenSSH\r\n\r\n"));
+    }
+
+    @Test
+    public void should_match_paths_like_express() {
+        assertThat(new PathPattern("/cart/:id?").match("/Cart/").isEmpty(), is(true));
+        assertThat(new PathPattern("/cart/:id?").match("/cart/a%20b").get("id"), is("a b"));
+        assertThat(new PathPattern("/cart/*/items").match("/cart/1/2/items").get("0"), is("1/2"));
+        assertThat(new PathPattern("/cart.json").match("/cartxjson"), is(nullValue()));
+    }
+
+    private static ByteBuffer ascii(String request) {
+        return ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.upstream;
+
+import com.kroger.oss.snowGlobe.AppServiceCluster;
+import com.kroger.oss.snowGlobe.FrameworkProperties;
+import com.kroger.oss.snowGlobe.UpstreamFault;
+import com.kroger.oss.snowGlobe.call.RequestToService;
+import com.kroger.oss.snowGlobe.call.ResponseBody;
+import com.kroger.oss.snowGlobe.util.UpstreamUtil;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.kroger.oss.snowGlobe.AppServiceCluster.makeHttpWebService;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeThat;
+
+public class UpstreamServerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final UpstreamServer server = new UpstreamServer();
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void should_echo_the_request_like_the_bounce_container() throws IOException {
+        int port = server.start(definition("Cart_Cluster", "/cart/:id|/other", 200));
+
+        String response = send(port, "GET /cart/42?item=milk&q=a+b HTTP/1.0\r\n" +
+                "Host: Cart_Cluster\r\nX-Test: one\r\nX-Test: two\r\nX-Requested-With: XMLHttpRequest\r\n\r\n");
+
+        assertThat(response, startsWith("HTTP/1.1 200 OK\r\n"));
+        assertThat(response, containsString("Content-Type: application/json; charset=utf-8\r\n"));
+        ResponseBody body = ResponseBody.fromUpstreamResponse(body(response));
+        assertThat(body.getCluster(), is("Cart_Cluster"));
+        assertThat(body.getInstance(), is(3));
+        RequestToService request = body.getRequest();
+        assertThat(request.getPath(), is("/cart/42"));
+        assertThat(request.getParams().get("id"), is("42"));
+        assertThat(request.getHeaders().get("x-test"), is("one, two"));
+        assertThat(request.getHostname(), is("Cart_Cluster"));
+        assertThat(request.getUrlToApplication(), is("http://Cart_Cluster/cart/42?item=milk&q=a+b"));
+        assertThat(request.getProtocol(), is("http"));
+        assertThat(request.isXhr(), is(true));
+        assertThat(request.getQuery().get("q"), is("a b"));
+        // Like express, a repeated query parameter is a list.
+        assertThat(body(send(port, get("/cart/42?item=milk&item=eggs", "Cart_Cluster"))),
+                containsString("\"query\":{\"item\":[\"milk\",\"eggs\"]}"));
+    }
+
+    @Test
+    public void should_respond_with_not_found_for_other_paths() throws IOException {
+        int port = server.start(definition("Cart_Cluster", "/cart/*", 503));
+
+        assertThat(send(port, get("/cart/anything/at/all", "Cart_Cluster")), startsWith("HTTP/1.1 503 Service Unavailable"));
+        assertThat(send(port, get("/CART/", "Cart_Cluster")), startsWith("HTTP/1.1 503 Service Unavailable"));
+        assertThat(send(port, get("/item", "Cart_Cluster")), startsWith("HTTP/1.1 404 Not Found"));
+    }
+
+    @Test
+    public void should_serve_kept_alive_and_chunked_requests_on_one_connection() throws IOException {
+        int port = server.start(definition("Cart_Cluster", "/cart", 201));
+
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /cart HTTP/1.1\r\nHost: Cart_Cluster\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                    "5\r\nhello\r\n0\r\n\r\n" +
+                    "GET /cart HTTP/1.1\r\nHost: Cart_Cluster\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            String responses = readAll(socket.getInputStream());
+
+            assertThat(responses.split("HTTP/1.1 201 Created").length, is(3));
+            assertThat(responses, containsString("Connection: keep-alive"));
+            assertThat(responses, containsString("Connection: close"));
+        }
+    }
+
+    @Test
+    public void should_pick_the_cluster_of_a_shared_listener_by_host() throws IOException {
+        UpstreamDefinition cart = definition("Cart_Cluster", "/cart", 200);
+        cart.setSharedListener(true);
+        int port = server.start(cart);
+        UpstreamDefinition item = definition("Item_Cluster", "/item", 200);
+        item.setSharedListener(true);
+        item.setPort(port);
+        server.start(item);
+
+        assertThat(body(send(port, get("/item", "item_cluster:" + port))), containsString("\"cluster\":\"Item_Cluster\""));
+        assertThat(body(send(port, get("/cart", "Cart_Cluster"))), containsString("\"cluster\":\"Cart_Cluster\""));
+        assertThat(send(port, get("/cart", "localhost")), startsWith("HTTP/1.1 421 Misdirected Request"));
+        assertThat(server.listInstances(), hasSize(2));
+
+        assertThat(server.stop(port, "Item_Cluster"), is(true));
+        assertThat(send(port, get("/item", "Item_Cluster")), startsWith("HTTP/1.1 421"));
+    }
+
+    @Test
+    public void should_close_a_shared_listener_when_its_last_cluster_is_stopped() throws IOException {
+        UpstreamDefinition cart = definition("Cart_Cluster", "/cart", 200);
+        cart.setSharedListener(true);
+        int port = server.start(cart);
+
+        assertThat(server.stop(port, "Cart_Cluster"), is(true));
+
+        assertThat(server.listInstances(), hasSize(0));
+        try {
+            new Socket("127.0.0.1", port).close();
+            fail("The listener should have been closed.");
+        } catch (ConnectException expected) {
+            // Nothing listens on the port any more.
+        }
+    }
+
+    @Test
+    public void should_add_the_response_headers_of_the_cluster() throws IOException {
+        UpstreamDefinition definition = definition("Cart_Cluster", "/cart", 200);
+        definition.setResponseHeaders(Collections.singletonMap("Content-Type", "text/html"));
+        int port = server.start(definition);
+
+        String response = send(port, get("/cart", "Cart_Cluster"));
+
+        assertThat(response, containsString("Content-Type: text/html\r\n"));
+        assertThat(response, endsWith("}"));
+    }
+
+    @Test
+    public void should_hold_the_response_back_for_the_delay() throws IOException {
+        UpstreamDefinition definition = definition("Cart_Cluster", "/cart", 200);
+        definition.setResponseDelayMs(300);
+        int port = server.start(definition);
+
+        long start = System.nanoTime();
+        String response = send(port, get("/cart", "Cart_Cluster"));
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(300L));
+        assertThat(response, startsWith("HTTP/1.1 200 OK"));
+    }
+
+    @Test
+    public void should_pad_the_body_to_the_response_size() throws IOException {
+        UpstreamDefinition definition = definition("Cart_Cluster", "/cart", 200);
+        definition.setResponseSize(10000);
+        int port = server.start(definition);
+
+        String response = send(port, get("/cart", "Cart_Cluster"));
+
+        assertThat(response, containsString("Content-Length: 10000\r\n"));
+        assertThat(body(response).length(), is(10000));
+        assertThat(body(response), containsString(",\"padding\":\"oj6Y9fIlYhXzk8YeddoP"));
+        assertThat(ResponseBody.fromUpstreamResponse(body(response)).getCluster(), is("Cart_Cluster"));
+    }
+
+    @Test
+    public void should_send_a_chunked_response_to_http_1_1_and_close_for_http_1_0() throws IOException {
+        UpstreamDefinition definition = definition("Cart_Cluster", "/cart", 200);
+        definition.setChunkedResponse(true);
+        int port = server.start(definition);
+
+        String chunked = send(port, "GET /cart HTTP/1.1\r\nHost: Cart_Cluster\r\nConnection: close\r\n\r\n");
+        String closeDelimited = send(port, "GET /cart HTTP/1.0\r\nHost: Cart_Cluster\r\nConnection: keep-alive\r\n\r\n");
+
+        assertThat(chunked, containsString("Transfer-Encoding: chunked\r\n"));
+        assertThat(chunked, not(containsString("Content-Length")));
+        assertThat(chunked, endsWith("}\r\n0\r\n\r\n"));
+        assertThat(closeDelimited, not(containsString("Transfer-Encoding")));
+        assertThat(closeDelimited, containsString("Connection: close\r\n"));
+        assertThat(closeDelimited, endsWith("}"));
+    }
+
+    @Test
+    public void should_limit_the_bandwidth_of_the_body() throws IOException {
+        UpstreamDefinition definition = definition("Cart_Cluster", "/cart", 200);
+        definition.setResponseSize(20000);
+        definition.setBandwidthBytesPerSecond(40000);
+        int port = server.start(definition);
+
+        long start = System.nanoTime();
+        String response = send(port, get("/cart", "Cart_Cluster"));
+
+        // A tenth of a second of bytes goes at once, and the rest at the limit.
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(350L));
+        assertThat(body(response).length(), is(20000));
+    }
+
+    @Test
+    public void should_send_the_response_file() throws IOException {
+        File file = temporaryFolder.newFile("payload.bin");
+        byte[] contents = Bouncer.padding(100000);
+        Files.write(file.toPath(), contents);
+        UpstreamDefinition definition = definition("Cart_Cluster", "/cart", 200);
+        definition.setResponseFile(file.getAbsolutePath());
+        int port = server.start(definition);
+
+        String response = send(port, get("/cart", "Cart_Cluster"));
+
+        assertThat(response, containsString("Content-Type: application/octet-stream\r\n"));
+        assertThat(response, containsString("Content-Length: 100000\r\n"));
+        assertThat(body(response), is(new String(contents, StandardCharsets.US_ASCII)));
+
+        definition.setChunkedResponse(true);
+        server.start(definition);
+        String chunked = body(send(port, "GET /cart HTTP/1.1\r\nHost: Cart_Cluster\r\nConnection: close\r\n\r\n"));
+        assertThat(chunked, startsWith(Integer.toHexString(65536) + "\r\n"));
+        assertThat(chunked.length(), greaterThan(100000));
+
+        definition.setResponseFile(file.getAbsolutePath() + ".missing");
+        server.start(definition);
+        assertThat(send(port, get("/cart", "Cart_Cluster")), startsWith("HTTP/1.1 500"));
+    }
+
+    @Test(expected = SocketException.class)
+    public void should_reset_the_connection() throws IOException {
+        int port = server.start(withFault(definition("Cart_Cluster", "/cart", 200), UpstreamFault.resetConnection()));
+
+        send(port, get("/cart", "Cart_Cluster"));
+    }
+
+    @Test
+    public void should_stall_after_the_headers() throws IOException {
+        int port = server.start(withFault(definition("Cart_Cluster", "/cart", 200), UpstreamFault.stallAfterHeaders(300)));
+
+        long start = System.nanoTime();
+        String response = send(port, get("/cart", "Cart_Cluster"));
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(300L));
+        assertThat(response, startsWith("HTTP/1.1 200 OK"));
+        assertThat(response, containsString("Connection: close\r\n"));
+        assertThat(body(response), is(""));
+    }
+
+    @Test
+    public void should_truncate_the_body() throws IOException {
+        int port = server.start(withFault(definition("Cart_Cluster", "/cart", 200), UpstreamFault.truncateBody(10)));
+        String whole = body(send(server.start(definition("Cart_Cluster", "/cart", 200)), get("/cart", "Cart_Cluster")));
+
+        String response = send(port, get("/cart", "Cart_Cluster"));
+
+        assertThat(response, containsString("Content-Length: " + whole.length() + "\r\n"));
+        assertThat(body(response), is(whole.substring(0, 10)));
+    }
+
+    @Test
+    public void should_trickle_the_headers() throws IOException {
+        int port = server.start(withFault(definition("Cart_Cluster", "/cart", 200), UpstreamFault.slowHeaders(50)));
+
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            long start = System.nanoTime();
+            socket.getOutputStream().write(get("/cart", "Cart_Cluster").getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            byte[] first = new byte[64];
+            int read = in.read(first);
+            long firstLineMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            String response = new String(first, 0, read, StandardCharsets.US_ASCII) + readAll(in);
+            long allMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertThat(new String(first, 0, read, StandardCharsets.US_ASCII), is("HTTP/1.1 200 OK\r\n"));
+            assertThat(firstLineMs, greaterThanOrEqualTo(50L));
+            // The status line, Content-Type, Content-Length and Connection each wait.
+            assertThat(allMs, greaterThanOrEqualTo(200L));
+            assertThat(body(response), endsWith("}"));
+        }
+    }
+
+    @Test
+    public void should_only_inject_faults_on_their_paths_and_by_their_probability() throws IOException {
+        UpstreamDefinition definition = definition("Cart_Cluster", "/cart|/item", 200);
+        int port = server.start(withFault(withFault(definition,
+                UpstreamFault.resetConnection().withProbability(0)),
+                UpstreamFault.truncateBody(0).onPaths("/item")));
+
+        assertThat(body(send(port, get("/cart", "Cart_Cluster"))), endsWith("}"));
+        assertThat(send(port, get("/item", "Cart_Cluster")), containsString("Connection: close\r\n\r\n"));
+        assertThat(body(send(port, get("/item", "Cart_Cluster"))), is(""));
+    }
+
+    @Test
+    public void should_journal_every_request_the_cluster_receives() throws IOException {
+        UpstreamDefinition definition = definition("Cart_Cluster", "/cart", 200);
+        definition.setResponseDelayMs(100);
+        int port = server.start(definition);
+
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("GET /cart?item=1 HTTP/1.1\r\nHost: Cart_Cluster\r\nX-Test: one\r\nX-Test: two\r\n\r\n" +
+                    "POST /item HTTP/1.1\r\nHost: Cart_Cluster\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            readAll(socket.getInputStream());
+        }
+        send(port, get("/cart", "Cart_Cluster"));
+        ReceivedRequests journal = server.readJournal(port, "Cart_Cluster");
+
+        assertThat(journal.getCluster(), is("Cart_Cluster"));
+        assertThat(journal.getReceived(), is(3L));
+        List<ReceivedRequest> requests = journal.getRequests();
+        assertThat(requests.get(0).getMethod(), is("GET"));
+        assertThat(requests.get(0).getPath(), is("/cart"));
+        assertThat(requests.get(0).getStatus(), is(200));
+        assertThat(requests.get(0).getServiceTimeMs(), greaterThanOrEqualTo(100.0));
+        // The same digest that the bounce container's journal.js makes for these headers.
+        assertThat(requests.get(0).getHeadersDigest(), is("26ea29daf415455de86a9c4e82e03a1dcd3ef975b9e103ddcfb682a21938a8f9"));
+        assertThat(requests.get(1).getStatus(), is(404));
+        assertThat(requests.get(1).getConnectionId(), is(requests.get(0).getConnectionId()));
+        assertThat(requests.get(2).getConnectionId(), not(requests.get(0).getConnectionId()));
+
+        assertThat(server.clearJournal(port, "Cart_Cluster"), is(true));
+        assertThat(server.readJournal(port, "Cart_Cluster").getReceived(), is(0L));
+        assertThat(server.readJournal(port + 1, "Cart_Cluster"), is(nullValue()));
+    }
+
+    @Test
+    public void should_keep_the_latest_requests_and_count_them_all() throws IOException {
+        int port = server.start(withFault(definition("Cart_Cluster", "/cart", 200),
+                UpstreamFault.truncateBody(1).onPaths("/cart/truncated")));
+        StringBuilder pipelined = new StringBuilder();
+        for (int i = 0; i < RequestJournal.SIZE + 5; i++) {
+            pipelined.append("GET /cart/").append(i).append(" HTTP/1.1\r\nHost: Cart_Cluster\r\n\r\n");
+        }
+        pipelined.append("GET /cart/truncated HTTP/1.1\r\nHost: Cart_Cluster\r\n\r\n");
+
+        send(port, pipelined.toString());
+        ReceivedRequests journal = server.readJournal(port, "Cart_Cluster");
+
+        assertThat(journal.getReceived(), is(RequestJournal.SIZE + 6L));
+        assertThat(journal.getRequests(), hasSize(RequestJournal.SIZE));
+        assertThat(journal.getRequests().get(0).getPath(), is("/cart/6"));
+        ReceivedRequest truncated = journal.getRequests().get(RequestJournal.SIZE - 1);
+        assertThat(truncated.getPath(), is("/cart/truncated"));
+        assertThat(truncated.getStatus(), is(nullValue()));
+        assertThat(truncated.getServiceTimeMs(), is(notNullValue()));
+    }
+
+    @Test
+    public void should_serve_the_journal_to_the_management_calls() throws IOException {
+        assumeThat(UpstreamUtil.getUpstreamHost(System.getenv("DOCKER_HOST")), is("localhost"));
+        int managementPort = server.listenForManagement(0);
+        FrameworkProperties properties = new FrameworkProperties()
+                .withProperty("upstream.aliasAndPort", "upstream:" + managementPort);
+        UpstreamDefinition cart = definition("Cart_Cluster", "/cart", 200);
+        cart.setSharedListener(true);
+        int port = server.start(cart);
+
+        send(port, get("/cart", "Cart_Cluster"));
+
+        assertThat(UpstreamUtil.readJournal(port, "Cart_Cluster", properties).getRequests().get(0).getPath(), is("/cart"));
+        UpstreamUtil.clearJournal(port, "Cart_Cluster", properties);
+        assertThat(UpstreamUtil.readJournal(port, "Cart_Cluster", properties).getReceived(), is(0L));
+        try {
+            UpstreamUtil.readJournal(port, "Item_Cluster", properties);
+            fail("There is no Item_Cluster to read the journal of.");
+        } catch (IllegalStateException expected) {
+            assertThat(expected.getMessage(), containsString("Item_Cluster"));
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void should_not_serve_https_clusters() {
+        UpstreamDefinition definition = definition("Secure_Cluster", "/", 200);
+        definition.setRunHTTPS(true);
+        server.start(definition);
+    }
+
+    @Test
+    public void should_take_the_management_calls_of_the_bounce_container() throws IOException {
+        assumeThat(UpstreamUtil.getUpstreamHost(System.getenv("DOCKER_HOST")), is("localhost"));
+        int managementPort = server.listenForManagement(0);
+        FrameworkProperties properties = new FrameworkProperties()
+                .withProperty("upstream.aliasAndPort", "upstream:" + managementPort);
+        AppServiceCluster cart = makeHttpWebService("Cart_Cluster").withExpectedPaths("/cart");
+
+        int[] ports = UpstreamUtil.addUpstreams(0, new AppServiceCluster[]{cart}, properties);
+        cart.assignPort(ports[0]);
+
+        assertThat(send(ports[0], get("/cart", "Cart_Cluster")), startsWith("HTTP/1.1 200 OK"));
+        assertThat(UpstreamUtil.syncUpstreams(0, new AppServiceCluster[]{cart}, properties), is(0));
+        UpstreamUtil.resetUpstreams(String.valueOf(managementPort));
+        assertThat(server.listInstances(), hasSize(0));
+    }
+
+    private static UpstreamDefinition definition(String clusterName, String matchingPaths, int responseCode) {
+        UpstreamDefinition definition = new UpstreamDefinition();
+        definition.setInstanceNumber(3);
+        definition.setClusterName(clusterName);
+        definition.setMatchingPaths(matchingPaths);
+        definition.setResponseCode(responseCode);
+        return definition;
+    }
+
+    private static UpstreamDefinition withFault(UpstreamDefinition definition, UpstreamFault fault) {
+        FaultDefinition faultDefinition = new FaultDefinition();
+        faultDefinition.setType(fault.getType());
+        faultDefinition.setPaths(fault.getPaths());
+        faultDefinition.setProbability(fault.getProbability());
+        faultDefinition.setStallMs(fault.getStallMs());
+        faultDefinition.setBodyBytes(fault.getBodyBytes());
+        faultDefinition.setHeaderDelayMs(fault.getHeaderDelayMs());
+        List<FaultDefinition> faults = (definition.getFaults() == null) ? new ArrayList<>() : definition.getFaults();
+        faults.add(faultDefinition);
+        definition.setFaults(faults);
+        return definition;
+    }
+
+    private static String get(String path, String host) {
+        return "GET " + path + " HTTP/1.0\r\nHost: " + host + "\r\n\r\n";
+    }
+
+    private static String send(int port, String request) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            return readAll(socket.getInputStream());
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static String body(String response) {
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+}
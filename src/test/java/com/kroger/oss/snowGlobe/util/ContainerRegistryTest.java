@@ -0,0 +1,141 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ContainerRegistryTest {
+
+    private DockerClient dockerClient;
+    private Closeable eventStream;
+
+    @Before
+    public void setUp() {
+        dockerClient = mock(DockerClient.class);
+        eventStream = mock(Closeable.class);
+        when(dockerClient.isContainerRunning("RP-1234")).thenReturn(true);
+        when(dockerClient.getMappedPorts("RP-1234")).thenReturn(Collections.singletonMap(443, 32768));
+    }
+
+    @Test
+    public void should_answer_from_memory_while_following_events() {
+        ContainerRegistry registry = watchingRegistry();
+
+        assertTrue(registry.isRunning("RP-1234"));
+        assertTrue(registry.isRunning("RP-1234"));
+        assertThat(registry.getMappedPorts("RP-1234").get(443), is(32768));
+
+        verify(dockerClient).isContainerRunning("RP-1234");
+        verify(dockerClient).getMappedPorts("RP-1234");
+    }
+
+    @Test
+    public void should_ask_docker_again_after_the_container_changes() {
+        ContainerRegistry registry = watchingRegistry();
+        assertTrue(registry.isRunning("RP-1234"));
+
+        when(dockerClient.isContainerRunning("RP-1234")).thenReturn(false);
+        registry.containerChanged("RP-1234", "die");
+
+        assertFalse(registry.isRunning("RP-1234"));
+        assertTrue(registry.getMappedPorts("RP-1234").isEmpty());
+        verify(dockerClient, times(2)).isContainerRunning("RP-1234");
+    }
+
+    @Test
+    public void should_ask_docker_every_time_without_the_event_stream() {
+        ContainerRegistry registry = new ContainerRegistry(dockerClient);
+
+        assertTrue(registry.isRunning("RP-1234"));
+        assertTrue(registry.isRunning("RP-1234"));
+
+        assertFalse(registry.isWatching());
+        verify(dockerClient, times(2)).isContainerRunning("RP-1234");
+    }
+
+    @Test
+    public void should_stop_trusting_memory_when_the_stream_ends() {
+        ContainerRegistry registry = watchingRegistry();
+        assertTrue(registry.isRunning("RP-1234"));
+
+        registry.disconnected();
+        assertTrue(registry.isRunning("RP-1234"));
+        assertTrue(registry.isRunning("RP-1234"));
+
+        verify(dockerClient, times(3)).isContainerRunning("RP-1234");
+    }
+
+    @Test
+    public void should_remember_a_passing_health_check_until_the_container_changes() {
+        ContainerRegistry registry = watchingRegistry();
+        AtomicInteger healthChecks = new AtomicInteger();
+
+        assertTrue(registry.isHealthy("RP-1234", () -> healthChecks.incrementAndGet() > 0));
+        assertTrue(registry.isHealthy("RP-1234", () -> healthChecks.incrementAndGet() > 0));
+        assertThat(healthChecks.get(), is(1));
+
+        registry.containerChanged("RP-1234", "restart");
+        assertTrue(registry.isHealthy("RP-1234", () -> healthChecks.incrementAndGet() > 0));
+        assertThat(healthChecks.get(), is(2));
+    }
+
+    @Test
+    public void should_not_check_the_health_of_a_stopped_container() {
+        ContainerRegistry registry = watchingRegistry();
+        AtomicInteger healthChecks = new AtomicInteger();
+
+        assertFalse(registry.isHealthy("upstream", () -> healthChecks.incrementAndGet() > 0));
+        assertThat(healthChecks.get(), is(0));
+    }
+
+    @Test
+    public void should_stop_following_events_when_closed() throws Exception {
+        ContainerRegistry registry = watchingRegistry();
+        registry.isRunning("RP-1234");
+
+        registry.close();
+
+        verify(eventStream).close();
+        assertFalse(registry.isWatching());
+    }
+
+    private ContainerRegistry watchingRegistry() {
+        when(dockerClient.watchContainerEvents(any())).thenAnswer(invocation -> {
+            invocation.<DockerClient.ContainerEventListener>getArgument(0).connected();
+            return eventStream;
+        });
+        return new ContainerRegistry(dockerClient);
+    }
+}
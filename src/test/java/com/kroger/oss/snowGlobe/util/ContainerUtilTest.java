@@ -1,20 +1,170 @@
 package com.kroger.oss.snowGlobe.util;
 
+import org.junit.After;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class ContainerUtilTest {
 
+    @After
+    public void tearDown() {
+        ContainerUtil.useDockerClient(null);
+    }
+
     @Test
-    public void should_parse_docker_ps_to_get_ports() {
-        String exampleLine = "d28faaa22c3a        nginx               \"nginx -g 'daemon ...\"   6 seconds ago       Up 5 seconds        0.0.0.0:57347->80/tcp, 0.0.0.0:57346->443/tcp   RP-2e7545ceaf8adc77ffec25e158b501c7";
-        Map<Integer, Integer> mappedPorts = ContainerUtil.parseMappedPorts(exampleLine);
+    public void should_parse_docker_inspect_to_get_ports() {
+        String portsJson = "{\"443/tcp\":[{\"HostIp\":\"0.0.0.0\",\"HostPort\":\"57346\"},{\"HostIp\":\"::\",\"HostPort\":\"57346\"}]," +
+                "\"80/tcp\":[{\"HostIp\":\"0.0.0.0\",\"HostPort\":\"57347\"}]}";
+        Map<Integer, Integer> mappedPorts = ContainerUtil.parsePortBindings(portsJson);
+        assertThat(mappedPorts.size(), is(2));
         assertThat(mappedPorts.get(80), is(57347));
         assertThat(mappedPorts.get(443), is(57346));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void should_skip_ports_that_are_not_published() {
+        Map<Integer, Integer> mappedPorts = ContainerUtil.parsePortBindings("{\"80/tcp\":null,\"53/udp\":[{\"HostPort\":\"5353\"}]}");
+        assertTrue(mappedPorts.isEmpty());
+    }
+
+    @Test
+    public void should_reload_and_wait_in_a_single_exec() {
+        DockerClient dockerClient = mock(DockerClient.class);
+        ContainerUtil.useDockerClient(dockerClient);
+
+        Duration reloadTime = ContainerUtil.restartNginx("RP-1234", new String[]{"nginx", "-s", "reload"}, 5000);
+
+        verify(dockerClient).exec("RP-1234", Arrays.asList("sh", "-c", ContainerUtil.RELOAD_AND_WAIT_SCRIPT, "sh",
+                "500", "nginx", "-s", "reload"));
+        verify(dockerClient, never()).listProcesses(anyString());
+        assertFalse(reloadTime.isNegative());
+    }
+
+    @Test
+    public void should_wait_for_original_workers_to_retire_after_reload_without_a_shell() {
+        DockerClient dockerClient = mock(DockerClient.class);
+        when(dockerClient.exec(eq("RP-1234"), argThat(command -> command.get(0).equals("sh")))).thenReturn(127);
+        when(dockerClient.listProcesses("RP-1234"))
+                .thenReturn(processes("101", "102"))
+                .thenReturn(processes("101", "102", "201"))
+                .thenReturn(processes("201"));
+        ContainerUtil.useDockerClient(dockerClient);
+
+        ContainerUtil.restartNginx("RP-1234", new String[]{"nginx", "-s", "reload"}, 5000);
+
+        verify(dockerClient).exec("RP-1234", Arrays.asList("nginx", "-s", "reload"));
+        verify(dockerClient, times(3)).listProcesses("RP-1234");
+    }
+
+    @Test
+    public void should_not_wait_for_workers_that_are_shutting_down() {
+        DockerClient dockerClient = mock(DockerClient.class);
+        when(dockerClient.exec(eq("RP-1234"), argThat(command -> command.get(0).equals("sh")))).thenReturn(127);
+        Map<String, String> draining = processes("201");
+        draining.put("101", "nginx: worker process is shutting down");
+        when(dockerClient.listProcesses("RP-1234")).thenReturn(processes("101")).thenReturn(draining);
+        ContainerUtil.useDockerClient(dockerClient);
+
+        ContainerUtil.restartNginx("RP-1234", new String[]{"nginx", "-s", "reload"}, 5000);
+
+        verify(dockerClient, times(2)).listProcesses("RP-1234");
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void should_fail_when_the_original_workers_never_retire() {
+        DockerClient dockerClient = mock(DockerClient.class);
+        when(dockerClient.exec(eq("RP-1234"), argThat(command -> command.get(0).equals("sh")))).thenReturn(127);
+        when(dockerClient.listProcesses("RP-1234")).thenReturn(processes("101"));
+        ContainerUtil.useDockerClient(dockerClient);
+
+        ContainerUtil.restartNginx("RP-1234", new String[]{"nginx", "-s", "reload"}, 50);
+    }
+
+    @Test
+    public void reload_script_should_finish_once_a_new_worker_replaces_the_original() throws Exception {
+        assumeTrue(new File("/proc/self/cmdline").exists());
+        Process original = startFakeWorker();
+        try {
+            // The reload command retires the original worker and starts a new one, like nginx does.
+            Process reload = new ProcessBuilder("sh", "-c", ContainerUtil.RELOAD_AND_WAIT_SCRIPT, "sh", "500",
+                    "sh", "-c", "pkill -f '^nginx: worker process 30'; bash -c \"exec -a 'nginx: worker process' sleep 31\" &")
+                    .inheritIO().start();
+            assertThat(reload.waitFor(), is(0));
+        } finally {
+            original.destroy();
+            new ProcessBuilder("pkill", "-f", "^nginx: worker process 31").start().waitFor();
+        }
+    }
+
+    @Test
+    public void reload_script_should_time_out_while_the_original_worker_runs() throws Exception {
+        assumeTrue(new File("/proc/self/cmdline").exists());
+        Process original = startFakeWorker();
+        try {
+            Process reload = new ProcessBuilder("sh", "-c", ContainerUtil.RELOAD_AND_WAIT_SCRIPT, "sh", "5", "true")
+                    .inheritIO().start();
+            assertThat(reload.waitFor(), is(ContainerUtil.RELOAD_TIMED_OUT));
+        } finally {
+            original.destroy();
+        }
+    }
+
+    private Process startFakeWorker() throws Exception {
+        Process worker = new ProcessBuilder("bash", "-c", "exec -a 'nginx: worker process' sleep 30").start();
+        // Wait until the process has its worker title.
+        for (int i = 0; i < 100 && new ProcessBuilder("pgrep", "-f", "^nginx: worker process 30").start().waitFor() != 0; i++) {
+            Thread.sleep(10);
+        }
+        return worker;
+    }
+
+    @Test
+    public void should_read_container_events_from_the_api_and_the_command_line() throws Exception {
+        String events = "{\"Type\":\"container\",\"Action\":\"start\",\"Actor\":{\"ID\":\"abc\",\"Attributes\":{\"name\":\"upstream\"}}}" +
+                "{\"Type\":\"network\",\"Action\":\"connect\",\"Actor\":{\"Attributes\":{\"name\":\"snow-globe\"}}}\n" +
+                "{\"status\":\"die\",\"id\":\"def\",\"Actor\":{\"Attributes\":{\"name\":\"RP-1234\"}}}\n" +
+                "{\"Type\":\"container\",\"Action\":\"destroy\"}\n";
+        List<String> changes = new ArrayList<>();
+        ContainerUtil.readContainerEvents(new ByteArrayInputStream(events.getBytes(StandardCharsets.UTF_8)),
+                new DockerClient.ContainerEventListener() {
+                    public void connected() {
+                    }
+
+                    public void containerChanged(String containerName, String action) {
+                        changes.add(containerName + ":" + action);
+                    }
+
+                    public void disconnected() {
+                    }
+                });
+        assertThat(changes, is(Arrays.asList("upstream:start", "RP-1234:die", "null:destroy")));
+    }
+
+    private Map<String, String> processes(String... workerPids) {
+        Map<String, String> processes = new LinkedHashMap<>();
+        processes.put("1", "nginx: master process nginx -g daemon off;");
+        Arrays.stream(workerPids).forEach(pid -> processes.put(pid, "nginx: worker process"));
+        return processes;
+    }
+}
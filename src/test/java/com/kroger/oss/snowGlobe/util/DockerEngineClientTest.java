@@ -0,0 +1,244 @@
+/*
+ * Snow-Globe
+ *
+ * Copyright 2017 The Kroger Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kroger.oss.snowGlobe.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.newsclub.net.unix.AFUNIXServerSocket;
+import org.newsclub.net.unix.AFUNIXSocket;
+import org.newsclub.net.unix.AFUNIXSocketAddress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class DockerEngineClientTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer daemon;
+    private DockerEngineClient client;
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setup() throws IOException {
+        daemon = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        daemon.start();
+        client = new DockerEngineClient("127.0.0.1", daemon.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        daemon.stop(0);
+    }
+
+    @Test
+    public void shouldReadContainerStateAndPorts() {
+        respondTo("/containers/RP-1234/json", 200, "{\"State\":{\"Running\":true},\"NetworkSettings\":{\"Ports\":" +
+                "{\"443/tcp\":[{\"HostIp\":\"0.0.0.0\",\"HostPort\":\"32769\"}],\"80/tcp\":[{\"HostIp\":\"0.0.0.0\",\"HostPort\":\"32768\"}]}}}");
+
+        assertTrue(client.isContainerRunning("RP-1234"));
+        Map<Integer, Integer> ports = client.getMappedPorts("RP-1234");
+        assertThat(ports.get(443), is(32769));
+        assertThat(ports.get(80), is(32768));
+    }
+
+    @Test
+    public void shouldTreatMissingContainerAsNotRunning() {
+        respondTo("/containers/RP-missing/json", 404, "{\"message\":\"No such container: RP-missing\"}");
+
+        assertFalse(client.isContainerRunning("RP-missing"));
+        assertTrue(client.getMappedPorts("RP-missing").isEmpty());
+    }
+
+    @Test
+    public void shouldCreateNetworkOnlyWhenMissing() {
+        respondTo("/networks/snow-globe", 404, "{\"message\":\"network snow-globe not found\"}");
+        respondTo("/networks/create", 201, "{\"Id\":\"abc\"}");
+
+        assertFalse(client.networkExists("snow-globe"));
+        client.createNetwork("snow-globe");
+        assertThat(requests, contains("GET /networks/snow-globe", "POST /networks/create {\"Name\":\"snow-globe\"}"));
+    }
+
+    @Test
+    public void shouldListProcessesByPid() {
+        respondTo("/containers/RP-1234/top", 200, "{\"Titles\":[\"PID\",\"COMMAND\"],\"Processes\":[" +
+                "[\"101\",\"nginx: master process nginx -g daemon off;\"],[\"102\",\"nginx: worker process\"]]}");
+
+        Map<String, String> processes = client.listProcesses("RP-1234");
+
+        assertThat(processes, hasEntry("102", "nginx: worker process"));
+        assertThat(processes.size(), is(2));
+        assertThat(requests.get(0), containsString("ps_args=-e%20-o%20pid%2Ccommand"));
+    }
+
+    @Test
+    public void shouldRunCommandAndReturnExitCode() {
+        respondTo("/containers/RP-1234/exec", 201, "{\"Id\":\"exec1\"}");
+        respondTo("/exec/exec1/start", 200, "");
+        respondTo("/exec/exec1/json", 200, "{\"Running\":false,\"ExitCode\":0}");
+
+        int exitCode = client.exec("RP-1234", Arrays.asList("nginx", "-s", "reload"));
+
+        assertThat(exitCode, is(0));
+        assertThat(requests.get(0), containsString("\"Cmd\":[\"nginx\",\"-s\",\"reload\"]"));
+    }
+
+    @Test
+    public void shouldIgnoreRemovingMissingContainer() {
+        respondTo("/containers/RP-missing", 404, "{\"message\":\"No such container\"}");
+
+        client.removeContainer("RP-missing");
+
+        assertThat(requests, contains("DELETE /containers/RP-missing?force=true"));
+    }
+
+    @Test
+    public void shouldReportContainerEventsUntilStreamEnds() throws Exception {
+        respondTo("/events", 200, "{\"Type\":\"container\",\"Action\":\"start\",\"Actor\":{\"Attributes\":{\"name\":\"upstream\"}}}\n" +
+                "{\"Type\":\"container\",\"Action\":\"die\",\"Actor\":{\"Attributes\":{\"name\":\"RP-1234\"}}}\n");
+        List<String> events = new CopyOnWriteArrayList<>();
+        CountDownLatch disconnected = new CountDownLatch(1);
+
+        client.watchContainerEvents(new DockerClient.ContainerEventListener() {
+            public void connected() {
+                events.add("connected");
+            }
+
+            public void containerChanged(String containerName, String action) {
+                events.add(containerName + ":" + action);
+            }
+
+            public void disconnected() {
+                disconnected.countDown();
+            }
+        });
+
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+        assertThat(events, contains("connected", "upstream:start", "RP-1234:die"));
+        assertThat(requests.get(0), containsString("GET /events?filters="));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void shouldFailOnUnexpectedStatus() {
+        respondTo("/containers/RP-1234/json", 500, "{\"message\":\"server error\"}");
+        client.isContainerRunning("RP-1234");
+    }
+
+    @Test
+    public void shouldOnlyUseEngineApiWhenDaemonIsReachableWithoutTls() {
+        assertThat(DockerEngineClient.fromEnvironment("tcp://some-other-host:2376", "1"), is(nullValue()));
+        assertThat(DockerEngineClient.fromEnvironment("unix:///does/not/exist.sock", null), is(nullValue()));
+        assertThat(DockerEngineClient.fromEnvironment("ssh://user@host", null), is(nullValue()));
+    }
+
+    @Test
+    public void shouldTalkToDaemonOverUnixSocket() throws Exception {
+        assumeTrue(AFUNIXSocket.isSupported());
+        File socketFile = new File(temporaryFolder.getRoot(), "docker.sock");
+        try (AFUNIXServerSocket server = AFUNIXServerSocket.newInstance()) {
+            server.bind(new AFUNIXSocketAddress(socketFile));
+            Thread fakeDaemon = new Thread(() -> {
+                try (Socket connection = server.accept()) {
+                    readRequestHeaders(connection.getInputStream());
+                    byte[] body = "{\"State\":{\"Running\":true}}".getBytes(StandardCharsets.UTF_8);
+                    OutputStream out = connection.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length
+                            + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                    out.write(body);
+                    out.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            fakeDaemon.start();
+            DockerEngineClient unixClient = DockerEngineClient.fromEnvironment("unix://" + socketFile.getPath(), null);
+            try {
+                assertTrue(unixClient.isContainerRunning("RP-1234"));
+            } finally {
+                unixClient.close();
+            }
+            fakeDaemon.join(5000);
+        }
+    }
+
+    private void respondTo(String path, int status, String body) {
+        daemon.createContext(path, exchange -> {
+            String requestBody = readBody(exchange);
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI()
+                    + (requestBody.isEmpty() ? "" : " " + requestBody));
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        InputStream in = exchange.getRequestBody();
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void readRequestHeaders(InputStream in) throws IOException {
+        int matched = 0;
+        byte[] endOfHeaders = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        int next;
+        while (matched < endOfHeaders.length && (next = in.read()) != -1) {
+            matched = (next == endOfHeaders[matched]) ? matched + 1 : (next == '\r' ? 1 : 0);
+        }
+    }
+}
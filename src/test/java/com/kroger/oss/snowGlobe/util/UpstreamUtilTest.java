@@ -1,11 +1,260 @@
 package com.kroger.oss.snowGlobe.util;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.kroger.oss.snowGlobe.AppServiceCluster;
+import com.kroger.oss.snowGlobe.FrameworkProperties;
+import com.kroger.oss.snowGlobe.UpstreamFault;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.kroger.oss.snowGlobe.AppServiceCluster.makeHttpWebService;
+import static com.kroger.oss.snowGlobe.AppServiceCluster.makeHttpsWebService;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeThat;
 
 public class UpstreamUtilTest {
+
+    private HttpServer bounceManager;
+    private FrameworkProperties frameworkProperties;
+    private final List<String> registrationBodies = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setup() throws IOException {
+        bounceManager = HttpServer.create(new InetSocketAddress(0), 0);
+        bounceManager.start();
+        frameworkProperties = new FrameworkProperties()
+                .withProperty("upstream.aliasAndPort", "upstream:" + bounceManager.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        if (bounceManager != null) {
+            bounceManager.stop(0);
+        }
+    }
+
+    @Test
+    public void should_register_all_clusters_in_one_call() {
+        assumeBounceManagerIsLocal();
+        bounceManager.createContext("/startServers", exchange -> {
+            registrationBodies.add(readBody(exchange));
+            respond(exchange, 200, "[40001,40002]");
+        });
+        AppServiceCluster[] clusters = {makeHttpWebService("Cart_Cluster"), makeHttpWebService("Item_Cluster")};
+
+        int[] ports = UpstreamUtil.addUpstreams(0, clusters, frameworkProperties);
+
+        assertArrayEquals(new int[]{40001, 40002}, ports);
+        assertThat(registrationBodies.size(), is(1));
+        assertThat(registrationBodies.get(0), containsString("\"clusterName\":\"Cart_Cluster\""));
+        assertThat(registrationBodies.get(0), containsString("\"clusterName\":\"Item_Cluster\""));
+    }
+
+    @Test
+    public void should_register_clusters_one_per_call_with_older_bounce_image() {
+        assumeBounceManagerIsLocal();
+        bounceManager.createContext("/startServers", exchange -> respond(exchange, 404, "Not Found"));
+        bounceManager.createContext("/startServer", exchange -> {
+            String body = readBody(exchange);
+            registrationBodies.add(body);
+            respond(exchange, 200, body.contains("Cart_Cluster") ? "50001" : "50002");
+        });
+        AppServiceCluster[] clusters = {makeHttpWebService("Cart_Cluster"), makeHttpWebService("Item_Cluster")};
+
+        int[] ports = UpstreamUtil.addUpstreams(0, clusters, frameworkProperties);
+
+        assertArrayEquals(new int[]{50001, 50002}, ports);
+        assertThat(registrationBodies.size(), is(2));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void should_fail_when_instances_can_not_be_started() {
+        assumeBounceManagerIsLocal();
+        bounceManager.createContext("/startServers", exchange -> respond(exchange, 500, "Error: listen EACCES"));
+        UpstreamUtil.addUpstreams(0, new AppServiceCluster[]{makeHttpWebService("Cart_Cluster")}, frameworkProperties);
+    }
+
+    @Test
+    public void should_only_restart_clusters_whose_definition_changed() throws Exception {
+        assumeBounceManagerIsLocal();
+        AppServiceCluster cart = makeHttpWebService("Cart_Cluster").withExpectedPaths("/cart");
+        cart.assignPort(40001);
+        AppServiceCluster item = makeHttpWebService("Item_Cluster").withHttpResponses(503);
+        item.assignPort(40002);
+        // The bounce container may add its own fields to a definition.
+        Map<String, Object> cartDefinition = new HashMap<>(UpstreamUtil.buildRegistration(0, cart, frameworkProperties));
+        cartDefinition.put("started", 1);
+        String runningCart = JsonUtil.toJson(cartDefinition);
+        Map<String, Object> itemDefinition = new HashMap<>(UpstreamUtil.buildRegistration(0, makeHttpWebService("Item_Cluster"), frameworkProperties));
+        itemDefinition.put("port", 40002);
+        String runningItem = JsonUtil.toJson(itemDefinition);
+        List<String> stopBodies = new CopyOnWriteArrayList<>();
+        bounceManager.createContext("/instances", exchange -> respond(exchange, 200, "[" + runningCart + "," + runningItem + "]"));
+        bounceManager.createContext("/stopServer", exchange -> {
+            stopBodies.add(readBody(exchange));
+            respond(exchange, 200, "");
+        });
+        bounceManager.createContext("/startServers", exchange -> {
+            registrationBodies.add(readBody(exchange));
+            respond(exchange, 200, "[40002]");
+        });
+
+        int started = UpstreamUtil.syncUpstreams(0, new AppServiceCluster[]{cart, item}, frameworkProperties);
+
+        assertThat(started, is(1));
+        assertThat(stopBodies, contains("{\"port\":40002}"));
+        assertThat(registrationBodies.size(), is(1));
+        assertThat(registrationBodies.get(0), containsString("\"clusterName\":\"Item_Cluster\""));
+        assertThat(registrationBodies.get(0), not(containsString("Cart_Cluster")));
+    }
+
+    @Test
+    public void should_not_call_the_bounce_manager_when_nothing_changed() throws Exception {
+        assumeBounceManagerIsLocal();
+        AppServiceCluster cart = makeHttpWebService("Cart_Cluster");
+        cart.assignPort(40001);
+        String runningCart = JsonUtil.toJson(UpstreamUtil.buildRegistration(0, cart, frameworkProperties));
+        bounceManager.createContext("/instances", exchange -> respond(exchange, 200, "[" + runningCart + "]"));
+
+        int started = UpstreamUtil.syncUpstreams(0, new AppServiceCluster[]{cart}, frameworkProperties);
+
+        assertThat(started, is(0));
+    }
+
+    @Test
+    public void should_mark_only_http_clusters_for_the_shared_listener() {
+        frameworkProperties = frameworkProperties.withProperty("upstream.sharedListener", true);
+
+        Map<String, Object> http = UpstreamUtil.buildRegistration(0, makeHttpWebService("Cart_Cluster"), frameworkProperties);
+        Map<String, Object> https = UpstreamUtil.buildRegistration(0, makeHttpsWebService("Secure_Cluster"), frameworkProperties);
+
+        assertThat(http.get("sharedListener"), is(true));
+        assertThat(https.containsKey("sharedListener"), is(false));
+    }
+
+    @Test
+    public void should_only_restart_the_changed_cluster_of_a_shared_listener() throws Exception {
+        assumeBounceManagerIsLocal();
+        frameworkProperties = frameworkProperties.withProperty("upstream.sharedListener", true);
+        AppServiceCluster cart = makeHttpWebService("Cart_Cluster");
+        cart.assignPort(10000);
+        AppServiceCluster item = makeHttpWebService("Item_Cluster").withHttpResponses(503);
+        item.assignPort(10000);
+        String runningCart = JsonUtil.toJson(UpstreamUtil.buildRegistration(0, cart, frameworkProperties));
+        Map<String, Object> itemDefinition = new HashMap<>(UpstreamUtil.buildRegistration(0, makeHttpWebService("Item_Cluster"), frameworkProperties));
+        itemDefinition.put("port", 10000);
+        String runningItem = JsonUtil.toJson(itemDefinition);
+        List<String> stopBodies = new CopyOnWriteArrayList<>();
+        bounceManager.createContext("/instances", exchange -> respond(exchange, 200, "[" + runningCart + "," + runningItem + "]"));
+        bounceManager.createContext("/stopServer", exchange -> {
+            stopBodies.add(readBody(exchange));
+            respond(exchange, 200, "");
+        });
+        bounceManager.createContext("/startServers", exchange -> {
+            registrationBodies.add(readBody(exchange));
+            respond(exchange, 200, "[10000]");
+        });
+
+        int started = UpstreamUtil.syncUpstreams(0, new AppServiceCluster[]{cart, item}, frameworkProperties);
+
+        assertThat(started, is(1));
+        assertThat(stopBodies, contains("{\"port\":10000,\"clusterName\":\"Item_Cluster\"}"));
+        assertThat(registrationBodies.get(0), not(containsString("Cart_Cluster")));
+    }
+
+    @Test
+    public void should_reset_and_start_every_cluster_when_instances_can_not_be_listed() {
+        assumeBounceManagerIsLocal();
+        List<String> resets = new CopyOnWriteArrayList<>();
+        bounceManager.createContext("/instances", exchange -> respond(exchange, 404, "Not Found"));
+        bounceManager.createContext("/reset", exchange -> {
+            resets.add(readBody(exchange));
+            respond(exchange, 200, "");
+        });
+        bounceManager.createContext("/startServers", exchange -> {
+            registrationBodies.add(readBody(exchange));
+            respond(exchange, 200, "[40001,40002]");
+        });
+        AppServiceCluster[] clusters = {makeHttpWebService("Cart_Cluster"), makeHttpWebService("Item_Cluster")};
+
+        int started = UpstreamUtil.syncUpstreams(0, clusters, frameworkProperties);
+
+        assertThat(started, is(2));
+        assertThat(resets.size(), is(1));
+        assertThat(registrationBodies.size(), is(1));
+    }
+
+    @Test
+    public void should_start_the_bounce_container_with_the_configured_workers() {
+        frameworkProperties = frameworkProperties.withProperty("upstream.bounce.workers", 4);
+
+        String command = String.join(" ", UpstreamUtil.buildStartCommand(frameworkProperties));
+
+        assertThat(command, containsString("--env BOUNCE_WORKERS=4 "));
+        assertThat(command, endsWith(frameworkProperties.getUpstreamBounceImage()));
+    }
+
+    @Test
+    public void should_mount_the_bounce_volumes_read_only() {
+        frameworkProperties = frameworkProperties.withProperty("upstream.bounce.volumes", Arrays.asList("/payloads:/data", "/files"));
+
+        String command = String.join(" ", UpstreamUtil.buildStartCommand(frameworkProperties));
+
+        assertThat(command, containsString("--volume /payloads:/data:ro --volume /files:/files:ro --detach"));
+    }
+
+    @Test
+    public void should_only_register_the_response_shaping_that_is_set() {
+        Map<String, Object> plain = UpstreamUtil.buildRegistration(0, makeHttpWebService("Cart_Cluster"), frameworkProperties);
+        Map<String, Object> shaped = UpstreamUtil.buildRegistration(0, makeHttpWebService("Cart_Cluster")
+                .withResponseDelay(250).withResponseSize(4096).withChunkedResponse().withBandwidthLimit(1024), frameworkProperties);
+
+        assertThat(plain.containsKey("responseDelayMs"), is(false));
+        assertThat(plain.containsKey("chunkedResponse"), is(false));
+        assertThat(shaped.get("responseDelayMs"), is(250));
+        assertThat(shaped.get("responseSize"), is(4096));
+        assertThat(shaped.get("chunkedResponse"), is(true));
+        assertThat(shaped.get("bandwidthBytesPerSecond"), is(1024L));
+        assertThat(shaped.containsKey("responseFile"), is(false));
+    }
+
+    @Test
+    public void should_match_a_running_fault_definition_written_back_by_node() throws Exception {
+        AppServiceCluster cart = makeHttpWebService("Cart_Cluster")
+                .withBandwidthLimit(1024)
+                .withFault(UpstreamFault.truncateBody(10).onPaths("/cart", "/item").withProbability(0.25))
+                .withFault(UpstreamFault.resetConnection());
+        Map<String, Object> registration = UpstreamUtil.buildRegistration(0, cart, frameworkProperties);
+        // JSON.stringify writes 1.0 as 1, which Jackson reads back as an int.
+        JsonNode running = JsonUtil.readerFor(JsonNode.class).readValue(JsonUtil.toJson(registration).replace("1.0", "1"));
+
+        assertThat(JsonUtil.toJson(registration), containsString("\"type\":\"TRUNCATE_BODY\""));
+        assertThat(running.get("faults").get(1).get("probability").isInt(), is(true));
+        assertThat(UpstreamUtil.sameDefinition(registration, running), is(true));
+        ((ObjectNode) running.get("faults").get(0)).put("bodyBytes", 11);
+        assertThat(UpstreamUtil.sameDefinition(registration, running), is(false));
+    }
+
     @Test
     public void should_use_localhost_if_no_dockerhost() {
         String host = UpstreamUtil.getUpstreamHost(null);
@@ -29,4 +278,26 @@ public class UpstreamUtilTest {
         String host = UpstreamUtil.getUpstreamHost("tcp://some-other-host:2375");
         assertThat(host, is("some-other-host"));
     }
+
+    private static void assumeBounceManagerIsLocal() {
+        assumeThat(UpstreamUtil.getUpstreamHost(System.getenv("DOCKER_HOST")), is("localhost"));
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        StringBuilder body = new StringBuilder();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = exchange.getRequestBody().read(buffer)) != -1) {
+            body.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+        }
+        return body.toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
 }